@@ -0,0 +1,135 @@
+package dfs.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares a JMH run written with -rf csv against a stored baseline of the same benchmarks.
+ * Exits with 1 if any benchmark got slower by more than the threshold percentage and by more than
+ * the two error margins together, so noise alone does not fail it.
+ * <p>
+ * Usage: BaselineCompare baseline.csv results.csv [threshold percent, default 10]
+ */
+public class BaselineCompare {
+    private static final double DEFAULT_THRESHOLD_PERCENT = 10;
+
+    private record Result(String mode, double score, double error, String unit) {
+        boolean higherIsBetter() {
+            return mode.equals("thrpt");
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineCompare <baseline.csv> <results.csv> [threshold percent]");
+            System.exit(2);
+        }
+        Map<String, Result> baseline = read(Paths.get(args[0]));
+        Map<String, Result> results = read(Paths.get(args[1]));
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD_PERCENT;
+
+        int regressions = 0;
+        System.out.printf("%-70s %14s %14s %9s%n", "Benchmark", "Baseline", "Now", "Change");
+        for (Map.Entry<String, Result> entry : results.entrySet()) {
+            Result now = entry.getValue();
+            Result before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.printf("%-70s %14s %14.3f %9s  new%n", entry.getKey(), "-", now.score, "");
+                continue;
+            }
+            if (!before.unit.equals(now.unit) || !before.mode.equals(now.mode)) {
+                System.out.printf("%-70s measured in %s %s before, %s %s now, not compared%n",
+                        entry.getKey(), before.mode, before.unit, now.mode, now.unit);
+                continue;
+            }
+            double change = (now.score - before.score) / before.score * 100;
+            double worse = now.higherIsBetter() ? before.score - now.score : now.score - before.score;
+            double margin = Math.max(before.score * threshold / 100, errorOf(before) + errorOf(now));
+            boolean regressed = worse > margin;
+            boolean improved = -worse > margin;
+            if (regressed) regressions++;
+            System.out.printf("%-70s %14.3f %14.3f %+8.1f%%%s%n", entry.getKey(), before.score, now.score, change,
+                    regressed ? "  REGRESSION" : improved ? "  improved" : "");
+        }
+        for (String key : baseline.keySet()) {
+            if (!results.containsKey(key)) System.out.printf("%-70s not run%n", key);
+        }
+
+        System.out.println(regressions == 0 ? "No regressions beyond " + threshold + "%"
+                : regressions + " regression(s) beyond " + threshold + "%");
+        System.exit(regressions == 0 ? 0 : 1);
+    }
+
+    private static double errorOf(Result result) {
+        return Double.isNaN(result.error) ? 0 : result.error;
+    }
+
+    /**
+     * Rows of a JMH csv result by benchmark name and parameters, e.g.
+     * "dfs.bench.FileMetaBenchmark.getNodes replicas=2".
+     */
+    private static Map<String, Result> read(Path file) throws IOException {
+        List<String> lines = Files.readAllLines(file);
+        if (lines.isEmpty()) throw new IOException(file + " is empty");
+        List<String> header = split(lines.get(0));
+        int benchmark = header.indexOf("Benchmark");
+        int mode = header.indexOf("Mode");
+        int score = header.indexOf("Score");
+        int unit = header.indexOf("Unit");
+        int error = -1;
+        for (int i = 0; i < header.size(); i++) {
+            if (header.get(i).startsWith("Score Error")) error = i;
+        }
+        if (benchmark < 0 || mode < 0 || score < 0 || unit < 0) throw new IOException(file + " is not a JMH csv result");
+
+        Map<String, Result> results = new LinkedHashMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isBlank()) continue;
+            List<String> row = split(line);
+            StringBuilder key = new StringBuilder(row.get(benchmark));
+            for (int i = 0; i < header.size(); i++) {
+                String column = header.get(i);
+                if (column.startsWith("Param: ") && i < row.size() && !row.get(i).isEmpty()) {
+                    key.append(' ').append(column.substring("Param: ".length())).append('=').append(row.get(i));
+                }
+            }
+            results.put(key.toString(), new Result(row.get(mode), parse(row.get(score)),
+                    error >= 0 ? parse(row.get(error)) : Double.NaN, row.get(unit)));
+        }
+        return results;
+    }
+
+    private static double parse(String number) {
+        return number.equals("NaN") ? Double.NaN : Double.parseDouble(number);
+    }
+
+    private static List<String> split(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
@@ -0,0 +1,49 @@
+package dfs.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FileMeta.getNodes, called per file by listings, placement and anti-entropy.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch"})
+@State(Scope.Benchmark)
+public class FileMetaBenchmark {
+    private static final MethodHandle NEW_FILE_META = Sources.constructor("FileMeta", String.class, String.class, List.class);
+    private static final MethodHandle GET_NODES = Sources.method("FileMeta", "getNodes", List.class);
+
+    @Param({"0", "2", "8"})
+    public int replicas;
+
+    private Object fileMeta;
+
+    @Setup
+    public void setUp() throws Throwable {
+        List<String> nodes = new ArrayList<>();
+        for (int i = 0; i < replicas; i++) nodes.add("node_" + i);
+        fileMeta = (Object) NEW_FILE_META.invokeExact((Object) "report.pdf", (Object) "IT", (Object) nodes);
+    }
+
+    @Benchmark
+    public Object getNodes() throws Throwable {
+        return (Object) GET_NODES.invokeExact(fileMeta);
+    }
+}
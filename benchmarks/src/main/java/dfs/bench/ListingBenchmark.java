@@ -0,0 +1,88 @@
+package dfs.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Department listings over a large filesMeta. getDepartmentFiles is what a client's RMI call costs
+ * once the listing is cached, token check included; rebuild is the scan the first call after a
+ * change pays.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch"})
+@State(Scope.Benchmark)
+public class ListingBenchmark {
+    private static final String[] DEPARTMENTS = {"IT", "HR", "QA", "GRAPHICS", "SALES"};
+    private static final String DEPARTMENT = "QA";
+    private static final MethodHandle NEW_COORDINATOR = Sources.constructor("CoordinatorImp");
+    private static final MethodHandle GET_DEPARTMENT_FILES = Sources.method("CoordinatorImp", "getDepartmentFiles",
+            List.class, String.class, String.class);
+    private static final MethodHandle LISTING_OF = Sources.staticMethod("CoordinatorImp", "listingOf",
+            Sources.type("DepartmentListing"), String.class);
+    private static final MethodHandle LISTING_CHANGED = Sources.staticMethod("CoordinatorImp", "listingChanged",
+            void.class, String.class);
+    private static final MethodHandle NEW_FILE_META = Sources.constructor("FileMeta", String.class, String.class, List.class);
+    private static final MethodHandle GENERATE_TOKEN = Sources.staticMethod("TokenGenerator", "generateToken",
+            String.class, String.class, List.class);
+
+    @Param({"10000", "100000"})
+    public int fileCount;
+
+    private Map<String, Object> filesMeta;
+    private Object coordinator;
+    private String token;
+
+    @Setup
+    public void setUp() throws Throwable {
+        filesMeta = Sources.staticField("CoordinatorImp", "filesMeta");
+        Random random = new Random(42);
+        for (int i = 0; i < fileCount; i++) {
+            String dep = DEPARTMENTS[random.nextInt(DEPARTMENTS.length)];
+            String name = "file-" + i + ".dat";
+            // A few deleted files, which stay in filesMeta without replicas
+            List<String> replicas = random.nextInt(50) == 0 ? List.of()
+                    : List.of("node_" + random.nextInt(8), "node_" + (8 + random.nextInt(8)));
+            filesMeta.put(dep + "/" + name, (Object) NEW_FILE_META.invokeExact((Object) name, (Object) dep, (Object) replicas));
+        }
+        LISTING_CHANGED.invokeExact((Object) DEPARTMENT);
+        coordinator = (Object) NEW_COORDINATOR.invokeExact();
+        token = (String) (Object) GENERATE_TOKEN.invokeExact((Object) "bench", (Object) List.of("QA"));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        UnicastRemoteObject.unexportObject((UnicastRemoteObject) coordinator, true);
+        filesMeta.clear();
+    }
+
+    @Benchmark
+    public Object getDepartmentFiles() throws Throwable {
+        return (Object) GET_DEPARTMENT_FILES.invokeExact(coordinator, (Object) token, (Object) DEPARTMENT);
+    }
+
+    @Benchmark
+    public Object rebuild() throws Throwable {
+        LISTING_CHANGED.invokeExact((Object) DEPARTMENT);
+        return (Object) LISTING_OF.invokeExact((Object) DEPARTMENT);
+    }
+}
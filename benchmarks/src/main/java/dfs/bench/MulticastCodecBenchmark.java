@@ -0,0 +1,68 @@
+package dfs.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of one multicast sync datagram, paid for every chunk a node sends or
+ * receives. A NACK payload is empty and a DATA payload fills most of a 1472 byte datagram.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch"})
+@State(Scope.Benchmark)
+public class MulticastCodecBenchmark {
+    private static final int MAX_DATAGRAM_SIZE = 1472;
+    private static final Object DATA = Sources.enumConstant("SyncPacket$Type", "DATA");
+    private static final MethodHandle WRITE_HEADER = Sources.staticMethod("SyncPacket", "writeHeader",
+            ByteBuffer.class, ByteBuffer.class, Sources.type("SyncPacket$Type"), long.class, int.class);
+    private static final MethodHandle NEW_PACKET = Sources.constructor("SyncPacket");
+    private static final MethodHandle READ = Sources.method("SyncPacket", "read", boolean.class, ByteBuffer.class);
+
+    @Param({"0", "1400"})
+    public int payloadSize;
+
+    private ByteBuffer payload;
+    private ByteBuffer packet;
+    private ByteBuffer datagram;
+    private Object reader;
+
+    @Setup
+    public void setUp() throws Throwable {
+        byte[] bytes = new byte[payloadSize];
+        new Random(42).nextBytes(bytes);
+        payload = ByteBuffer.wrap(bytes);
+        packet = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        datagram = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        datagram.put(encode().duplicate()).flip();
+        reader = (Object) NEW_PACKET.invokeExact();
+    }
+
+    @Benchmark
+    public ByteBuffer encode() throws Throwable {
+        Object unused = (Object) WRITE_HEADER.invokeExact((Object) packet, DATA, 1234567890123L, 4711);
+        return packet.put(payload.rewind()).flip();
+    }
+
+    @Benchmark
+    public Object decode() throws Throwable {
+        if (!(boolean) READ.invokeExact(reader, (Object) datagram.rewind())) throw new IllegalStateException("Not a sync packet");
+        return reader;
+    }
+}
@@ -0,0 +1,76 @@
+package dfs.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CoordinatorImp.getBestNode, asked once per upload, download and replica write. Every node has
+ * some load in flight and one in sixteen is suspected, so both the ranking and the suspect ordering
+ * run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch", "-Dplacement.strategy=p2c"})
+@State(Scope.Benchmark)
+public class PlacementBenchmark {
+    private static final long SIZE_HINT = 4 * 1024 * 1024;
+    private static final MethodHandle GET_BEST_NODE = Sources.staticMethod("CoordinatorImp", "getBestNode",
+            List.class, List.class, long.class);
+    private static final MethodHandle NEW_NODE_STATS = Sources.constructor("NodeStats");
+    private static final MethodHandle BEGIN = Sources.method("NodeStats", "begin", void.class, long.class);
+    private static final MethodHandle END = Sources.method("NodeStats", "end", void.class, long.class, long.class);
+    private static final MethodHandle SET_UNRESPONSIVE = Sources.method("NodeStats", "setUnresponsive", void.class, boolean.class);
+
+    @Param({"3", "16", "128"})
+    public int nodeCount;
+
+    private Map<String, Object> nodeStats;
+    private List<String> candidates;
+
+    @Setup
+    public void setUp() throws Throwable {
+        nodeStats = Sources.staticField("CoordinatorImp", "nodeStats");
+        candidates = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < nodeCount; i++) {
+            String nodeId = "node_" + i;
+            Object stats = (Object) NEW_NODE_STATS.invokeExact();
+            END.invokeExact(stats, 0L, (long) random.nextInt(50_000_000));
+            for (int op = random.nextInt(8); op > 0; op--) {
+                BEGIN.invokeExact(stats, (long) random.nextInt(64 * 1024 * 1024));
+            }
+            if (i % 16 == 15) SET_UNRESPONSIVE.invokeExact(stats, true);
+            nodeStats.put(nodeId, stats);
+            candidates.add(nodeId);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        nodeStats.clear();
+    }
+
+    @Benchmark
+    public Object getBestNode() throws Throwable {
+        return (Object) GET_BEST_NODE.invokeExact((Object) candidates, SIZE_HINT);
+    }
+}
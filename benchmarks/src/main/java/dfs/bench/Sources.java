@@ -0,0 +1,84 @@
+package dfs.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Paths;
+
+/**
+ * Handles on the system's classes. They live in the unnamed package, which Java code in a package
+ * cannot name and JMH cannot generate benchmarks for, so benchmarks reach them through method
+ * handles. Every handle is erased to Object and primitives: kept in a static final field and called
+ * with invokeExact, the JIT inlines it like a direct call.
+ */
+final class Sources {
+    static {
+        // Tokens are signed with a throwaway key rather than the one under storage/
+        if (System.getProperty("token.keyFile") == null) {
+            System.setProperty("token.keyFile", Paths.get(System.getProperty("java.io.tmpdir"), "dfs-bench-token.key").toString());
+        }
+    }
+
+    private Sources() {
+    }
+
+    static Class<?> type(String name) {
+        try {
+            // Not initialized yet, static state is set up by the first call into it
+            return Class.forName(name, false, Sources.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle constructor(String owner, Class<?>... parameters) {
+        try {
+            Class<?> type = type(owner);
+            return erased(lookup(type).findConstructor(type, MethodType.methodType(void.class, parameters)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle method(String owner, String name, Class<?> returns, Class<?>... parameters) {
+        try {
+            Class<?> type = type(owner);
+            return erased(lookup(type).findVirtual(type, name, MethodType.methodType(returns, parameters)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle staticMethod(String owner, String name, Class<?> returns, Class<?>... parameters) {
+        try {
+            Class<?> type = type(owner);
+            return erased(lookup(type).findStatic(type, name, MethodType.methodType(returns, parameters)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T staticField(String owner, String name) {
+        try {
+            Class<?> type = type(owner);
+            return (T) lookup(type).findStaticVarHandle(type, name, type.getDeclaredField(name).getType()).get();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static Object enumConstant(String owner, String name) {
+        return Enum.valueOf((Class) type(owner), name);
+    }
+
+    private static MethodHandles.Lookup lookup(Class<?> type) throws IllegalAccessException {
+        // Same unnamed module, so package-private members are open to us
+        return MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+    }
+
+    private static MethodHandle erased(MethodHandle handle) {
+        return handle.asType(handle.type().erase());
+    }
+}
@@ -0,0 +1,54 @@
+package dfs.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TokenGenerator.verify, which every coordinator RMI call starts with. A forged token fails the
+ * MAC check and should cost the same as a valid one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch"})
+@State(Scope.Benchmark)
+public class TokenBenchmark {
+    private static final MethodHandle GENERATE_TOKEN = Sources.staticMethod("TokenGenerator", "generateToken",
+            String.class, String.class, List.class);
+    private static final MethodHandle VERIFY = Sources.staticMethod("TokenGenerator", "verify",
+            Sources.type("TokenGenerator$Claims"), String.class);
+
+    private String valid;
+    private String forged;
+
+    @Setup
+    public void setUp() throws Throwable {
+        valid = (String) (Object) GENERATE_TOKEN.invokeExact((Object) "bench", (Object) List.of("IT", "MANAGER"));
+        // Same payload, last signature character changed
+        char last = valid.charAt(valid.length() - 1);
+        forged = valid.substring(0, valid.length() - 1) + (last == 'A' ? 'B' : 'A');
+    }
+
+    @Benchmark
+    public Object verifyValid() throws Throwable {
+        return (Object) VERIFY.invokeExact((Object) valid);
+    }
+
+    @Benchmark
+    public Object verifyForged() throws Throwable {
+        return (Object) VERIFY.invokeExact((Object) forged);
+    }
+}
@@ -0,0 +1,341 @@
+import javax.naming.ServiceUnavailableException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Keeps the nodes' copies in line with the metadata without sweeping every file. For each node and
+ * department the coordinator keeps the {@link MerkleIndex} that node should have, updated whenever
+ * a file's metadata changes, and every round compares it with the node's own: matching roots cost
+ * one call per node, and where they differ only the divergent subtrees are walked, one call per
+ * level, down to the buckets whose files are then compared by digest. Each divergent or
+ * under-replicated file becomes a "repair" operation on the dispatcher, which checks it again under
+ * the file's write lease before copying or deleting anything.
+ */
+public class AntiEntropy {
+    private static final long ROUND_INTERVAL_MS = 10 * 1000;
+    private static final int MAX_REPAIRS_PER_ROUND = 256; // The rest waits for the next round
+    private static final int MAX_QUEUED_FOR_REPAIR = 1024; // Leave the dispatcher queue to clients beyond this
+    private static final int MAX_DIGEST_LOOKUPS_PER_ROUND = 1000; // Files journaled before digests were kept
+
+    private record Placement(List<String> nodes, String digest) {
+    }
+
+    // node -> department -> what that node should hold
+    private final Map<String, Map<String, MerkleIndex>> expected = new ConcurrentHashMap<>();
+    private final Map<String, Placement> placements = new HashMap<>(); // what expected reflects, per file
+    private final LatencyHistogram roundLatency = CoordinatorImp.metrics.latency("antientropy.round");
+    private final Metrics.Meter divergentFiles = CoordinatorImp.metrics.meter("antientropy.divergent");
+    private final ScheduledExecutorService rounds = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "anti-entropy");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public AntiEntropy() {
+        CoordinatorImp.filesMeta.keySet().forEach(this::fileChanged);
+    }
+
+    public void start() {
+        rounds.scheduleWithFixedDelay(this::round, ROUND_INTERVAL_MS, ROUND_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        System.out.println("Coordinator: Comparing replicas with the metadata every " + ROUND_INTERVAL_MS / 1000 + " seconds.");
+    }
+
+    /**
+     * Runs a round now, after any that is already running.
+     */
+    public void runNow() {
+        rounds.execute(this::round);
+    }
+
+    /**
+     * Brings the expected trees in line with the current metadata of fullName.
+     */
+    public synchronized void fileChanged(String fullName) {
+        FileMeta fm = CoordinatorImp.filesMeta.get(fullName);
+        String dep = fullName.split("/")[0];
+        Placement before = placements.remove(fullName);
+        if (before != null) {
+            for (String nodeId : before.nodes) treeOf(nodeId, dep).remove(fullName);
+        }
+        if (fm == null || fm.getDigest() == null || fm.getNodes().isEmpty()) return;
+        Placement now = new Placement(fm.getNodes(), fm.getDigest());
+        placements.put(fullName, now);
+        for (String nodeId : now.nodes) treeOf(nodeId, dep).put(fullName, now.digest);
+    }
+
+    private MerkleIndex treeOf(String nodeId, String dep) {
+        return expected.computeIfAbsent(nodeId, n -> new ConcurrentHashMap<>()).computeIfAbsent(dep, d -> new MerkleIndex());
+    }
+
+    private void round() {
+        long started = System.nanoTime();
+        try {
+            learnDigests();
+
+            // Files whose digest is still unknown cannot be judged on any node
+            Set<String> unknown = new HashSet<>();
+            Map<String, Set<String>> divergent = new HashMap<>(); // file -> nodes whose copy is off
+            for (FileMeta fm : CoordinatorImp.filesMeta.values()) {
+                if (fm.getDigest() == null && !fm.getNodes().isEmpty()) unknown.add(fm.getFullName());
+            }
+
+            for (var entry : CoordinatorImp.nodes.entrySet()) {
+                String nodeId = entry.getKey();
+                NodeStats stats = CoordinatorImp.nodeStats.get(nodeId);
+                if (stats != null && stats.getSuspicion() >= CoordinatorImp.SUSPECT_PHI) continue;
+                try {
+                    compare(nodeId, entry.getValue(), unknown, divergent);
+                } catch (RemoteException e) {
+                    System.err.println("Coordinator: Anti-entropy could not compare node " + nodeId + ": " + e.getMessage());
+                }
+            }
+
+            // Short of replicas also needs a repair, even when every copy there is in order
+            int liveNodes = CoordinatorImp.nodes.size();
+            for (FileMeta fm : CoordinatorImp.filesMeta.values()) {
+                if (fm.getDigest() == null) continue;
+                long live = fm.getNodes().stream().filter(CoordinatorImp.nodes::containsKey).count();
+                if (live > 0 && live < Math.min(CoordinatorImp.replicationFactor(fm.dep), liveNodes)) {
+                    divergent.computeIfAbsent(fm.getFullName(), name -> new HashSet<>());
+                }
+            }
+
+            int submitted = 0;
+            for (var entry : divergent.entrySet()) {
+                if (submitted == MAX_REPAIRS_PER_ROUND || CoordinatorImp.dispatcher.queuedCount() >= MAX_QUEUED_FOR_REPAIR) break;
+                try {
+                    CoordinatorImp.dispatcher.submitWrite("repair", entry.getKey(), new RepairTask(entry.getKey(), entry.getValue()));
+                    submitted++;
+                } catch (ServiceUnavailableException e) {
+                    break;
+                }
+            }
+            divergentFiles.mark(divergent.size());
+            if (!divergent.isEmpty()) {
+                System.out.println("Coordinator: Anti-entropy found " + divergent.size() + " files to repair, "
+                        + submitted + " repairs queued.");
+            }
+        } catch (RuntimeException e) {
+            // Keep the schedule alive, the next round starts over anyway
+            System.err.println("Coordinator: Anti-entropy round failed: " + e);
+        } finally {
+            roundLatency.record(System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Walks down the trees of every department where node's root differs from the expected one and
+     * adds the files of the differing buckets to divergent.
+     */
+    private void compare(String nodeId, NodeInt node, Set<String> unknown, Map<String, Set<String>> divergent) throws RemoteException {
+        Map<String, Long> roots = node.merkleRoots();
+        if (roots == null) return; // still hashing its disk
+        Map<String, MerkleIndex> trees = expected.getOrDefault(nodeId, Map.of());
+        Set<String> departments = new HashSet<>(roots.keySet());
+        departments.addAll(trees.keySet());
+
+        for (String dep : departments) {
+            MerkleIndex tree = trees.getOrDefault(dep, new MerkleIndex());
+            if (roots.getOrDefault(dep, 0L) == tree.root()) continue;
+
+            int[] frontier = {MerkleIndex.ROOT};
+            int calls = 1;
+            while (frontier.length > 0 && !MerkleIndex.isLeaf(frontier[0])) {
+                int[] children = new int[frontier.length * 2];
+                for (int i = 0; i < frontier.length; i++) {
+                    children[2 * i] = 2 * frontier[i];
+                    children[2 * i + 1] = 2 * frontier[i] + 1;
+                }
+                long[] actual = node.merkleHashes(dep, children);
+                calls++;
+                frontier = IntStream.range(0, children.length)
+                        .filter(i -> actual[i] != tree.hash(children[i]))
+                        .map(i -> children[i])
+                        .toArray();
+            }
+            if (frontier.length == 0) continue; // caught up while we walked
+
+            Map<String, String> held = node.merkleEntries(dep, frontier);
+            Map<String, String> wanted = tree.entries(frontier);
+            calls++;
+            Set<String> names = new HashSet<>(held.keySet());
+            names.addAll(wanted.keySet());
+            int differing = 0;
+            for (String name : names) {
+                if (unknown.contains(name) || Objects.equals(held.get(name), wanted.get(name))) continue;
+                divergent.computeIfAbsent(name, n -> new HashSet<>()).add(nodeId);
+                differing++;
+            }
+            if (differing > 0) {
+                System.out.println("Coordinator: Node " + nodeId + " differs on " + differing + " files of " + dep
+                        + " (" + frontier.length + " buckets, " + calls + " calls).");
+            }
+        }
+    }
+
+    /**
+     * Asks a replica for the digest of files journaled without one. Under a read lease, so an update
+     * cannot slip in between the answer and recording it.
+     */
+    @SuppressWarnings("try") // the lease is only held, never used
+    private void learnDigests() {
+        int lookups = 0;
+        for (FileMeta fm : CoordinatorImp.filesMeta.values()) {
+            if (fm.getDigest() != null || fm.getNodes().isEmpty()) continue;
+            if (lookups++ == MAX_DIGEST_LOOKUPS_PER_ROUND) return;
+            String fullName = fm.getFullName();
+            try (FileLockManager.Lease lease = CoordinatorImp.fileLocks.acquireRead(fullName, 0)) {
+                for (String nodeId : fm.getNodes()) {
+                    String digest = CoordinatorImp.digestOn(nodeId, fullName);
+                    if (digest != null) {
+                        fm.setDigest(digest);
+                        CoordinatorImp.persistFile(fullName);
+                        break;
+                    }
+                }
+            } catch (ServiceUnavailableException e) {
+                // Being written, that sets the digest anyway
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
+
+/**
+ * Brings one file back in line on the nodes a round found off, then tops it up to its replication
+ * factor. Copies of a deleted file are removed; a replica whose content differs from the digest
+ * stops serving reads until it was copied over again, and an unlisted copy that matches is adopted.
+ */
+class RepairTask implements Dispatcher.Task {
+    String fullName;
+    Set<String> suspects;
+
+    public RepairTask(String fullName, Set<String> suspects) {
+        this.fullName = fullName;
+        this.suspects = suspects;
+    }
+
+    @Override
+    public void run(Dispatcher.Handle handle) throws Exception {
+        FileMeta fm = CoordinatorImp.filesMeta.get(fullName);
+        boolean exists = fm != null && !fm.getNodes().isEmpty();
+        String digest = exists ? fm.getDigest() : null;
+        if (exists && digest == null) return; // nothing to judge copies by yet
+
+        List<String> outdated = new ArrayList<>(); // listed replicas that need copying over
+        List<String> strays = new ArrayList<>(); // unlisted copies of other content
+        List<String> adopted = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (String nodeId : suspects) {
+            NodeInt node = CoordinatorImp.nodes.get(nodeId);
+            if (node == null) continue;
+            String actual;
+            try {
+                actual = node.fileDigest(fullName);
+            } catch (RemoteException e) {
+                continue; // the next round asks again
+            }
+            boolean listed = exists && fm.getNodes().contains(nodeId);
+            if (!exists || (!listed && actual != null && !actual.equals(digest))) {
+                if (actual != null) strays.add(nodeId);
+            } else if (listed && !digest.equals(actual)) {
+                fm.removeNode(nodeId); // no more reads from it until it holds the right content
+                outdated.add(nodeId);
+            } else if (!listed && digest.equals(actual)) {
+                fm.addNode(nodeId);
+                adopted.add(nodeId);
+            }
+        }
+
+        List<String> copied = new ArrayList<>();
+        if (exists) {
+            List<String> sources = fm.getNodes().stream().filter(CoordinatorImp.nodes::containsKey).toList();
+            if (sources.isEmpty()) {
+                // Every copy we know of is off, keep serving them rather than nothing
+                fm.addNodes(outdated);
+                System.err.println("Coordinator: No replica of " + fullName + " matches its digest, cannot repair it.");
+                return;
+            }
+            int wanted = Math.min(CoordinatorImp.replicationFactor(fm.dep), CoordinatorImp.nodes.size());
+            List<String> targets = new ArrayList<>(outdated);
+            // A stale copy only needs the changed blocks, so it beats a node starting from nothing
+            for (String stray : strays) {
+                if (sources.size() + targets.size() < wanted) targets.add(stray);
+            }
+            strays.removeAll(targets);
+            List<String> fresh = new ArrayList<>(CoordinatorImp.nodes.keySet());
+            fresh.removeAll(sources);
+            fresh.removeAll(targets);
+            fresh.removeAll(suspects);
+            int missing = wanted - sources.size() - targets.size();
+            if (missing > 0 && !fresh.isEmpty()) {
+                CoordinatorImp.getBestNode(fresh, fm.getSize()).stream().limit(missing).forEach(targets::add);
+            }
+            if (!targets.isEmpty()) {
+                copied = copy(fm, digest, CoordinatorImp.getBestNode(sources, fm.getSize()).get(0), targets);
+            }
+        }
+
+        for (String nodeId : strays) {
+            NodeInt node = CoordinatorImp.nodes.get(nodeId);
+            if (node == null) continue;
+            try {
+                node.syncDeleteFile(fullName);
+                removed.add(nodeId);
+            } catch (RemoteException e) {
+                System.err.println("Node " + nodeId + " failed to remove its copy of " + fullName + ": " + e.getMessage());
+            }
+        }
+
+        if (!adopted.isEmpty() || !copied.isEmpty() || !outdated.isEmpty()) {
+            CoordinatorImp.persistFile(fullName).join();
+        }
+        if (!adopted.isEmpty() || !copied.isEmpty() || !removed.isEmpty()) {
+            System.out.println("Coordinator: Repaired " + fullName + ": copied to " + copied + ", adopted " + adopted
+                    + ", removed from " + removed);
+        }
+    }
+
+    /**
+     * Copies the file from sourceId to targets, straight to one node or by multicast to several, and
+     * lists every target that ends up with the right digest as a replica.
+     */
+    private List<String> copy(FileMeta fm, String digest, String sourceId, List<String> targets) {
+        NodeInt source = CoordinatorImp.nodes.get(sourceId);
+        long size = fm.getSize();
+        List<String> copied = new ArrayList<>();
+        long startedAt = CoordinatorImp.increaseLoad(sourceId, size);
+        try {
+            if (targets.size() == 1) {
+                NodeInt target = CoordinatorImp.nodes.get(targets.get(0));
+                if (target != null) target.replicateFrom(fullName, source);
+            } else {
+                source.syncFile(fullName, targets);
+            }
+        } catch (RemoteException e) {
+            System.err.println("Coordinator: Copying " + fullName + " from " + sourceId + " failed: " + e.getMessage());
+        } finally {
+            CoordinatorImp.decreaseLoad(sourceId, size, startedAt);
+        }
+        for (String targetId : targets) {
+            if (digest.equals(CoordinatorImp.digestOn(targetId, fullName))) {
+                fm.addNode(targetId);
+                copied.add(targetId);
+            }
+        }
+        return copied;
+    }
+}
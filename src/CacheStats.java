@@ -0,0 +1,64 @@
+import java.io.Serializable;
+
+/**
+ * Counters of a node's {@link FileCache}, for sizing its byte budget.
+ */
+public class CacheStats implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long rejections;
+    private final int entries;
+    private final long bytes;
+    private final long capacity;
+
+    public CacheStats(long hits, long misses, long evictions, long rejections, int entries, long bytes, long capacity) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.rejections = rejections;
+        this.entries = entries;
+        this.bytes = bytes;
+        this.capacity = capacity;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getRejections() {
+        return rejections;
+    }
+
+    public int getEntries() {
+        return entries;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d hits, %d misses (%.1f%%), %d entries in %d of %d bytes, %d evicted, %d not admitted",
+                hits, misses, getHitRate() * 100, entries, bytes, capacity, evictions, rejections);
+    }
+}
@@ -0,0 +1,525 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed store: files are cut into chunks by {@link Chunker}, each distinct chunk is kept
+ * once under .chunks/ by its SHA-256, and every file is a manifest under .manifests/ listing its
+ * chunks. The same attachment in three departments costs one copy of its chunks.
+ * <p>
+ * A chunk's reference count is the number of manifests naming it. Counts live in memory and are
+ * rebuilt from the manifests on start, which also sweeps chunks a crash left unreferenced.
+ * Writers pin the chunks they are about to reference so a concurrent delete cannot collect them
+ * before the new manifest is in place, and readers pin the chunks of the manifest they opened
+ * until they close the file. An interrupted upload hands its pins to a .pins file in the
+ * staging area, which counts like a manifest until the upload resumes or expires.
+ */
+class ChunkedFileStore implements FileStore {
+    private static final String CHUNKS_DIR = ".chunks";
+    private static final String MANIFESTS_DIR = ".manifests";
+    private static final String PINS_SUFFIX = ".pins"; // Chunks held for an interrupted upload
+
+    private final Path chunksDir;
+    private final Path manifestsDir;
+    private final Path stagingDir;
+    private final Map<String, Integer> references = new HashMap<>(); // guarded by this
+
+    ChunkedFileStore(Path basePath) throws IOException {
+        this.chunksDir = basePath.resolve(CHUNKS_DIR);
+        this.manifestsDir = basePath.resolve(MANIFESTS_DIR);
+        this.stagingDir = basePath.resolve(STAGING_DIR);
+        Files.createDirectories(chunksDir);
+        Files.createDirectories(manifestsDir);
+        Files.createDirectories(stagingDir);
+        rebuildReferences();
+    }
+
+    private void rebuildReferences() throws IOException {
+        try (Stream<Path> manifests = Files.walk(manifestsDir)) {
+            for (Path manifest : (Iterable<Path>) manifests.filter(Files::isRegularFile)::iterator) {
+                for (String hash : uniqueHashes(readManifest(manifest))) {
+                    references.merge(hash, 1, Integer::sum);
+                }
+            }
+        }
+        try (Stream<Path> held = Files.list(stagingDir)) {
+            for (Path pins : (Iterable<Path>) held.filter(p -> p.getFileName().toString().endsWith(PINS_SUFFIX))::iterator) {
+                for (String hash : uniqueHashes(readManifest(pins))) {
+                    references.merge(hash, 1, Integer::sum);
+                }
+            }
+        }
+        int swept = 0;
+        try (Stream<Path> chunks = Files.walk(chunksDir)) {
+            for (Path chunk : (Iterable<Path>) chunks.filter(Files::isRegularFile)::iterator) {
+                if (!references.containsKey(chunk.getFileName().toString())) {
+                    Files.deleteIfExists(chunk);
+                    swept++;
+                }
+            }
+        }
+        if (swept > 0) {
+            System.out.println("Chunk store " + chunksDir + ": removed " + swept + " unreferenced chunks");
+        }
+    }
+
+    private Path chunkPath(String hash) {
+        return chunksDir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private Path manifestPath(String name) {
+        return manifestsDir.resolve(name);
+    }
+
+    @Override
+    public boolean exists(String name) {
+        return Files.exists(manifestPath(name));
+    }
+
+    @Override
+    public FileChannel openRead(String name) throws IOException {
+        List<Chunker.Chunk> chunks;
+        Set<String> pinned;
+        synchronized (this) {
+            // Under the same monitor as delete and publish, so no chunk goes between reading and pinning
+            chunks = readManifest(manifestPath(name));
+            pinned = uniqueHashes(chunks);
+            for (String hash : pinned) references.merge(hash, 1, Integer::sum);
+        }
+        Path[] paths = new Path[chunks.size()];
+        long[] offsets = new long[chunks.size() + 1];
+        for (int i = 0; i < chunks.size(); i++) {
+            paths[i] = chunkPath(chunks.get(i).getHash());
+            offsets[i + 1] = offsets[i] + chunks.get(i).getLength();
+        }
+        return new ChunkedFileChannel(paths, offsets, () -> release(pinned));
+    }
+
+    @Override
+    public List<Chunker.Chunk> chunks(String name) throws IOException {
+        return readManifest(manifestPath(name));
+    }
+
+    @Override
+    public Path stagingFile() throws IOException {
+        return Files.createTempFile(stagingDir, "write-", ".part");
+    }
+
+    @Override
+    public void commit(String name, Path staged) throws IOException {
+        Set<String> pinned = new HashSet<>();
+        try {
+            List<Chunker.Chunk> chunks;
+            try (FileChannel file = FileChannel.open(staged, StandardOpenOption.READ)) {
+                chunks = Chunker.split(file);
+                for (Chunker.Chunk chunk : chunks) {
+                    if (pinned.contains(chunk.getHash()) || pin(chunk.getHash())) {
+                        pinned.add(chunk.getHash());
+                        continue;
+                    }
+                    Path tmp = Files.createTempFile(stagingDir, "chunk-", ".part");
+                    try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                        Transfers.send(file, chunk.getOffset(), chunk.getLength(), out);
+                        out.force(false);
+                    }
+                    storeChunk(tmp, chunk.getHash());
+                    pinned.add(chunk.getHash());
+                }
+            }
+            publish(name, chunks);
+            pinned.clear();
+            Files.deleteIfExists(staged);
+        } finally {
+            release(pinned);
+        }
+    }
+
+    @Override
+    public boolean delete(String name) throws IOException {
+        Path manifest = manifestPath(name);
+        synchronized (this) {
+            if (!Files.exists(manifest)) return false;
+            Set<String> old = uniqueHashes(readManifest(manifest));
+            Files.delete(manifest);
+            release(old);
+        }
+        return true;
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        return FileStore.namesUnder(manifestsDir);
+    }
+
+    @Override
+    public long receiveDelta(String name, String transferId, ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        FileStore.checkTransferId(transferId);
+        Path spool = transferId != null ? stagingDir.resolve("update-" + transferId + ".ops") : null;
+        Path staged = stagingFile();
+        try (FileChannel base = exists(name) ? openRead(name) : null) {
+            long length = DeltaSync.receive(in, out, base, staged, stagingDir, spool);
+            commit(name, staged);
+            return length;
+        } finally {
+            Files.deleteIfExists(staged);
+        }
+    }
+
+    @Override
+    public long receiveChunks(String name, String transferId, ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        FileStore.checkTransferId(transferId);
+        Chunker.requestChunks(out);
+        DataInputStream offerIn = new DataInputStream(new BufferedInputStream(Channels.newInputStream(in)));
+        List<Chunker.Chunk> offer = Chunker.readOffer(offerIn);
+
+        // Chunks an interrupted attempt already stored are still referenced by its pins file
+        Set<String> pinned = transferId != null ? takeHeld(transferId) : new HashSet<>();
+        try {
+            // Ask only for chunks we hold nowhere yet, and for each of those only once
+            BitSet wanted = new BitSet(offer.size());
+            Set<String> requested = new HashSet<>();
+            for (int i = 0; i < offer.size(); i++) {
+                String hash = offer.get(i).getHash();
+                if (pinned.contains(hash) || requested.contains(hash)) continue;
+                if (pin(hash)) {
+                    pinned.add(hash);
+                } else {
+                    requested.add(hash);
+                    wanted.set(i);
+                }
+            }
+            Chunker.writeWanted(wanted, new DataOutputStream(Channels.newOutputStream(out)));
+
+            long received = 0;
+            byte[] buffer = new byte[Chunker.MAX_CHUNK];
+            MessageDigest digest = Chunker.sha256();
+            for (int i = wanted.nextSetBit(0); i >= 0; i = wanted.nextSetBit(i + 1)) {
+                Chunker.Chunk chunk = offer.get(i);
+                offerIn.readFully(buffer, 0, chunk.getLength());
+                digest.update(buffer, 0, chunk.getLength());
+                if (!HexFormat.of().formatHex(digest.digest()).equals(chunk.getHash())) {
+                    throw new IOException("Chunk " + i + " of " + name + " does not match its hash");
+                }
+                Path tmp = Files.createTempFile(stagingDir, "chunk-", ".part");
+                try (FileChannel file = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                    ByteBuffer data = ByteBuffer.wrap(buffer, 0, chunk.getLength());
+                    while (data.hasRemaining()) {
+                        file.write(data);
+                    }
+                    file.force(false);
+                }
+                storeChunk(tmp, chunk.getHash());
+                pinned.add(chunk.getHash());
+                received += chunk.getLength();
+            }
+
+            publish(name, offer);
+            pinned.clear();
+            return received;
+        } catch (IOException e) {
+            if (transferId != null) {
+                hold(transferId, offer, pinned);
+                pinned.clear();
+            }
+            throw e;
+        } finally {
+            release(pinned);
+        }
+    }
+
+    private Path pinsPath(String transferId) {
+        return stagingDir.resolve("upload-" + transferId + PINS_SUFFIX);
+    }
+
+    /**
+     * Hands the references in pinned over to a pins file, so the chunks outlive this attempt.
+     */
+    private void hold(String transferId, List<Chunker.Chunk> offer, Set<String> pinned) throws IOException {
+        List<Chunker.Chunk> held = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (Chunker.Chunk chunk : offer) {
+            if (pinned.contains(chunk.getHash()) && seen.add(chunk.getHash())) held.add(chunk);
+        }
+        writeManifest(pinsPath(transferId), held);
+    }
+
+    /**
+     * Takes over the references held by the pins file of transferId, if there is one.
+     */
+    private synchronized Set<String> takeHeld(String transferId) throws IOException {
+        Path pins = pinsPath(transferId);
+        if (!Files.exists(pins)) return new HashSet<>();
+        Set<String> held = uniqueHashes(readManifest(pins));
+        Files.delete(pins);
+        return held;
+    }
+
+    @Override
+    public void expireStaged(long maxAgeMs) throws IOException {
+        long cutoff = System.currentTimeMillis() - maxAgeMs;
+        try (Stream<Path> staged = Files.list(stagingDir)) {
+            for (Path file : (Iterable<Path>) staged::iterator) {
+                if (Files.getLastModifiedTime(file).toMillis() >= cutoff) continue;
+                if (file.getFileName().toString().endsWith(PINS_SUFFIX)) {
+                    synchronized (this) {
+                        if (!Files.exists(file)) continue;
+                        Set<String> held = uniqueHashes(readManifest(file));
+                        Files.delete(file);
+                        release(held);
+                    }
+                } else {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes a reference on hash if the chunk is already stored.
+     */
+    private synchronized boolean pin(String hash) {
+        if (!references.containsKey(hash)) return false;
+        references.merge(hash, 1, Integer::sum);
+        return true;
+    }
+
+    /**
+     * Moves a verified chunk into place and takes a reference on it.
+     */
+    private synchronized void storeChunk(Path tmp, String hash) throws IOException {
+        Path target = chunkPath(hash);
+        if (references.containsKey(hash)) {
+            Files.deleteIfExists(tmp);
+        } else {
+            Files.createDirectories(target.getParent());
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        references.merge(hash, 1, Integer::sum);
+    }
+
+    private synchronized void release(Set<String> hashes) throws IOException {
+        for (String hash : hashes) {
+            Integer count = references.get(hash);
+            if (count == null) continue;
+            if (count > 1) {
+                references.put(hash, count - 1);
+            } else {
+                references.remove(hash);
+                Files.deleteIfExists(chunkPath(hash));
+            }
+        }
+    }
+
+    /**
+     * Replaces the manifest of name. The pins the caller took become the new manifest's references,
+     * the old manifest's references are dropped.
+     */
+    private void publish(String name, List<Chunker.Chunk> chunks) throws IOException {
+        Path manifest = manifestPath(name);
+        Files.createDirectories(manifest.getParent());
+        Path tmp = Files.createTempFile(stagingDir, "manifest-", ".part");
+        try {
+            writeManifest(tmp, chunks);
+            synchronized (this) {
+                Set<String> old = Files.exists(manifest) ? uniqueHashes(readManifest(manifest)) : Set.of();
+                Files.move(tmp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                release(old);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void writeManifest(Path path, List<Chunker.Chunk> chunks) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(chunks.size());
+            for (Chunker.Chunk chunk : chunks) {
+                out.write(HexFormat.of().parseHex(chunk.getHash()));
+                out.writeInt(chunk.getLength());
+            }
+        }
+    }
+
+    private static List<Chunker.Chunk> readManifest(Path manifest) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifest)))) {
+            return Chunker.readOffer(in);
+        }
+    }
+
+    private static Set<String> uniqueHashes(List<Chunker.Chunk> chunks) {
+        Set<String> hashes = new HashSet<>();
+        for (Chunker.Chunk chunk : chunks) {
+            hashes.add(chunk.getHash());
+        }
+        return hashes;
+    }
+}
+
+/**
+ * Read-only FileChannel over the chunks of one manifest, so the transfer code can stream a chunked
+ * file exactly like a plain one. transferTo still goes chunk by chunk through the kernel.
+ * The chunks stay pinned until the channel is closed.
+ */
+class ChunkedFileChannel extends FileChannel {
+    private final Path[] chunks;
+    private final long[] offsets; // offsets[i] is where chunk i starts, offsets[length] the file size
+    private long position;
+    private int openIndex = -1;
+    private FileChannel openChunk;
+    private final Closeable unpin;
+
+    ChunkedFileChannel(Path[] chunks, long[] offsets, Closeable unpin) {
+        this.chunks = chunks;
+        this.offsets = offsets;
+        this.unpin = unpin;
+    }
+
+    private int indexOf(long position) {
+        // Chunks are never empty, so an exact hit is the chunk starting there
+        int index = Arrays.binarySearch(offsets, position);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    private FileChannel chunk(int index) throws IOException {
+        if (openIndex != index) {
+            if (openChunk != null) openChunk.close();
+            openChunk = FileChannel.open(chunks[index], StandardOpenOption.READ);
+            openIndex = index;
+        }
+        return openChunk;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst, long position) throws IOException {
+        if (position >= size()) return -1;
+        int total = 0;
+        while (dst.hasRemaining() && position < size()) {
+            int index = indexOf(position);
+            long inChunk = position - offsets[index];
+            int want = (int) Math.min(dst.remaining(), offsets[index + 1] - position);
+            ByteBuffer slice = dst.slice();
+            slice.limit(want);
+            int n = chunk(index).read(slice, inChunk);
+            if (n <= 0) throw new EOFException("Chunk " + chunks[index] + " is shorter than its manifest says");
+            dst.position(dst.position() + n);
+            position += n;
+            total += n;
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        int n = read(dst, position);
+        if (n > 0) position += n;
+        return n;
+    }
+
+    @Override
+    public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int n = read(dsts[i]);
+            if (n < 0) return total == 0 ? -1 : total;
+            total += n;
+            if (dsts[i].hasRemaining()) break;
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        long sent = 0;
+        long end = Math.min(size(), position + count);
+        while (position + sent < end) {
+            long at = position + sent;
+            int index = indexOf(at);
+            long n = chunk(index).transferTo(at - offsets[index], Math.min(end, offsets[index + 1]) - at, target);
+            if (n <= 0) break;
+            sent += n;
+        }
+        return sent;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public FileChannel position(long newPosition) {
+        this.position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() {
+        return offsets[offsets.length - 1];
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public FileChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public void force(boolean metaData) {
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) {
+        throw new UnsupportedOperationException("Chunked files cannot be mapped");
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException("Chunked files cannot be locked");
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException("Chunked files cannot be locked");
+    }
+
+    @Override
+    protected synchronized void implCloseChannel() throws IOException {
+        try {
+            if (openChunk != null) openChunk.close();
+        } finally {
+            unpin.close();
+        }
+    }
+}
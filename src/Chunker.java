@@ -0,0 +1,202 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Content-defined chunking with a gear hash: a cut is made wherever the hash of the last bytes
+ * matches a mask, so an insert only changes the chunks around it and identical content lands in
+ * identical chunks no matter where it sits in a file. Chunks are named by their SHA-256.
+ * <p>
+ * Also holds the offer protocol used to push a file to a node that may already hold some chunks.
+ * The receiver speaks first, so a store that shares nothing between files never makes the sender
+ * hash anything:
+ * <pre>
+ * receiver: long -1 to be offered chunks, or the offset to stream plain bytes from
+ * chunks:   sender int count, count * (byte[32] sha256, int length)
+ *           receiver int n, byte[n] bitset of wanted chunks
+ *           sender bytes of every wanted chunk, in order
+ * stream:   sender long from, long size, then bytes from..size
+ * </pre>
+ */
+public final class Chunker {
+    static final int MIN_CHUNK = 16 * 1024;
+    static final int MAX_CHUNK = 256 * 1024;
+    private static final long CUT_MASK = 0xFFFFL << 48; // 16 bits, so about 64 KB past MIN_CHUNK on average
+    private static final int READ_BUFFER = 1024 * 1024;
+    static final int HASH_LENGTH = 32;
+    private static final long OFFER_CHUNKS = -1;
+
+    // Fixed seed, every client and node must cut at the same places
+    private static final long[] GEAR = new SplittableRandom(0x6c6f6164L).longs(256).toArray();
+
+    private Chunker() {
+    }
+
+    public static final class Chunk {
+        final String hash;
+        final long offset;
+        final int length;
+
+        Chunk(String hash, long offset, int length) {
+            this.hash = hash;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String getHash() { return hash; }
+        public long getOffset() { return offset; }
+        public int getLength() { return length; }
+    }
+
+    public static List<Chunk> split(FileChannel file) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER);
+        long position = 0;
+        long chunkStart = 0;
+        int chunkLength = 0;
+        long hash = 0;
+
+        while (true) {
+            buffer.clear();
+            int n = file.read(buffer, position);
+            if (n <= 0) break;
+            byte[] data = buffer.array();
+            int segmentStart = 0;
+            for (int i = 0; i < n; i++) {
+                hash = (hash << 1) + GEAR[data[i] & 0xff];
+                chunkLength++;
+                if ((chunkLength >= MIN_CHUNK && (hash & CUT_MASK) == 0) || chunkLength >= MAX_CHUNK) {
+                    digest.update(data, segmentStart, i + 1 - segmentStart);
+                    chunks.add(new Chunk(HexFormat.of().formatHex(digest.digest()), chunkStart, chunkLength));
+                    chunkStart += chunkLength;
+                    chunkLength = 0;
+                    hash = 0;
+                    segmentStart = i + 1;
+                }
+            }
+            digest.update(data, segmentStart, n - segmentStart);
+            position += n;
+        }
+        if (chunkLength > 0) {
+            chunks.add(new Chunk(HexFormat.of().formatHex(digest.digest()), chunkStart, chunkLength));
+        }
+        return chunks;
+    }
+
+    /**
+     * Offers source as chunks and sends only the ones the receiver asks for, or streams it from
+     * where the receiver says if it takes plain bytes. chunks may be null, in which case source is
+     * split here when needed.
+     *
+     * @return number of bytes sent
+     */
+    public static long send(FileChannel source, List<Chunk> chunks, ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        long request = readLongs(in, 1)[0];
+        if (request != OFFER_CHUNKS) {
+            long size = source.size();
+            long from = request >= 0 && request <= size ? request : 0; // The receiver's part is stale, start over
+            writeLongs(out, from, size);
+            return Transfers.send(source, from, size - from, out);
+        }
+        if (chunks == null) {
+            chunks = split(source);
+        }
+        DataOutputStream offer = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out), READ_BUFFER));
+        offer.writeInt(chunks.size());
+        for (Chunk chunk : chunks) {
+            offer.write(HexFormat.of().parseHex(chunk.hash));
+            offer.writeInt(chunk.length);
+        }
+        offer.flush();
+
+        DataInputStream reply = new DataInputStream(Channels.newInputStream(in));
+        byte[] wantedBytes = new byte[reply.readInt()];
+        reply.readFully(wantedBytes);
+        BitSet wanted = BitSet.valueOf(wantedBytes);
+
+        long sent = 0;
+        for (int i = wanted.nextSetBit(0); i >= 0 && i < chunks.size(); i = wanted.nextSetBit(i + 1)) {
+            Chunk chunk = chunks.get(i);
+            sent += Transfers.send(source, chunk.offset, chunk.length, out);
+        }
+        return sent;
+    }
+
+    static List<Chunk> readOffer(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) throw new IOException("Invalid chunk count " + count);
+        List<Chunk> chunks = new ArrayList<>(count);
+        long offset = 0;
+        byte[] hash = new byte[HASH_LENGTH];
+        for (int i = 0; i < count; i++) {
+            in.readFully(hash);
+            int length = in.readInt();
+            if (length <= 0 || length > MAX_CHUNK) throw new IOException("Invalid chunk length " + length);
+            chunks.add(new Chunk(HexFormat.of().formatHex(hash), offset, length));
+            offset += length;
+        }
+        return chunks;
+    }
+
+    /**
+     * Receiver side: asks to be offered chunks.
+     */
+    static void requestChunks(WritableByteChannel out) throws IOException {
+        writeLongs(out, OFFER_CHUNKS);
+    }
+
+    /**
+     * Receiver side: asks for plain bytes from offset on.
+     *
+     * @return the offset the sender streams from, which is 0 if it could not resume, and the size
+     */
+    static long[] requestStream(long offset, ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        writeLongs(out, offset);
+        long[] answer = readLongs(in, 2);
+        if (answer[0] < 0 || answer[0] > answer[1]) throw new IOException("Invalid stream range " + answer[0] + ".." + answer[1]);
+        return answer;
+    }
+
+    private static void writeLongs(WritableByteChannel out, long... values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8 * values.length);
+        for (long value : values) buffer.putLong(value);
+        Transfers.send(buffer.flip(), out);
+    }
+
+    private static long[] readLongs(ReadableByteChannel in, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8 * count);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) throw new EOFException("Connection closed before the transfer started");
+        }
+        buffer.flip();
+        long[] values = new long[count];
+        for (int i = 0; i < count; i++) values[i] = buffer.getLong();
+        return values;
+    }
+
+    static void writeWanted(BitSet wanted, DataOutputStream out) throws IOException {
+        byte[] bytes = wanted.toByteArray();
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.flush();
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
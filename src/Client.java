@@ -1,11 +1,26 @@
 import javax.naming.ServiceUnavailableException;
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.rmi.Naming;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
 import java.security.InvalidParameterException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
 
 public class Client {
 
@@ -14,10 +29,18 @@ public class Client {
     private final Scanner scanner;
     private final String userUploadPath = "storage/upload/";
     private final String userDownloadPath = "storage/downloads/";
-    private boolean isManager;
+    private static final long OPERATION_TIMEOUT_MS = 60 * 1000; // How long to wait for the coordinator to confirm a transfer
+    private static final int DOWNLOAD_CONNECTIONS = 16; // Ranges received at once during a download
+    private static final int ACCEPT_POLL_MS = 5 * 1000; // How often a stalled transfer checks on its operation
+    private static final int MAX_TRANSFER_ATTEMPTS = 5; // Interrupted transfers are resumed this many times
+    private static final long TRANSFER_RETRY_DELAY_MS = 2 * 1000;
+    private static final String PARTIAL_DIR = ".partial"; // Downloads in progress, under the download path
+    private SessionSnapshot session; // Fetched once per login
+    private final ListingCache listings;
 
     public Client(CoordinatorInt coordinator) {
         this.coordinator = coordinator;
+        this.listings = new ListingCache(coordinator);
         scanner = new Scanner(System.in);
     }
 
@@ -29,7 +52,7 @@ public class Client {
             if (!isLoggedIn()){
                 try {
                     this.token = this.login();
-                    this.isManager = coordinator.isManager(token);
+                    this.startSession();
                 }
                 catch (InvalidParameterException exception){
                     System.out.println("Invalid username or password, try again");
@@ -52,6 +75,8 @@ public class Client {
                 }
                 catch (IllegalStateException exception){
                     System.out.println("Application is terminated");
+                    coordinator.logout(token);
+                    listings.close();
                     working = false;
                 }
             }
@@ -59,12 +84,15 @@ public class Client {
     }
 
     private boolean isLoggedIn() {
-        try {
-            coordinator.isValidToken(token);
-            return true;
-        } catch (Exception e) {
-            return false;
-        }
+        // The token carries its own expiry, no need to ask the coordinator
+        TokenGenerator.Claims claims = TokenGenerator.peek(token);
+        return claims != null && claims.getExpiresAt() > System.currentTimeMillis();
+    }
+
+    private void startSession() throws RemoteException {
+        // Departments, permissions and listings in one round trip, after that listings only move on change
+        session = coordinator.bootstrap(token);
+        listings.start(token, session);
     }
 
     private String login() throws RemoteException, InvalidParameterException {
@@ -81,7 +109,7 @@ public class Client {
 
     private String chooseDepartment() throws RemoteException, InvalidParameterException, IllegalStateException {
 
-        List<String> departments = coordinator.getDepartments(token);
+        List<String> departments = session.getDepartments();
 
         System.out.println("Available departments: ");
         int choice = 0;
@@ -109,16 +137,17 @@ public class Client {
 
     private List<String> getAllowedActions(String department) throws RemoteException, InvalidParameterException {
         List<String> actions = new ArrayList<>(List.of("Get files"));
-        if (coordinator.otherActionsAllowed(this.token, department)){
+        if (session.canWrite(department)){
             actions.addAll(Arrays.asList(
                     "Upload a file",
                     "Update a file",
                     "Delete a file"
             ));
         }
-        if (isManager){
+        if (session.isManager()){
             actions.add("Add an employee");
             actions.add("Sync now");
+            actions.add("Show metrics");
         }
         return actions;
     }
@@ -127,16 +156,16 @@ public class Client {
 
         switch (action) {
             case 1:
-                this.downloadFile(department);
+                this.downloadFiles(department);
                 break;
             case 2:
-                this.uploadFile(department);
+                this.uploadFiles(department);
                 break;
             case 3:
                 this.updateFile(department);
                 break;
             case 4:
-                this.deleteFile(department);
+                this.deleteFiles(department);
                 break;
             case 5:
                 this.addEmployee(department);
@@ -144,66 +173,303 @@ public class Client {
             case 6:
                 this.syncNow();
                 break;
+            case 7:
+                this.showMetrics();
+                break;
             default:
                 throw new IllegalArgumentException("Invalid action, something went wrong");
         }
     }
 
-    private void downloadFile(String department) throws RemoteException, InvalidParameterException, IllegalStateException, IllegalAccessException {
+    private void downloadFiles(String department) throws RemoteException, InvalidParameterException, IllegalStateException, IllegalAccessException {
 
-        String fileName = getFilenameFromUserChoice(
+        List<String> fileNames = getFilenamesFromUserChoice(
                     this.getDepartmentFiles(department),
-                    "Choose a file to download: ");
+                    "Choose files to download (e.g. 1,3 or * for all): ");
 
-        try (ServerSocket socket = new ServerSocket(8000);
-        ) {
-            int port = socket.getLocalPort();
-
-            coordinator.fileGet(token, "localhost", port, fileName, department);
-
-            try (Socket nodeConnection = socket.accept();
-                 InputStream fileStream = nodeConnection.getInputStream();
-                 FileOutputStream fileOut = new FileOutputStream(userDownloadPath + fileName)){
+        if (fileNames.size() == 1) {
+            String fileName = fileNames.get(0);
+            retryTransfer("Download of " + fileName, () -> downloadOnce(department, fileName, bytes -> {}));
+            return;
+        }
 
-                fileStream.transferTo(fileOut);
+        // One round trip starts as many downloads as there are free slots, a file that fails is then
+        // retried on its own. Files are only planned once a slot is free, nodes would otherwise wait on our accept
+        try (TransferManager transfers = TransferManager.fromConfig()) {
+            for (int from = 0; from < fileNames.size(); ) {
+                int to = Math.min(from + transfers.freeSlots(), fileNames.size());
+                startDownloads(department, List.copyOf(fileNames.subList(from, to)), transfers);
+                from = to;
             }
-
-
+            reportFailures("Download", transfers);
         } catch (IOException | ServiceUnavailableException e) {
             throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
         }
     }
 
-    private void uploadFile(String department) throws InvalidParameterException, IllegalStateException, IllegalAccessException {
+    private void startDownloads(String department, List<String> fileNames, TransferManager transfers) throws IOException, ServiceUnavailableException, InterruptedException {
+        List<ServerSocketChannel> sockets = new ArrayList<>();
+        try {
+            List<Integer> ports = new ArrayList<>();
+            List<Long> resumeVersions = new ArrayList<>();
+            List<Long> resumeFroms = new ArrayList<>();
+            for (String fileName : fileNames) {
+                ServerSocketChannel socket = Transfers.listen(0);
+                sockets.add(socket);
+                ports.add(Transfers.localPort(socket));
+                long[] resume = readDownloadState(partialState(fileName));
+                resumeVersions.add(resume != null ? resume[0] : -1);
+                resumeFroms.add(resume != null ? resume[2] : 0);
+            }
+            List<DownloadPlan> plans = coordinator.fileGetRangedMany(token, "localhost", ports, department, fileNames, resumeVersions, resumeFroms);
+
+            for (int i = 0; i < fileNames.size(); i++) {
+                String fileName = fileNames.get(i);
+                ServerSocketChannel socket = sockets.get(i);
+                DownloadPlan plan = plans.get(i);
+                transfers.submit(fileName, plan.getSize() - plan.getStart(), () -> {
+                    try (socket) {
+                        receivePlanned(fileName, socket, plan, transfers::progress);
+                    } catch (IOException e) {
+                        System.out.println("Download of " + fileName + " interrupted (" + e.getMessage() + "), resuming");
+                        retryTransfer("Download of " + fileName, () -> downloadOnce(department, fileName, transfers::progress));
+                    }
+                });
+            }
+        } catch (IOException | ServiceUnavailableException | InterruptedException | RuntimeException e) {
+            for (ServerSocketChannel socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+            throw e;
+        }
+    }
 
-        List<String> fileNames = getFilesFromUploadDirectory();
+    /**
+     * Prints what a batch achieved, and fails the action if any of its transfers failed.
+     */
+    private static void reportFailures(String kind, TransferManager transfers) throws InterruptedException {
+        List<TransferManager.Failure> failures = transfers.await();
+        System.out.println(transfers.summary());
+        if (failures.isEmpty()) return;
+        failures.forEach(failure -> System.out.println(kind + " of " + failure.name() + " failed: " + failure.cause().getMessage()));
+        throw new InvalidParameterException(failures.size() + " transfers failed");
+    }
 
-        String fileName = getFilenameFromUserChoice(
-                fileNames,
-                "Choose the file that you want to upload to the cloud: \n" +
-                        "(put the file in " + userUploadPath + " dir to appear here):"
-        );
+    private void downloadOnce(String department, String fileName, LongConsumer progress) throws IOException, ServiceUnavailableException {
+        Path state = partialState(fileName);
+        Files.createDirectories(state.getParent());
+        long[] resume = readDownloadState(state);
 
+        try (ServerSocketChannel socket = Transfers.listen(0)) {
+            int port = Transfers.localPort(socket);
 
-        try (ServerSocket socket = new ServerSocket(8000)) {
-            int port = socket.getLocalPort();
+            // Large files arrive as ranges from several replicas at once
+            DownloadPlan plan = coordinator.fileGetRanged(token, "localhost", port, fileName, department,
+                    resume != null ? resume[0] : -1, resume != null ? resume[2] : 0);
+            receivePlanned(fileName, socket, plan, progress);
+        }
+    }
 
-            String fullName = getFullName(department, fileName);
+    private Path partialState(String fileName) {
+        return Paths.get(userDownloadPath, PARTIAL_DIR, fileName + ".state");
+    }
 
-            coordinator.fileCreate(token, "localhost", port, fullName);
+    /**
+     * Receives a planned download into the partial area and moves it into place once complete.
+     * progress is told the length of every part that reached the disk.
+     */
+    private void receivePlanned(String fileName, ServerSocketChannel socket, DownloadPlan plan, LongConsumer progress) throws IOException {
+        // Parts land in a partial file, and the state file records every part that reached the disk
+        Path partial = Paths.get(userDownloadPath, PARTIAL_DIR, fileName);
+        Path state = partialState(fileName);
+        Files.createDirectories(partial.getParent());
+
+        try (FileChannel fileOut = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (plan.getStart() == 0) {
+                // Nothing from before is usable, the file changed or there was no earlier attempt
+                fileOut.truncate(0);
+                try (DataOutputStream header = new DataOutputStream(Files.newOutputStream(state))) {
+                    header.writeLong(plan.getVersion());
+                    header.writeLong(plan.getSize());
+                }
+            } else {
+                System.out.println("Resuming download of " + fileName + " at byte " + plan.getStart());
+            }
+            try (FileChannel stateOut = FileChannel.open(state, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                receiveRanges(fileName, socket, fileOut, plan, stateOut, progress);
+            }
 
-            try (Socket nodeConnection = socket.accept();
-                 OutputStream nodeOut = nodeConnection.getOutputStream();
-                 FileInputStream fileIn = new FileInputStream(userUploadPath + fileName)) {
+            awaitOperation(plan.getOperationId());
+        }
+        Files.move(partial, Paths.get(userDownloadPath, fileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.delete(state);
+    }
 
-                fileIn.transferTo(nodeOut);
+    /**
+     * Reads what an interrupted download left behind.
+     *
+     * @return version, size and the length of the contiguous prefix already on disk, or null
+     */
+    private static long[] readDownloadState(Path state) throws IOException {
+        if (!Files.exists(state)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(state)))) {
+            long version = in.readLong();
+            long size = in.readLong();
+            TreeMap<Long, Long> parts = new TreeMap<>();
+            try {
+                while (true) {
+                    long offset = in.readLong();
+                    parts.put(offset, in.readLong());
+                }
+            } catch (EOFException e) {
+                // A record cut short by the interruption is simply not counted
             }
+            long prefix = 0;
+            for (Map.Entry<Long, Long> part : parts.entrySet()) {
+                if (part.getKey() > prefix) break;
+                prefix = Math.max(prefix, part.getKey() + part.getValue());
+            }
+            return new long[]{version, size, prefix};
+        } catch (EOFException e) {
+            return null;
+        }
+    }
 
-        } catch (IOException | ServiceUnavailableException e) {
+    private void receiveRanges(String fileName, ServerSocketChannel socket, FileChannel fileOut, DownloadPlan plan, FileChannel stateOut, LongConsumer progress) throws IOException {
+        // transferFrom writes nothing past the end of a file, so size it up front for out of order ranges
+        if (plan.getSize() > 0) {
+            fileOut.write(ByteBuffer.wrap(new byte[1]), plan.getSize() - 1);
+        }
+        Set<Long> received = ConcurrentHashMap.newKeySet();
+        AtomicInteger receiving = new AtomicInteger();
+        ExecutorService receivers = Executors.newFixedThreadPool(DOWNLOAD_CONNECTIONS);
+        try {
+            socket.socket().setSoTimeout(ACCEPT_POLL_MS);
+            while (received.size() < plan.getParts()) {
+                // Once every missing part has its connection only a failed one needs another, don't sit in accept
+                synchronized (receiving) {
+                    while (receiving.get() > 0 && received.size() + receiving.get() >= plan.getParts()) {
+                        receiving.wait();
+                    }
+                }
+                if (received.size() >= plan.getParts()) break;
+                SocketChannel nodeConnection;
+                try {
+                    nodeConnection = socket.socket().accept().getChannel();
+                } catch (SocketTimeoutException e) {
+                    // Nothing arrived for a while, make sure the download is still going
+                    OperationStatus status = coordinator.getOperationStatus(token, plan.getOperationId());
+                    if (status.isDone() && received.size() < plan.getParts()) {
+                        throw new IOException("Download stopped after " + received.size() + " of " + plan.getParts() + " parts: " + status);
+                    }
+                    continue;
+                }
+                receiving.incrementAndGet();
+                receivers.execute(() -> {
+                    try (SocketChannel connection = nodeConnection) {
+                        Transfers.writeToken(connection, token);
+                        try (Compression.Link link = Compression.offer(connection, fileName)) {
+                            long[] range = Transfers.readRangeHeader(link.in());
+                            // A part resent after a failure simply overwrites the same bytes
+                            if (Transfers.receive(link.in(), fileOut, range[0]) == range[1]) {
+                                // Only a part that is on disk may be counted by a later resume
+                                fileOut.force(false);
+                                ByteBuffer record = ByteBuffer.allocate(16).putLong(range[0]).putLong(range[1]).flip();
+                                synchronized (stateOut) {
+                                    while (record.hasRemaining()) {
+                                        stateOut.write(record);
+                                    }
+                                }
+                                received.add(range[0]);
+                                progress.accept(range[1]);
+                            }
+                        }
+                    } catch (IOException e) {
+                        System.out.println("A download part failed and will be resent: " + e.getMessage());
+                    } finally {
+                        synchronized (receiving) {
+                            receiving.decrementAndGet();
+                            receiving.notifyAll();
+                        }
+                    }
+                });
+            }
+            fileOut.truncate(plan.getSize());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Download of " + fileName + " interrupted");
+        } finally {
+            receivers.shutdown();
+        }
+    }
+
+    private void uploadFiles(String department) throws InvalidParameterException, IllegalStateException, IllegalAccessException {
+
+        List<String> fileNames = getFilenamesFromUserChoice(
+                getFilesFromUploadDirectory(),
+                "Choose the files that you want to upload to the cloud (e.g. 1,3 or * for all): \n" +
+                        "(put the files in " + userUploadPath + " dir to appear here):"
+        );
+
+        if (fileNames.size() == 1) {
+            uploadFile(department, fileNames.get(0), bytes -> {});
+            listings.invalidate(department);
+            return;
+        }
+
+        // Each upload is its own create, they overlap instead of waiting for one another
+        try (TransferManager transfers = TransferManager.fromConfig()) {
+            for (String fileName : fileNames) {
+                transfers.submit(fileName, Files.size(Paths.get(userUploadPath + fileName)),
+                        () -> uploadFile(department, fileName, transfers::progress));
+            }
+            try {
+                reportFailures("Upload", transfers);
+            } finally {
+                listings.invalidate(department); // even the uploads that went through changed it
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
         }
     }
 
+    private void uploadFile(String department, String fileName, LongConsumer progress) {
+        String fullName = getFullName(department, fileName);
+        Path source = Paths.get(userUploadPath + fileName);
+        // Every attempt carries the same id, so the node keeps what the earlier ones delivered
+        String transferId = UUID.randomUUID().toString();
+
+        retryTransfer("Upload of " + fileName, () -> {
+            try (ServerSocketChannel socket = Transfers.listen(0)) {
+                int port = Transfers.localPort(socket);
+
+                long operationId = coordinator.fileCreate(token, "localhost", port, fullName, Files.size(source), transferId);
+
+                // A chunked node skips chunks it already stores for another file, a plain one takes a stream
+                try (SocketChannel nodeConnection = acceptFor(socket, operationId);
+                     FileChannel fileIn = FileChannel.open(source, StandardOpenOption.READ)) {
+
+                    Transfers.writeToken(nodeConnection, token);
+                    try (Compression.Link link = Compression.offer(nodeConnection, fileName)) {
+                        Chunker.send(fileIn, null, link.in(), link.out());
+                    }
+                    progress.accept(fileIn.size());
+                }
+
+                awaitOperation(operationId);
+            }
+        });
+    }
+
     private void updateFile(String department) throws RemoteException, InvalidParameterException, IllegalStateException, IllegalAccessException {
 
         String originalFile = getFilenameFromUserChoice(
@@ -218,35 +484,89 @@ public class Client {
                             "P.S. the updated fileName doesn't matter, original fileName will persist"
             );
 
+        String fullName = getFullName(department, originalFile);
+        Path source = Paths.get(userUploadPath + updatedFile);
+        String transferId = UUID.randomUUID().toString();
 
-        try (ServerSocket socket = new ServerSocket(8000)) {
-            int port = socket.getLocalPort();
+        retryTransfer("Update of " + originalFile, () -> {
+            try (ServerSocketChannel socket = Transfers.listen(0)) {
+                int port = Transfers.localPort(socket);
 
-            String fullName = getFullName(department, originalFile);
+                long operationId = coordinator.fileUpdate(token, "localhost", port, fullName, Files.size(source), transferId);
 
-            coordinator.fileUpdate(token, "localhost", port, fullName);
+                // The node offers block signatures of its copy and we answer with just the differences
+                try (SocketChannel nodeConnection = acceptFor(socket, operationId);
+                     FileChannel fileIn = FileChannel.open(source, StandardOpenOption.READ)) {
 
-            try (Socket nodeConnection = socket.accept();
-                 OutputStream nodeOut = nodeConnection.getOutputStream();
-                 FileInputStream fileIn = new FileInputStream(userUploadPath + updatedFile)) {
+                    Transfers.writeToken(nodeConnection, token);
+                    try (Compression.Link link = Compression.offer(nodeConnection, originalFile)) {
+                        DeltaSync.send(fileIn, link.in(), link.out());
+                    }
+                }
 
-                fileIn.transferTo(nodeOut);
+                awaitOperation(operationId);
             }
+        });
+    }
 
-        } catch (IOException | ServiceUnavailableException e) {
-            throw new RuntimeException(e);
+    private interface TransferAttempt {
+        void run() throws IOException, ServiceUnavailableException;
+    }
+
+    /**
+     * Runs attempt again after an I/O failure. Attempts pick up where the previous one stopped, so
+     * a dropped connection only costs the bytes that were in flight.
+     */
+    private void retryTransfer(String description, TransferAttempt attempt) {
+        for (int tries = 1; ; tries++) {
+            try {
+                attempt.run();
+                return;
+            } catch (IOException e) {
+                if (tries >= MAX_TRANSFER_ATTEMPTS) throw new RuntimeException(e);
+                System.out.println(description + " interrupted (" + e.getMessage() + "), resuming in " + TRANSFER_RETRY_DELAY_MS / 1000 + "s");
+                try {
+                    Thread.sleep(TRANSFER_RETRY_DELAY_MS);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(interrupted);
+                }
+            } catch (ServiceUnavailableException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Waits for the node serving operationId to connect, giving up once the operation has ended.
+     */
+    private SocketChannel acceptFor(ServerSocketChannel socket, long operationId) throws IOException {
+        socket.socket().setSoTimeout(ACCEPT_POLL_MS);
+        while (true) {
+            try {
+                return socket.socket().accept().getChannel();
+            } catch (SocketTimeoutException e) {
+                OperationStatus status = coordinator.getOperationStatus(token, operationId);
+                if (status.getState() == OperationStatus.State.FAILED) {
+                    throw new InvalidParameterException("Operation failed: " + status.getMessage());
+                }
+                if (status.isDone()) {
+                    throw new IOException("Operation " + operationId + " ended without connecting");
+                }
+            }
         }
     }
 
-    private void deleteFile(String department) throws RemoteException, InvalidParameterException, IllegalStateException, IllegalAccessException {
+    private void deleteFiles(String department) throws RemoteException, InvalidParameterException, IllegalStateException, IllegalAccessException {
 
-        String fileName = getFilenameFromUserChoice(getDepartmentFiles(department),
-                    "Choose the file that you want to delete from cloud: ");
+        List<String> fileNames = getFilenamesFromUserChoice(getDepartmentFiles(department),
+                    "Choose the files that you want to delete from cloud (e.g. 1,3): ");
 
-        String fullName = getFullName(department, fileName);
+        List<String> fullNames = fileNames.stream().map(fileName -> getFullName(department, fileName)).toList();
 
         try {
-            coordinator.fileDelete(token, fullName);
+            awaitOperations(coordinator.fileDeleteMany(token, fullNames));
+            listings.invalidate(department);
         } catch (ServiceUnavailableException e) {
             throw new RuntimeException(e);
         }
@@ -264,16 +584,60 @@ public class Client {
         coordinator.addEmployee(token, username, password, List.of(department));
     }
 
+    private void awaitOperation(long operationId) throws RemoteException, InvalidParameterException {
+        OperationStatus status = coordinator.awaitOperation(token, operationId, OPERATION_TIMEOUT_MS);
+        if (status.getState() == OperationStatus.State.FAILED) {
+            throw new InvalidParameterException("Operation failed: " + status.getMessage());
+        }
+        if (!status.isDone()) {
+            System.out.println("Operation " + operationId + " is still " + status.getState().name().toLowerCase() + ", check again later");
+        }
+    }
+
+    private void awaitOperations(List<Long> operationIds) throws RemoteException, InvalidParameterException {
+        List<String> failures = new ArrayList<>();
+        for (OperationStatus status : coordinator.awaitOperations(token, operationIds, OPERATION_TIMEOUT_MS)) {
+            if (status.getState() == OperationStatus.State.FAILED) {
+                failures.add(status.getMessage());
+            } else if (!status.isDone()) {
+                System.out.println("Operation " + status.getId() + " is still " + status.getState().name().toLowerCase() + ", check again later");
+            }
+        }
+        if (!failures.isEmpty()) {
+            throw new InvalidParameterException("Operations failed: " + String.join("; ", failures));
+        }
+    }
+
     private void syncNow() throws RemoteException {
         coordinator.userSync(token);
     }
 
+    private void showMetrics() throws RemoteException {
+        System.out.println(coordinator.getMetrics(token));
+    }
+
     private List<String> getDepartmentFiles(String department) throws RemoteException {
-        return this.coordinator.getDepartmentFiles(token, department);
+        return listings.files(department);
     }
 
     private int getUserChoice(List<String> options) throws IllegalStateException, IllegalAccessException {
 
+        printOptions(options);
+
+        int choice;
+        while (true) {
+            choice = scanner.nextInt();
+            if(choice >= 0 && choice <= options.size()) break;
+            System.out.println("Please choose a valid choice number, or terminate the app: ");
+        }
+
+        if (choice == 0) {throw new IllegalStateException();}
+
+        return choice;
+    }
+
+    private void printOptions(List<String> options) throws IllegalAccessException {
+
         if (options.isEmpty()){throw new IllegalAccessException("Nothing to display.\n");}
 
         int i = 1;
@@ -284,17 +648,49 @@ public class Client {
                 0 - Exit Application\s
                  ---------------------------
                 Enter the number of the choice you want:\s""");
+    }
+
+    /**
+     * Like {@link #getUserChoice} but accepts several comma separated numbers, or * for all of them.
+     */
+    private List<Integer> getUserChoices(List<String> options) throws IllegalStateException, IllegalAccessException {
+
+        printOptions(options);
 
-        int choice;
         while (true) {
-            choice = scanner.nextInt();
-            if(choice >= 0 && choice <= options.size()) break;
-            System.out.println("Please choose a valid choice number, or terminate the app: ");
+            List<Integer> choices = new ArrayList<>();
+            boolean valid = true;
+            String input = scanner.next();
+            if (input.equals("*")) {
+                for (int choice = 1; choice <= options.size(); choice++) choices.add(choice);
+                return choices;
+            }
+            for (String part : input.split(",")) {
+                int choice;
+                try {
+                    choice = Integer.parseInt(part.trim());
+                } catch (NumberFormatException e) {
+                    valid = false;
+                    break;
+                }
+                if (choice == 0) {throw new IllegalStateException();}
+                if (choice < 0 || choice > options.size()) {
+                    valid = false;
+                    break;
+                }
+                if (!choices.contains(choice)) choices.add(choice);
+            }
+            if (valid && !choices.isEmpty()) return choices;
+            System.out.println("Please choose valid choice numbers, or terminate the app: ");
         }
+    }
 
-        if (choice == 0) {throw new IllegalStateException();}
+    private List<String> getFilenamesFromUserChoice(List<String> fileNames, String header) throws IllegalAccessException {
 
-        return choice;
+        System.out.println(header);
+        System.out.println("----------------------------");
+
+        return this.getUserChoices(fileNames).stream().map(choice -> fileNames.get(choice - 1)).toList();
     }
 
     private String getFilenameFromUserChoice(List<String> fileNames, String header) throws IllegalAccessException {
@@ -327,3 +723,71 @@ public class Client {
         client.run();
     }
 }
+
+/**
+ * Department listings kept on the client. The coordinator calls back when a listing changes and
+ * only then is it fetched again; if the callback cannot be registered (a firewall in the way, for
+ * instance) every read asks the coordinator whether the held version is still current, which costs
+ * a round trip but no list.
+ */
+class ListingCache implements ListingListener {
+    private final CoordinatorInt coordinator;
+    private final Map<String, DepartmentListing> listings = new ConcurrentHashMap<>();
+    private final Set<String> stale = ConcurrentHashMap.newKeySet();
+    private String token;
+    private volatile boolean pushed;
+    private boolean exported;
+
+    ListingCache(CoordinatorInt coordinator) {
+        this.coordinator = coordinator;
+    }
+
+    void start(String token, SessionSnapshot session) throws RemoteException {
+        this.token = token;
+        listings.clear();
+        stale.clear();
+        listings.putAll(session.getListings());
+        try {
+            if (!exported) {
+                UnicastRemoteObject.exportObject(this, 0);
+                exported = true;
+            }
+            coordinator.registerListener(token, this);
+            pushed = true;
+        } catch (RemoteException e) {
+            System.out.println("Listing updates unavailable, listings will be checked on every screen: " + e.getMessage());
+            pushed = false;
+        }
+    }
+
+    List<String> files(String department) throws RemoteException {
+        DepartmentListing held = listings.get(department);
+        if (held != null && pushed && !stale.contains(department)) {
+            return held.getFiles();
+        }
+        stale.remove(department);
+        DepartmentListing fresh = coordinator.getDepartmentListing(token, department, held != null ? held.getVersion() : -1);
+        if (fresh == null) return held.getFiles();
+        listings.put(department, fresh);
+        return fresh.getFiles();
+    }
+
+    void invalidate(String department) {
+        stale.add(department);
+    }
+
+    @Override
+    public void listingChanged(String department, long version) {
+        DepartmentListing held = listings.get(department);
+        if (held == null || held.getVersion() != version) stale.add(department);
+    }
+
+    void close() {
+        if (!exported) return;
+        try {
+            UnicastRemoteObject.unexportObject(this, true);
+        } catch (NoSuchObjectException ignored) {
+        }
+        exported = false;
+    }
+}
@@ -0,0 +1,590 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression of data-plane streams. Bytes travel in self-contained frames of at most
+ * BLOCK_SIZE: kind, raw length, stored length, then the block either compressed or, when that did
+ * not make it smaller, as is. Files on disk are never compressed, only what crosses the wire.
+ * <p>
+ * The codec is negotiated per connection right after the client's token: the client offers codecs
+ * in order of preference, none at all for content that is already compressed, and the node answers
+ * with the first one it has enabled ({@code transfer.codecs}, default "LZ,DEFLATE").
+ */
+public final class Compression {
+    static final int BLOCK_SIZE = 64 * 1024;
+    private static final int FRAME_HEADER_SIZE = 9;
+    private static final byte STORED = 0;
+    private static final byte COMPRESSED = 1;
+    private static final int MAX_OFFERED = 8;
+    private static final int GIVE_UP_AFTER = 4; // Incompressible blocks in a row before only probing now and then
+    private static final int PROBE_INTERVAL = 32; // Blocks between probes once given up
+
+    // Formats that are compressed already and would only cost CPU
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4",
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "mp3", "aac", "ogg", "flac", "mp4", "mkv", "mov", "avi", "webm",
+            "docx", "xlsx", "pptx", "odt", "ods", "jar", "pdf");
+
+    private static final List<Codec> ENABLED = parseCodecs(System.getProperty("transfer.codecs", "LZ,DEFLATE"));
+
+    public enum Codec {
+        NONE(0),
+        DEFLATE(1), // Better ratio
+        LZ(2);      // Several times faster, for links that are not the bottleneck
+
+        private final int id;
+
+        Codec(int id) {
+            this.id = id;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        static Codec byId(int id) {
+            for (Codec codec : values()) {
+                if (codec.id == id) return codec;
+            }
+            return null;
+        }
+
+        BlockCodec newBlockCodec() {
+            return switch (this) {
+                case NONE -> null;
+                case DEFLATE -> new DeflateBlockCodec();
+                case LZ -> new LzBlockCodec();
+            };
+        }
+    }
+
+    private Compression() {
+    }
+
+    /**
+     * Codecs worth trying for fileName, most preferred first. Empty for already compressed formats.
+     */
+    public static List<Codec> codecsFor(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot >= 0 && COMPRESSED_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+            return List.of();
+        }
+        return ENABLED;
+    }
+
+    public static Codec preferredCodec(String fileName) {
+        List<Codec> codecs = codecsFor(fileName);
+        return codecs.isEmpty() ? Codec.NONE : codecs.get(0);
+    }
+
+    /**
+     * Client side of the negotiation: offers the codecs for fileName and reads the node's choice.
+     */
+    public static Link offer(ByteChannel channel, String fileName) throws IOException {
+        List<Codec> codecs = codecsFor(fileName);
+        ByteBuffer offer = ByteBuffer.allocate(1 + codecs.size());
+        offer.put((byte) codecs.size());
+        for (Codec codec : codecs) offer.put((byte) codec.getId());
+        writeFully(channel, offer.flip());
+
+        ByteBuffer answer = ByteBuffer.allocate(1);
+        readFully(channel, answer);
+        Codec chosen = Codec.byId(answer.flip().get());
+        if (chosen == null || (chosen != Codec.NONE && !codecs.contains(chosen))) {
+            throw new IOException("Node chose a codec that was not offered");
+        }
+        return new Link(channel, chosen);
+    }
+
+    /**
+     * Node side of the negotiation: picks the first offered codec this node has enabled.
+     */
+    public static Link accept(ByteChannel channel) throws IOException {
+        ByteBuffer count = ByteBuffer.allocate(1);
+        readFully(channel, count);
+        int offered = count.flip().get() & 0xff;
+        if (offered > MAX_OFFERED) throw new IOException("Offer of " + offered + " codecs is too long");
+        ByteBuffer ids = ByteBuffer.allocate(offered);
+        readFully(channel, ids);
+
+        Codec chosen = Codec.NONE;
+        for (int i = 0; i < offered; i++) {
+            // Codecs this node does not know are skipped, so either side can gain new ones first
+            Codec codec = Codec.byId(ids.get(i));
+            if (codec != null && ENABLED.contains(codec)) {
+                chosen = codec;
+                break;
+            }
+        }
+        writeFully(channel, ByteBuffer.allocate(1).put((byte) chosen.getId()).flip());
+        return new Link(channel, chosen);
+    }
+
+    /**
+     * Writes all of source to target in frames of codec. Returns the size of target.
+     */
+    public static long compress(FileChannel source, Codec codec, Path target) throws IOException {
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             CompressingChannel compressing = new CompressingChannel(out, codec)) {
+            Transfers.send(source, 0, source.size(), compressing);
+            compressing.flush();
+            return out.size();
+        }
+    }
+
+    /**
+     * Inverse of {@link #compress}. The result is forced to disk, ready to be committed.
+     */
+    public static long decompress(Path source, Codec codec, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             DecompressingChannel decompressing = new DecompressingChannel(in, codec, null);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long written = Transfers.receive(decompressing, out, 0);
+            out.force(false);
+            return written;
+        }
+    }
+
+    /**
+     * Both directions of a negotiated connection. Reading flushes what was written so far, so
+     * request-response protocols work unchanged on top; closing flushes the rest but leaves the
+     * connection open. With NONE the connection itself is handed out, keeping sendfile.
+     */
+    public static final class Link implements AutoCloseable {
+        private final Codec codec;
+        private final ReadableByteChannel in;
+        private final WritableByteChannel out;
+        private final CompressingChannel compressing;
+        private final DecompressingChannel decompressing;
+
+        Link(ByteChannel channel, Codec codec) {
+            this.codec = codec;
+            if (codec == Codec.NONE) {
+                this.compressing = null;
+                this.decompressing = null;
+                this.in = channel;
+                this.out = channel;
+            } else {
+                this.compressing = new CompressingChannel(channel, codec);
+                this.decompressing = new DecompressingChannel(channel, codec, compressing);
+                this.in = decompressing;
+                this.out = compressing;
+            }
+        }
+
+        public Codec getCodec() {
+            return codec;
+        }
+
+        public ReadableByteChannel in() {
+            return in;
+        }
+
+        public WritableByteChannel out() {
+            return out;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (compressing != null) {
+                try {
+                    compressing.close();
+                } finally {
+                    decompressing.close();
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            if (compressing == null) return codec.name();
+            long raw = compressing.rawBytes + decompressing.rawBytes;
+            long wire = compressing.wireBytes + decompressing.wireBytes;
+            return codec + ", " + raw + " bytes as " + wire;
+        }
+    }
+
+    private static class CompressingChannel implements WritableByteChannel {
+        private final WritableByteChannel target;
+        private final BlockCodec blockCodec;
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private final byte[] packed = new byte[BLOCK_SIZE];
+        private final ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        private int filled;
+        private int incompressibleRun;
+        private long blocks;
+        private boolean open = true;
+        long rawBytes;
+        long wireBytes;
+
+        CompressingChannel(WritableByteChannel target, Codec codec) {
+            this.target = target;
+            this.blockCodec = codec.newBlockCodec();
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (!open) throw new IOException("Compressing channel is closed");
+            int written = src.remaining();
+            while (src.hasRemaining()) {
+                int n = Math.min(src.remaining(), BLOCK_SIZE - filled);
+                src.get(block, filled, n);
+                filled += n;
+                if (filled == BLOCK_SIZE) flush();
+            }
+            return written;
+        }
+
+        void flush() throws IOException {
+            if (filled == 0) return;
+            // After a run of blocks that did not shrink only every so often one is tried again
+            boolean tryCompressing = blockCodec != null
+                    && (incompressibleRun < GIVE_UP_AFTER || blocks % PROBE_INTERVAL == 0);
+            int packedLength = tryCompressing ? blockCodec.compress(block, filled, packed) : -1;
+            incompressibleRun = packedLength < 0 ? incompressibleRun + 1 : 0;
+            blocks++;
+
+            header.clear();
+            header.put(packedLength < 0 ? STORED : COMPRESSED).putInt(filled).putInt(packedLength < 0 ? filled : packedLength);
+            writeFully(target, header.flip());
+            writeFully(target, ByteBuffer.wrap(packedLength < 0 ? block : packed, 0, packedLength < 0 ? filled : packedLength));
+            rawBytes += filled;
+            wireBytes += FRAME_HEADER_SIZE + (packedLength < 0 ? filled : packedLength);
+            filled = 0;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!open) return;
+            try {
+                flush();
+            } finally {
+                open = false;
+                if (blockCodec != null) blockCodec.end();
+            }
+        }
+    }
+
+    private static class DecompressingChannel implements ReadableByteChannel {
+        private final ReadableByteChannel source;
+        private final BlockCodec blockCodec;
+        private final CompressingChannel pendingOut;
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private final byte[] packed = new byte[BLOCK_SIZE];
+        private final ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        private int position;
+        private int limit;
+        private boolean ended;
+        private boolean open = true;
+        private IOException failure;
+        long rawBytes;
+        long wireBytes;
+
+        DecompressingChannel(ReadableByteChannel source, Codec codec, CompressingChannel pendingOut) {
+            this.source = source;
+            this.blockCodec = codec.newBlockCodec();
+            this.pendingOut = pendingOut;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) throw new IOException("Decompressing channel is closed");
+            if (!dst.hasRemaining()) return 0;
+            // FileChannel.transferFrom drops a read error once it copied something and reads on,
+            // so a broken stream keeps failing instead of ending cleanly at the next frame
+            if (failure != null) throw failure;
+            if (position == limit) {
+                try {
+                    if (!nextFrame()) return -1;
+                } catch (IOException e) {
+                    failure = e;
+                    throw e;
+                }
+            }
+            int n = Math.min(dst.remaining(), limit - position);
+            dst.put(block, position, n);
+            position += n;
+            return n;
+        }
+
+        private boolean nextFrame() throws IOException {
+            if (ended) return false;
+            // The peer may be waiting for what we wrote before it answers
+            if (pendingOut != null) pendingOut.flush();
+
+            header.clear();
+            while (header.hasRemaining()) {
+                if (source.read(header) < 0) {
+                    if (header.position() == 0) {
+                        ended = true;
+                        return false;
+                    }
+                    throw new EOFException("Connection closed inside a frame header");
+                }
+            }
+            header.flip();
+            byte kind = header.get();
+            int rawLength = header.getInt();
+            int storedLength = header.getInt();
+            if (rawLength <= 0 || rawLength > BLOCK_SIZE || storedLength <= 0 || storedLength > BLOCK_SIZE
+                    || (kind == STORED && storedLength != rawLength) || (kind != STORED && kind != COMPRESSED)) {
+                throw new IOException("Corrupt frame: kind " + kind + ", " + rawLength + "/" + storedLength + " bytes");
+            }
+            if (kind == COMPRESSED && blockCodec == null) throw new IOException("Compressed frame on an uncompressed stream");
+
+            readFully(source, ByteBuffer.wrap(kind == STORED ? block : packed, 0, storedLength));
+            if (kind == COMPRESSED) blockCodec.decompress(packed, storedLength, block, rawLength);
+            position = 0;
+            limit = rawLength;
+            rawBytes += rawLength;
+            wireBytes += FRAME_HEADER_SIZE + storedLength;
+            return true;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            if (!open) return;
+            open = false;
+            if (blockCodec != null) blockCodec.end();
+        }
+    }
+
+    private static List<Codec> parseCodecs(String spec) {
+        List<Codec> codecs = new ArrayList<>();
+        for (String name : spec.split(",")) {
+            if (name.isBlank()) continue;
+            Codec codec = Codec.valueOf(name.trim().toUpperCase(Locale.ROOT));
+            if (codec != Codec.NONE && !codecs.contains(codec)) codecs.add(codec);
+        }
+        return List.copyOf(codecs);
+    }
+
+    private static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static void readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) throw new EOFException("Connection closed inside a frame");
+        }
+    }
+}
+
+/**
+ * Compresses one block at a time, each on its own so a frame never needs an earlier one.
+ */
+interface BlockCodec {
+    /**
+     * Compresses length bytes of src into dst (at least as long as src), returning the compressed
+     * length or -1 if that would not be smaller than the input.
+     */
+    int compress(byte[] src, int length, byte[] dst);
+
+    void decompress(byte[] src, int length, byte[] dst, int rawLength) throws IOException;
+
+    default void end() {
+    }
+}
+
+class DeflateBlockCodec implements BlockCodec {
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+
+    @Override
+    public int compress(byte[] src, int length, byte[] dst) {
+        deflater.reset();
+        deflater.setInput(src, 0, length);
+        deflater.finish();
+        // Capped one short of the input, so a block that does not shrink never finishes
+        int written = 0;
+        while (!deflater.finished() && written < length - 1) {
+            written += deflater.deflate(dst, written, length - 1 - written);
+        }
+        return deflater.finished() ? written : -1;
+    }
+
+    @Override
+    public void decompress(byte[] src, int length, byte[] dst, int rawLength) throws IOException {
+        inflater.reset();
+        inflater.setInput(src, 0, length);
+        try {
+            int written = 0;
+            while (written < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(dst, written, rawLength - written);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                written += n;
+            }
+            if (written != rawLength) throw new IOException("Deflate block inflated to " + written + " instead of " + rawLength + " bytes");
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt deflate block", e);
+        }
+    }
+
+    @Override
+    public void end() {
+        deflater.end();
+        inflater.end();
+    }
+}
+
+/**
+ * Byte-oriented LZ77 in the style of LZ4: sequences of a token (literal count and match length
+ * nibbles, 15 meaning more length bytes follow), the literals, a two byte little endian offset and
+ * the rest of the match length. The last sequence has literals only. Greedy matching through a
+ * single hash probe, with the step growing over runs without a match so incompressible input
+ * passes quickly.
+ */
+class LzBlockCodec implements BlockCodec {
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_BITS = 14;
+    private static final int SKIP_SHIFT = 6; // Step grows by one every 64 bytes without a match
+
+    private final int[] table = new int[1 << HASH_BITS];
+
+    @Override
+    public int compress(byte[] src, int length, byte[] dst) {
+        java.util.Arrays.fill(table, -1);
+        int anchor = 0;
+        int ip = 0;
+        int op = 0;
+        int limit = length - MIN_MATCH;
+        while (ip <= limit) {
+            int sequence = readInt(src, ip);
+            int slot = (sequence * 0x9E3779B1) >>> (32 - HASH_BITS);
+            int candidate = table[slot];
+            table[slot] = ip;
+            if (candidate < 0 || ip - candidate > MAX_OFFSET || readInt(src, candidate) != sequence) {
+                ip += 1 + ((ip - anchor) >>> SKIP_SHIFT);
+                continue;
+            }
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < length && src[candidate + matchLength] == src[ip + matchLength]) {
+                matchLength++;
+            }
+            op = writeSequence(src, anchor, ip - anchor, ip - candidate, matchLength, dst, op, length);
+            if (op < 0) return -1;
+            ip += matchLength;
+            anchor = ip;
+        }
+        op = writeSequence(src, anchor, length - anchor, 0, 0, dst, op, length);
+        return op < 0 || op >= length ? -1 : op;
+    }
+
+    /**
+     * Appends one sequence, a final one when matchLength is 0. Returns the new output position, or
+     * -1 once the output would reach capacity.
+     */
+    private static int writeSequence(byte[] src, int literalStart, int literals, int offset, int matchLength,
+                                     byte[] dst, int op, int capacity) {
+        int worstCase = op + 1 + literals + literals / 255 + 1 + (matchLength > 0 ? 2 + matchLength / 255 + 1 : 0);
+        if (worstCase >= capacity) return -1;
+        int extraMatch = matchLength > 0 ? matchLength - MIN_MATCH : 0;
+        int token = op++;
+        dst[token] = (byte) (Math.min(literals, 15) << 4 | (matchLength > 0 ? Math.min(extraMatch, 15) : 0));
+        op = writeLength(literals, dst, op);
+        System.arraycopy(src, literalStart, dst, op, literals);
+        op += literals;
+        if (matchLength > 0) {
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            op = writeLength(extraMatch, dst, op);
+        }
+        return op;
+    }
+
+    private static int writeLength(int length, byte[] dst, int op) {
+        if (length < 15) return op;
+        int rest = length - 15;
+        while (rest >= 255) {
+            dst[op++] = (byte) 255;
+            rest -= 255;
+        }
+        dst[op++] = (byte) rest;
+        return op;
+    }
+
+    @Override
+    public void decompress(byte[] src, int length, byte[] dst, int rawLength) throws IOException {
+        int ip = 0;
+        int op = 0;
+        while (true) {
+            if (ip >= length) throw new IOException("LZ block ends inside a sequence");
+            int token = src[ip++] & 0xff;
+
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    if (ip >= length) throw new IOException("LZ block ends inside a literal length");
+                    b = src[ip++] & 0xff;
+                    literals += b;
+                } while (b == 255);
+            }
+            if (literals > length - ip || literals > rawLength - op) throw new IOException("LZ literals overrun the block");
+            System.arraycopy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+            if (ip == length) break;
+
+            if (ip + 2 > length) throw new IOException("LZ block ends inside an offset");
+            int offset = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+            ip += 2;
+            if (offset == 0 || offset > op) throw new IOException("LZ match offset " + offset + " out of range");
+            int matchLength = token & 15;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (ip >= length) throw new IOException("LZ block ends inside a match length");
+                    b = src[ip++] & 0xff;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > rawLength - op) throw new IOException("LZ match overruns the block");
+            if (offset >= matchLength) {
+                System.arraycopy(dst, op - offset, dst, op, matchLength);
+                op += matchLength;
+            } else {
+                // Byte by byte, the match overlaps what it is copying
+                for (int i = 0; i < matchLength; i++, op++) {
+                    dst[op] = dst[op - offset];
+                }
+            }
+        }
+        if (op != rawLength) throw new IOException("LZ block decoded to " + op + " instead of " + rawLength + " bytes");
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+    }
+}
@@ -1,5 +1,6 @@
 import javax.naming.ServiceUnavailableException;
 import java.net.MalformedURLException;
+import java.nio.file.Paths;
 import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
@@ -7,40 +8,99 @@ import java.rmi.registry.LocateRegistry;
 import java.rmi.server.UnicastRemoteObject;
 import java.security.InvalidParameterException;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToDoubleFunction;
 
 public class CoordinatorImp extends UnicastRemoteObject implements CoordinatorInt {
 
-    static final HashMap<String, Integer> load = new HashMap<>();
-    static final HashMap<String, NodeInt> nodes = new HashMap<>();
-    static final HashMap<String, FileMeta> filesMeta = new HashMap<>();
-    static final HashMap<String, Boolean> activeNodes = new HashMap<>();
-    private static final HashMap<String, Character> filesStatus = new HashMap<>(); // 'R' or 'W'
-    private static final long PING_INTERVAL_MS = 30 * 1000; // Ping every 30 seconds
-    private static Timer timer = new Timer();
+    // Shared by RMI threads, the ping timer and the dispatch workers, so none of these take a class-wide lock
+    static final ConcurrentHashMap<String, NodeStats> nodeStats = new ConcurrentHashMap<>();
+    static final ConcurrentHashMap<String, NodeInt> nodes = new ConcurrentHashMap<>();
+    static final ConcurrentHashMap<String, FileMeta> filesMeta = new ConcurrentHashMap<>();
+    static final ConcurrentHashMap<String, Boolean> activeNodes = new ConcurrentHashMap<>();
+    private static final long PING_INTERVAL_MS = 5 * 1000; // Heartbeats tell most of it, pings check the command path
+    private static final long PING_TIMEOUT_MS = 2 * 1000; // A ping not answered by then marks the node unresponsive
+    private static final long SUSPICION_CHECK_MS = 250;
+    static final double SUSPECT_PHI = 8; // Suspected nodes only get requests once every healthy one was tried
+    private static final ScheduledExecutorService healthChecks = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "node-health");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final int PING_WORKERS = 16; // Pings and revocations in flight at once, a hung node holds one until its call returns
+    // A hung node only holds its own thread, and gets no second ping until the first call returns
+    private static final ExecutorService pingPool = Executors.newFixedThreadPool(PING_WORKERS, runnable -> {
+        Thread thread = new Thread(runnable, "node-ping");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Set<String> pendingPings = ConcurrentHashMap.newKeySet();
+    private static final Set<String> suspectedNodes = ConcurrentHashMap.newKeySet();
+    static final Metrics metrics = new Metrics("Coordinator");
+    private static final LatencyHistogram pingLatency = metrics.latency("ping");
+    private static final Metrics.Meter transferredBytes = metrics.meter("bytes.transferred"); // by nodes, on our orders
+    private static final int DISPATCH_WORKERS = 64; // Upper bound on transfers running at once
+    private static final int DISPATCH_QUEUE_CAPACITY = 4096; // Operations waiting for a worker before we push back
+    private static final int DEFAULT_REPLICATION_FACTOR = 2; // Copies written before a file is considered durable
+    private static final int REPLICATION_WORKERS = 32; // Node-to-node copies running at once
+    static final Map<String, Integer> replicationFactors = new ConcurrentHashMap<>();
+    static final ExecutorService replicationPool = Executors.newFixedThreadPool(REPLICATION_WORKERS);
+    private static final long MIN_PART_SIZE = 8 * 1024 * 1024; // Files smaller than two parts download in one piece
+    private static final int PARTS_PER_REPLICA = 4; // Enough ranges that a fast replica can take over from a slow one
+    private static final long TRANSFER_PIN_TTL_MS = 60 * 60 * 1000; // Nodes drop partial uploads after the same hour
+    private static final ConcurrentHashMap<String, TransferPin> transferPins = new ConcurrentHashMap<>();
+    // Listings are rebuilt only after a change, and clients holding one hear about changes by callback
+    private static final ConcurrentHashMap<String, Long> listingVersions = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, DepartmentListing> listings = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, ListingListener> listingListeners = new ConcurrentHashMap<>(); // by session token
+    private static final ExecutorService listingNotifier = Executors.newSingleThreadExecutor();
+    private static final long LISTING_EPOCH = System.currentTimeMillis(); // Versions from before a restart never match
+    private static final long LOCK_LEASE_MS = 2 * 60 * 1000; // A lease not renewed for this long is presumed leaked
+    private static final long LOCK_WAIT_TIMEOUT_MS = 5 * 60 * 1000; // How long an operation queues behind others on the same file
+    static final PlacementStrategy placement = PlacementStrategy.fromConfig();
+    static final FileLockManager fileLocks = new FileLockManager(LOCK_LEASE_MS, metrics);
+    static final Dispatcher dispatcher = new Dispatcher(DISPATCH_WORKERS, DISPATCH_QUEUE_CAPACITY, fileLocks, LOCK_WAIT_TIMEOUT_MS, metrics);
+    private static final String METADATA_PATH = "storage/coordinator";
+    static MetadataJournal journal;
+    static AntiEntropy antiEntropy;
     private final List<String> departments;
-    private final HashMap<String, Employee> employees;
-    private final HashMap<String, Employee> tokens;
+    private final ConcurrentHashMap<String, Employee> employees;
 
     protected CoordinatorImp() throws RemoteException {
         super();
         departments = Arrays.asList("IT", "HR", "QA", "GRAPHICS", "SALES");
-        employees = new HashMap<>();
-        tokens = new HashMap<>();
+        employees = new ConcurrentHashMap<>();
     }
 
     public static void main(String[] args) {
         try {
             CoordinatorImp coordinator = new CoordinatorImp();
+            journal = new MetadataJournal(Paths.get(METADATA_PATH), filesMeta, coordinator.employees, replicationFactors, metrics);
+            journal.recover();
+
             Employee manager = new Employee("man", "123", List.of("MANAGER"));
-            coordinator.employees.put("man", manager);
+            if (coordinator.employees.putIfAbsent("man", manager) == null) {
+                journal.logEmployee("man");
+            }
 
             LocateRegistry.createRegistry(5000);
             Naming.rebind("rmi://localhost:5000/coordinator", coordinator);
+            metrics.registerMBean("Coordinator", null);
 
             System.out.println("coordinator is running");
 
-            coordinator.scheduleNodeSync();
+            antiEntropy = new AntiEntropy();
+            antiEntropy.start();
 
             coordinator.schedulePeriodicPing();
         } catch (Exception e) {
@@ -48,144 +108,306 @@ public class CoordinatorImp extends UnicastRemoteObject implements CoordinatorIn
         }
     }
 
-    public static List<String> getBestNode(List<String> availableNodes) throws ServiceUnavailableException {
+    public static List<String> getBestNode(List<String> availableNodes, long sizeHint) throws ServiceUnavailableException {
         if (availableNodes.isEmpty()) {
             throw new ServiceUnavailableException("No nodes available");
         }
 
-        // Create list of node IDs and their loads
-        List<Map.Entry<String, Integer>> nodeLoads = new ArrayList<>();
+        // Suspected nodes stay candidates, but only behind every healthy one and least suspect first
+        List<String> healthy = new ArrayList<>(availableNodes.size());
+        Map<String, Double> suspected = new HashMap<>();
         for (String nodeId : availableNodes) {
-            if (load.containsKey(nodeId)) {
-                nodeLoads.add(new AbstractMap.SimpleEntry<>(nodeId, load.get(nodeId)));
+            NodeStats stats = nodeStats.get(nodeId);
+            double phi = stats != null ? stats.getSuspicion() : 0;
+            if (phi >= SUSPECT_PHI) {
+                suspected.put(nodeId, phi);
+            } else {
+                healthy.add(nodeId);
             }
         }
+        List<String> rankedNodes = new ArrayList<>(placement.rank(healthy, nodeStats, sizeHint));
+        suspected.entrySet().stream()
+                .sorted(Map.Entry.comparingByValue())
+                .forEach(entry -> rankedNodes.add(entry.getKey()));
 
-        // Sort by load (ascending)
-        nodeLoads.sort(Map.Entry.comparingByValue());
-
-        // Extract just the node IDs in sorted order
-        List<String> sortedNodes = nodeLoads.stream().map(Map.Entry::getKey).collect(Collectors.toList());
-
-        if (sortedNodes.isEmpty()) {
+        if (rankedNodes.isEmpty()) {
             throw new ServiceUnavailableException("No nodes available");
         }
 
-        return sortedNodes;
+        return rankedNodes;
     }
 
-    public synchronized static void increaseLoad(NodeInt node) throws RemoteException {
-        synchronized (load) {
-            String nodeId = node.getNodeId();
-            load.put(nodeId, load.get(nodeId) + 1);
-        }
+    // Returns the start time to hand back to decreaseLoad
+    public static long increaseLoad(String nodeId, long bytes) {
+        NodeStats stats = nodeStats.get(nodeId);
+        if (stats != null) stats.begin(bytes);
+        return System.nanoTime();
     }
 
-    public synchronized static void decreaseLoad(NodeInt node) throws RemoteException {
-        synchronized (load) {
-            String nodeId = node.getNodeId();
-            load.put(nodeId, load.get(nodeId) - 1);
-        }
+    public static void decreaseLoad(String nodeId, long bytes, long startedAt) {
+        NodeStats stats = nodeStats.get(nodeId);
+        if (stats != null) stats.end(bytes, System.nanoTime() - startedAt);
+        transferredBytes.mark(bytes);
     }
 
-    public synchronized static void makeRead(String fullName) throws RemoteException {
-        synchronized (filesStatus) {
-            filesStatus.put(fullName, 'R');
-        }
+    public static long sizeOf(String fullName) {
+        FileMeta fm = filesMeta.get(fullName);
+        return fm != null ? fm.getSize() : 0;
     }
 
-    public synchronized static void makeWrite(String fullName) throws RemoteException {
-        synchronized (load) {
-            filesStatus.put(fullName, 'W');
-        }
+    public static long versionOf(String fullName) {
+        FileMeta fm = filesMeta.get(fullName);
+        return fm != null ? fm.getVersion() : 0;
     }
 
-    public synchronized static void removeStatus(String fullName) throws RemoteException {
-        synchronized (load) {
-            filesStatus.remove(fullName);
+    /**
+     * Moves the node that holds the partial data of an interrupted transfer to the front, so a
+     * retry with the same transfer id resumes there instead of starting over on another node.
+     */
+    public static List<String> preferPinned(List<String> sortedNodes, String transferId) {
+        if (transferId == null) return sortedNodes;
+        TransferPin pin = transferPins.get(transferId);
+        if (pin == null || !sortedNodes.contains(pin.nodeId)) return sortedNodes;
+        if (System.currentTimeMillis() > pin.expiresAt) {
+            transferPins.remove(transferId, pin);
+            return sortedNodes;
         }
+        List<String> ordered = new ArrayList<>(sortedNodes);
+        ordered.remove(pin.nodeId);
+        ordered.add(0, pin.nodeId);
+        return ordered;
     }
 
-    public synchronized static void deleteFile(String fullName) throws RemoteException {
-        synchronized (filesMeta) {
-            filesMeta.get(fullName).clearNodes();
-        }
+    public static void pinTransfer(String transferId, String nodeId) {
+        if (transferId == null) return;
+        long now = System.currentTimeMillis();
+        transferPins.values().removeIf(pin -> now > pin.expiresAt);
+        transferPins.put(transferId, new TransferPin(nodeId, now + TRANSFER_PIN_TTL_MS));
     }
 
-    private void schedulePeriodicPing() {
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                checkNodeStatus();
-            }
-        }, PING_INTERVAL_MS, PING_INTERVAL_MS); // Start after initial delay, then repeat
-        System.out.println("Coordinator: Periodic node pinging scheduled every " + PING_INTERVAL_MS / 1000 + " seconds.");
+    public static void unpinTransfer(String transferId) {
+        if (transferId != null) transferPins.remove(transferId);
     }
 
-    private void checkNodeStatus() {
-        System.out.println("Coordinator: Performing periodic node health check...");
-        if (nodes.isEmpty()) {
-            System.out.println("Coordinator: No nodes currently registered to ping.");
-            return;
-        }
-        Set<String> currentNodeIds = new HashSet<>(nodes.keySet());
+    public static void deleteFile(String fullName) {
+        FileMeta fm = filesMeta.get(fullName);
+        if (fm != null) fm.clearNodes();
+        persistFile(fullName);
+        if (fm != null) listingChanged(fm.dep);
+    }
+
+    static long listingVersion(String dep) {
+        return listingVersions.getOrDefault(dep, LISTING_EPOCH);
+    }
+
+    static DepartmentListing listingOf(String dep) {
+        long version = listingVersion(dep);
+        // A change racing with the rebuild leaves an older version behind, which the next call replaces
+        return listings.compute(dep, (d, cached) -> cached != null && cached.getVersion() == version ? cached
+                : new DepartmentListing(dep, version, filesMeta.values().stream()
+                        .filter(fileMeta -> fileMeta.dep.equals(dep) && !fileMeta.getNodes().isEmpty())
+                        .map(fileMeta -> fileMeta.name).toList()));
+    }
 
-        for (String nodeId : currentNodeIds) {
-            NodeInt node = nodes.get(nodeId);
-            if (node != null) {
+    /**
+     * Called whenever a file appears in or disappears from dep.
+     */
+    static void listingChanged(String dep) {
+        long version = listingVersions.merge(dep, LISTING_EPOCH + 1, (current, one) -> current + 1);
+        listings.remove(dep);
+        // Off the caller's thread, a slow or dead client must not hold up a transfer
+        listingNotifier.execute(() -> {
+            for (Map.Entry<String, ListingListener> listener : listingListeners.entrySet()) {
+                if (!TokenGenerator.isValidToken(listener.getKey())) {
+                    listingListeners.remove(listener.getKey());
+                    continue;
+                }
                 try {
-                    boolean isAlive = node.ping();
-                    if (isAlive) {
-                        activeNodes.put(nodeId, true); // Mark as active
-                    } else {
-                        // This case might not happen if ping() throws RemoteException on failure
-                        System.out.println("Coordinator: Node " + nodeId + " ping returned false (unexpected). Marking as inactive.");
-                        handleInactiveNode(nodeId);
-                    }
+                    listener.getValue().listingChanged(dep, version);
                 } catch (RemoteException e) {
-                    System.err.println("Coordinator: Node " + nodeId + " failed to respond to ping. Marking as inactive. Error: " + e.getMessage());
-                    handleInactiveNode(nodeId);
+                    // The client is gone, it revalidates its listings if it ever comes back
+                    listingListeners.remove(listener.getKey());
                 }
             }
+        });
+    }
+
+    /**
+     * Journals the current replica set of a file and updates what anti-entropy expects its nodes to
+     * hold. The returned future completes once the record is fsynced, which is shared with whatever
+     * else was appended at the same time.
+     */
+    public static CompletableFuture<Void> persistFile(String fullName) {
+        if (antiEntropy != null) antiEntropy.fileChanged(fullName);
+        if (journal == null) return CompletableFuture.completedFuture(null);
+        return journal.logFile(fullName);
+    }
+
+    /**
+     * Digest of the copy of fullName on nodeId, null if it has none or cannot be asked.
+     */
+    static String digestOn(String nodeId, String fullName) {
+        NodeInt node = nodes.get(nodeId);
+        if (node == null) return null;
+        try {
+            return node.fileDigest(fullName);
+        } catch (RemoteException e) {
+            return null;
         }
-        System.out.println("Coordinator: Node health check finished. Active nodes: " + activeNodes.keySet());
     }
 
-    private void handleInactiveNode(String nodeId) {
-        activeNodes.remove(nodeId);
-        load.remove(nodeId);
-        nodes.remove(nodeId);
+    public static List<String> replicasOf(String fullName) {
+        FileMeta fm = filesMeta.get(fullName);
+        if (fm == null || fm.getNodes().isEmpty())
+            throw new IllegalArgumentException(fullName + " does not exist");
+        return fm.getNodes();
     }
 
-    private void scheduleNodeSync() {
-        Calendar calendar = Calendar.getInstance();
-        calendar.set(Calendar.HOUR_OF_DAY, 14);
-        calendar.set(Calendar.MINUTE, 46);
-        calendar.set(Calendar.SECOND, 0);
-        calendar.set(Calendar.MILLISECOND, 0);
+    public static int replicationFactor(String dep) {
+        return replicationFactors.getOrDefault(dep, DEFAULT_REPLICATION_FACTOR);
+    }
+
+    public static int writeQuorum(int replicationFactor) {
+        return replicationFactor / 2 + 1;
+    }
 
-        Date firstRun = calendar.getTime();
-        if (firstRun.before(new Date())) {
-            calendar.add(Calendar.DAY_OF_MONTH, 1);
-            firstRun = calendar.getTime();
+    /**
+     * Copies a freshly written file from sourceId to every target in parallel. The operation is
+     * reported successful as soon as a write quorum (source included) holds the new version;
+     * the call itself returns once every copy finished, so the caller's file lock covers them all.
+     */
+    public static void replicate(Dispatcher.Handle handle, String fullName, String sourceId, List<String> targets, int quorum) throws ServiceUnavailableException {
+        NodeInt source = nodes.get(sourceId);
+        if (source == null) {
+            throw new ServiceUnavailableException("Source node " + sourceId + " went away before replicating " + fullName);
+        }
+        if (quorum > targets.size() + 1) {
+            System.err.println("Coordinator: Only " + (targets.size() + 1) + " nodes available for " + fullName + ", writing fewer replicas than configured.");
+            quorum = targets.size() + 1;
         }
 
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
+        long size = sizeOf(fullName);
+        AtomicInteger acks = new AtomicInteger(1); // the source already holds the new version
+        int required = quorum;
+        if (acks.get() >= required) handle.succeed();
+
+        List<CompletableFuture<Void>> copies = new ArrayList<>();
+        for (String targetId : targets) {
+            NodeInt target = nodes.get(targetId);
+            if (target == null) continue;
+            copies.add(CompletableFuture.runAsync(() -> {
+                long startedAt = increaseLoad(targetId, size);
                 try {
-                    System.out.println("node sync....");
-                    nodesSync();
+                    if (target.replicateFrom(fullName, source)) {
+                        FileMeta fm = filesMeta.get(fullName);
+                        if (fm != null) fm.addNode(targetId);
+                        persistFile(fullName);
+                        if (acks.incrementAndGet() >= required) handle.succeed();
+                    }
+                } catch (RemoteException e) {
+                    System.err.println("Node " + targetId + " failed to replicate " + fullName + ": " + e.getMessage());
+                } finally {
+                    decreaseLoad(targetId, size, startedAt);
+                }
+            }, replicationPool));
+        }
+        CompletableFuture.allOf(copies.toArray(new CompletableFuture<?>[0])).join();
 
-                    scheduleNodeSync();
+        if (acks.get() < required) {
+            throw new ServiceUnavailableException("Only " + acks.get() + " of " + required + " replicas acknowledged " + fullName);
+        }
+    }
 
-                    timer.cancel();
-                    timer = new Timer();
+    private void schedulePeriodicPing() {
+        healthChecks.scheduleWithFixedDelay(this::checkSuspicion, SUSPICION_CHECK_MS, SUSPICION_CHECK_MS, TimeUnit.MILLISECONDS);
+        healthChecks.scheduleWithFixedDelay(this::checkNodeStatus, PING_INTERVAL_MS, PING_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        System.out.println("Coordinator: Pinging nodes every " + PING_INTERVAL_MS / 1000 + " seconds, heartbeats expected every "
+                + NodeHeartbeat.INTERVAL_MS + " ms.");
+    }
+
+    /**
+     * Logs nodes becoming suspected or trusted again. Placement reads the suspicion itself, this
+     * only reports it.
+     */
+    private void checkSuspicion() {
+        for (var entry : nodeStats.entrySet()) {
+            String nodeId = entry.getKey();
+            NodeStats stats = entry.getValue();
+            double phi = stats.getSuspicion();
+            if (phi >= SUSPECT_PHI && suspectedNodes.add(nodeId)) {
+                System.err.println("Coordinator: Node " + nodeId + " suspected (phi " + String.format("%.1f", phi)
+                        + ", last heartbeat " + stats.getMillisSinceHeartbeat() + " ms ago).");
+            } else if (phi < SUSPECT_PHI && suspectedNodes.remove(nodeId)) {
+                System.out.println("Coordinator: Node " + nodeId + " trusted again.");
+            }
+        }
+    }
+
+    /**
+     * Pings every node at once, each with its own deadline. A node that refuses the call is
+     * dropped; one that lets it time out is marked unresponsive until a later ping gets through.
+     */
+    private void checkNodeStatus() {
+        List<CompletableFuture<Void>> pings = new ArrayList<>();
+        for (var entry : nodes.entrySet()) {
+            String nodeId = entry.getKey();
+            NodeInt node = entry.getValue();
+            if (!pendingPings.add(nodeId)) continue; // Still stuck in the previous ping
+
+            long sentAt = System.nanoTime();
+            CompletableFuture<Boolean> ping = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return node.ping();
                 } catch (RemoteException e) {
-                    System.err.println("Error during node synchronization: " + e.getMessage());
+                    throw new CompletionException(e);
+                }
+            }, pingPool);
+            // Only the real call returning frees the node for the next ping, the deadline is on a copy
+            ping.whenComplete((alive, error) -> pendingPings.remove(nodeId));
+            pings.add(ping.copy().orTimeout(PING_TIMEOUT_MS, TimeUnit.MILLISECONDS).handle((alive, error) -> {
+                NodeStats stats = nodeStats.get(nodeId);
+                if (error instanceof TimeoutException) {
+                    if (stats != null) stats.setUnresponsive(true);
+                    System.err.println("Coordinator: Node " + nodeId + " did not answer a ping within " + PING_TIMEOUT_MS + " ms.");
+                } else if (error != null || !alive) {
+                    Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                    System.err.println("Coordinator: Node " + nodeId + " failed to respond to ping. Marking as inactive. Error: "
+                            + (cause != null ? cause.getMessage() : "ping returned false"));
+                    handleInactiveNode(nodeId);
+                } else {
+                    pingLatency.record(System.nanoTime() - sentAt);
+                    if (stats != null) stats.setUnresponsive(false);
+                    activeNodes.put(nodeId, true);
                 }
+                return null;
+            }));
+        }
+        // Bounded by the ping deadline, however many nodes hang
+        CompletableFuture.allOf(pings.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    @Override
+    public void heartbeat(String nodeId, NodeHeartbeat beat) throws RemoteException {
+        NodeStats stats = nodeStats.get(nodeId);
+        if (stats == null) {
+            // Dropped after a failed ping or unknown since a coordinator restart, take it back
+            try {
+                addNode(nodeId);
+                System.out.println("Coordinator: Node " + nodeId + " registered again after its heartbeat.");
+            } catch (MalformedURLException | NotBoundException e) {
+                throw new RemoteException("Cannot reach node " + nodeId, e);
             }
-        }, firstRun);
+            stats = nodeStats.get(nodeId);
+        }
+        if (stats != null) stats.heartbeat(beat);
+    }
+
+    private void handleInactiveNode(String nodeId) {
+        activeNodes.remove(nodeId);
+        nodeStats.remove(nodeId);
+        nodes.remove(nodeId);
+        suspectedNodes.remove(nodeId);
+        metrics.removeGauges("node." + nodeId + ".");
     }
 
     @Override
@@ -193,19 +415,38 @@ public class CoordinatorImp extends UnicastRemoteObject implements CoordinatorIn
         NodeInt node1 = (NodeInt) Naming.lookup("rmi://localhost:5000/" + id);
         CoordinatorImp.nodes.put(id, node1);
         activeNodes.put(id, true);
-        CoordinatorImp.load.put(id, 0);
+        CoordinatorImp.nodeStats.put(id, new NodeStats());
+        registerNodeGauges(id);
+    }
+
+    /**
+     * Load the coordinator sees on a node, read from its current NodeStats so re-registering the
+     * node does not leave the gauges on a stale one.
+     */
+    private static void registerNodeGauges(String id) {
+        String prefix = "node." + id + ".";
+        metrics.gauge(prefix + "inFlight", () -> nodeGauge(id, NodeStats::getInFlight));
+        metrics.gauge(prefix + "bytesInFlight", () -> nodeGauge(id, NodeStats::getBytesInFlight));
+        metrics.gauge(prefix + "latencyEwmaMs", () -> nodeGauge(id, stats -> stats.getLatencyEwmaNanos() / 1e6));
+        metrics.gauge(prefix + "phi", () -> nodeGauge(id, NodeStats::getSuspicion));
+        metrics.gauge(prefix + "systemLoad", () -> nodeGauge(id, stats ->
+                stats.getLastHeartbeat() != null ? stats.getLastHeartbeat().getSystemLoad() : -1));
+    }
+
+    private static double nodeGauge(String id, ToDoubleFunction<NodeStats> value) {
+        NodeStats stats = nodeStats.get(id);
+        return stats != null ? value.applyAsDouble(stats) : 0;
     }
 
     public boolean addEmployee(String token, String username, String password, List<String> roles) throws RemoteException {
         isValidToken(token);
         if (!isManager(token))
             throw new InvalidParameterException("Forbidden operation, you should be a manager to add new employees");
-        Employee existsEmployee = employees.get(username);
-        if (existsEmployee != null) {
+        Employee employee = new Employee(username, password, roles);
+        if (employees.putIfAbsent(username, employee) != null) {
             throw new InvalidParameterException("Username exists");
         }
-        Employee employee = new Employee(username, password, roles);
-        employees.put(username, employee);
+        if (journal != null) journal.logEmployee(username).join();
         return true;
     }
 
@@ -223,35 +464,80 @@ public class CoordinatorImp extends UnicastRemoteObject implements CoordinatorIn
 
     @Override
     public boolean isManager(String token) throws RemoteException {
-        return tokens.get(token).getRoles().contains("MANAGER");
+        return claimsOf(token).hasRole("MANAGER");
     }
 
     private String generateToken(Employee employee) {
-        String token = TokenGenerator.generateToken(employee.getUsername());
-        tokens.put(token, employee);
-        return token;
+        // Roles travel inside the signed token, nothing is kept here per login
+        return TokenGenerator.generateToken(employee.getUsername(), employee.getRoles());
+    }
+
+    private static TokenGenerator.Claims claimsOf(String token) throws InvalidParameterException {
+        TokenGenerator.Claims claims = TokenGenerator.verify(token);
+        if (claims == null) throw new InvalidParameterException("Invalid token");
+        return claims;
     }
 
     @Override
     public boolean isValidToken(String token) throws RemoteException, InvalidParameterException {
-        if (!TokenGenerator.isValidToken(token)) throw new InvalidParameterException("Invalid token");
+        claimsOf(token);
         return true;
     }
 
-    public void checkRWAccess(String fullName) throws ServiceUnavailableException {
-        if (filesStatus.get(fullName) != null) {
-            throw new ServiceUnavailableException("Someone is " + (filesStatus.get(fullName) == 'R' ? "reading" : "writing"));
+    @Override
+    public void logout(String token) throws RemoteException {
+        if (token != null) listingListeners.remove(token);
+        if (TokenGenerator.verify(token) == null) return;
+        TokenGenerator.revoke(token);
+        // Nodes check tokens on data connections against revocations of their own
+        for (var entry : nodes.entrySet()) {
+            CompletableFuture.runAsync(() -> {
+                try {
+                    entry.getValue().revokeToken(token);
+                } catch (RemoteException e) {
+                    System.err.println("Coordinator: Node " + entry.getKey() + " did not take a revoked token: " + e.getMessage());
+                }
+            }, pingPool);
         }
     }
 
     @Override
-    public boolean otherActionsAllowed(String token, String department) throws RemoteException {
+    public void registerListener(String token, ListingListener listener) throws RemoteException, InvalidParameterException {
         isValidToken(token);
-        Employee employee = tokens.get(token);
-        if (employee == null) {
-            throw new InvalidParameterException("employee doesn't exist");
+        listingListeners.put(token, listener);
+    }
+
+    @Override
+    public DepartmentListing getDepartmentListing(String token, String department, long knownVersion) throws RemoteException, InvalidParameterException {
+        isValidToken(token);
+        if (knownVersion == listingVersion(department)) return null; // unchanged, keep what you have
+        return listingOf(department);
+    }
+
+    @Override
+    public boolean otherActionsAllowed(String token, String department) throws RemoteException {
+        return mayWrite(claimsOf(token), department);
+    }
+
+    private static boolean mayWrite(TokenGenerator.Claims claims, String department) {
+        return claims.hasRole(department) || claims.hasRole("MANAGER");
+    }
+
+    private static void checkWriteAllowed(String token, String department) throws InvalidParameterException {
+        if (!mayWrite(claimsOf(token), department))
+            throw new InvalidParameterException("Forbidden operation, no write access to " + department);
+    }
+
+    @Override
+    public SessionSnapshot bootstrap(String token) throws RemoteException, InvalidParameterException {
+        TokenGenerator.Claims claims = claimsOf(token);
+        List<String> writable = departments.stream().filter(dep -> mayWrite(claims, dep)).toList();
+        Map<String, DepartmentListing> current = new HashMap<>();
+        for (String dep : departments) {
+            current.put(dep, listingOf(dep));
         }
-        return employee.getRoles().contains(department) || employee.getRoles().contains("MANAGER");
+        return new SessionSnapshot(claims.getUsername(), claims.hasRole("MANAGER"), claims.getExpiresAt(),
+                departments, writable, current);
     }
 
     @Override
@@ -263,281 +549,448 @@ public class CoordinatorImp extends UnicastRemoteObject implements CoordinatorIn
     @Override
     public List<String> getDepartmentFiles(String token, String department) throws RemoteException, InvalidParameterException {
         isValidToken(token);
-        return filesMeta.values().stream().filter(fileMeta -> fileMeta.dep.equals(department) && !fileMeta.getNodes().isEmpty()).map(fileMeta -> fileMeta.name).toList();
+        return listingOf(department).getFiles();
     }
 
     @Override
-    public boolean fileCreate(String token, String ip, int port, String fullName) throws RemoteException, ServiceUnavailableException {
-        otherActionsAllowed(token, fullName.split("/")[0]);
-        checkRWAccess(fullName);
+    public long fileCreate(String token, String ip, int port, String fullName, long size, String transferId) throws RemoteException, ServiceUnavailableException {
+        checkWriteAllowed(token, fullName.split("/")[0]);
         // exists and not deleted
         if (filesMeta.containsKey(fullName) && !filesMeta.get(fullName).getNodes().isEmpty())
             throw new IllegalArgumentException();
-        CreateThread th = new CreateThread(ip, port, fullName, nodes.keySet().stream().toList());
-        th.start();
-        return true;
+        return dispatcher.submitWrite("create", fullName, new CreateTask(ip, port, fullName, size, transferId));
     }
 
     @Override
-    public boolean fileGet(String token, String ip, int port, String name, String dep) throws RemoteException, ServiceUnavailableException {
+    public long fileGet(String token, String ip, int port, String name, String dep) throws RemoteException, ServiceUnavailableException {
         String fullName = dep + "/" + name;
         isValidToken(token);
-        checkRWAccess(fullName);
-        // don't exist or exists but deleted
-        if (!filesMeta.containsKey(fullName) || (filesMeta.containsKey(fullName) && filesMeta.get(fullName).getNodes().isEmpty()))
-            throw new IllegalArgumentException();
-        GetThread th = new GetThread(ip, port, fullName, nodes.keySet().stream().toList());
-        th.start();
-        return true;
+        checkExists(fullName);
+        return dispatcher.submitRead("get", fullName, new GetTask(ip, port, fullName));
     }
 
     @Override
-    public boolean fileUpdate(String token, String ip, int port, String fullName) throws RemoteException, ServiceUnavailableException {
-        otherActionsAllowed(token, fullName.split("/")[0]);
-        checkRWAccess(fullName);
-        // don't exist or exists but deleted
-        if (!filesMeta.containsKey(fullName) || (filesMeta.containsKey(fullName) && filesMeta.get(fullName).getNodes().isEmpty()))
-            throw new IllegalArgumentException();
-        UpdateThread th = new UpdateThread(ip, port, fullName, nodes.keySet().stream().toList());
-        th.start();
-        return true;
+    public DownloadPlan fileGetRanged(String token, String ip, int port, String name, String dep, long resumeVersion, long resumeFrom) throws RemoteException, ServiceUnavailableException {
+        String fullName = dep + "/" + name;
+        isValidToken(token);
+        checkExists(fullName);
+        return planDownload(ip, port, fullName, resumeVersion, resumeFrom);
     }
 
     @Override
-    public boolean fileDelete(String token, String fullName) throws RemoteException, ServiceUnavailableException {
-        otherActionsAllowed(token, fullName.split("/")[0]);
-        checkRWAccess(fullName);
+    public List<DownloadPlan> fileGetRangedMany(String token, String ip, List<Integer> ports, String dep, List<String> names,
+                                                List<Long> resumeVersions, List<Long> resumeFroms) throws RemoteException, ServiceUnavailableException {
+        isValidToken(token);
+        if (ports.size() != names.size() || resumeVersions.size() != names.size() || resumeFroms.size() != names.size())
+            throw new InvalidParameterException("One port and resume point per file");
+        // Check the whole batch first, so a bad name does not leave half of it running
+        for (String name : names) checkExists(dep + "/" + name);
+        List<DownloadPlan> plans = new ArrayList<>(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            plans.add(planDownload(ip, ports.get(i), dep + "/" + names.get(i), resumeVersions.get(i), resumeFroms.get(i)));
+        }
+        return plans;
+    }
+
+    private static void checkExists(String fullName) {
         // don't exist or exists but deleted
-        if (!filesMeta.containsKey(fullName) || (filesMeta.containsKey(fullName) && filesMeta.get(fullName).getNodes().isEmpty()))
-            throw new IllegalArgumentException();
-        DeleteThread th = new DeleteThread(fullName, nodes.keySet().stream().toList());
-        th.start();
+        FileMeta fm = filesMeta.get(fullName);
+        if (fm == null || fm.getNodes().isEmpty())
+            throw new IllegalArgumentException(fullName + " does not exist");
+    }
+
+    private DownloadPlan planDownload(String ip, int port, String fullName, long resumeVersion, long resumeFrom) throws ServiceUnavailableException {
+        FileMeta fm = filesMeta.get(fullName);
+        long size = fm.getSize();
+        long version = fm.getVersion();
+        // A partial copy of another version is worthless, start over
+        long start = resumeVersion == version && resumeFrom > 0 && resumeFrom <= size ? resumeFrom : 0;
+        long remaining = size - start;
+        int replicas = Math.max(1, fm.getNodes().size());
+        long partSize = Math.max(MIN_PART_SIZE, (remaining + replicas * PARTS_PER_REPLICA - 1) / (replicas * PARTS_PER_REPLICA));
+        int parts = (int) Math.max(1, (remaining + partSize - 1) / partSize);
+        long operationId = dispatcher.submitRead("get", fullName, new RangedGetTask(ip, port, fullName, version, size, start, partSize, parts));
+        return new DownloadPlan(operationId, version, size, start, partSize, parts);
+    }
+
+    @Override
+    public long fileUpdate(String token, String ip, int port, String fullName, long size, String transferId) throws RemoteException, ServiceUnavailableException {
+        checkWriteAllowed(token, fullName.split("/")[0]);
+        checkExists(fullName);
+        return dispatcher.submitWrite("update", fullName, new UpdateTask(ip, port, fullName, size, transferId));
+    }
+
+    @Override
+    public long fileDelete(String token, String fullName) throws RemoteException, ServiceUnavailableException {
+        checkWriteAllowed(token, fullName.split("/")[0]);
+        checkExists(fullName);
+        return dispatcher.submitWrite("delete", fullName, new DeleteTask(fullName));
+    }
+
+    @Override
+    public List<Long> fileDeleteMany(String token, List<String> fullNames) throws RemoteException, ServiceUnavailableException {
+        for (String fullName : fullNames) {
+            checkWriteAllowed(token, fullName.split("/")[0]);
+            checkExists(fullName);
+        }
+        List<Long> operationIds = new ArrayList<>(fullNames.size());
+        for (String fullName : fullNames) {
+            operationIds.add(dispatcher.submitWrite("delete", fullName, new DeleteTask(fullName)));
+        }
+        return operationIds;
+    }
+
+    @Override
+    public boolean setReplicationFactor(String token, String department, int factor) throws RemoteException, InvalidParameterException {
+        isValidToken(token);
+        if (!isManager(token))
+            throw new InvalidParameterException("Forbidden operation, you should be a manager to change replication");
+        if (!departments.contains(department))
+            throw new InvalidParameterException("Unknown department " + department);
+        if (factor < 1)
+            throw new InvalidParameterException("Replication factor must be at least 1");
+        replicationFactors.put(department, factor);
+        if (journal != null) journal.logReplicationFactor(department).join();
         return true;
     }
 
-    private boolean nodesSync() throws RemoteException {
-        for (var asd : filesMeta.entrySet()) {
-            FileMeta fileMeta = asd.getValue();
-            if (fileMeta.getNodes().isEmpty()) {
-                for (var entry : nodes.entrySet()) {
-                    entry.getValue().syncDeleteFile(fileMeta.getFullName());
-                }
-            } else if (fileMeta.getNodes().size() < nodes.size()) {
-                SyncThread th = new SyncThread(fileMeta.getFullName(), fileMeta.getNodes());
-                th.start();
+    @Override
+    public OperationStatus getOperationStatus(String token, long operationId) throws RemoteException, InvalidParameterException {
+        isValidToken(token);
+        return dispatcher.status(operationId);
+    }
+
+    @Override
+    public OperationStatus awaitOperation(String token, long operationId, long timeoutMs) throws RemoteException, InvalidParameterException {
+        isValidToken(token);
+        try {
+            return dispatcher.await(operationId, timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for operation " + operationId, e);
+        }
+    }
+
+    @Override
+    public List<OperationStatus> awaitOperations(String token, List<Long> operationIds, long timeoutMs) throws RemoteException, InvalidParameterException {
+        isValidToken(token);
+        // One deadline for the whole batch, not one per operation
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        List<OperationStatus> statuses = new ArrayList<>(operationIds.size());
+        try {
+            for (long operationId : operationIds) {
+                statuses.add(dispatcher.await(operationId, Math.max(0, deadline - System.currentTimeMillis())));
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for operations " + operationIds, e);
         }
-        return false;
+        return statuses;
+    }
+
+    @Override
+    public MetricsSnapshot getMetrics(String token) throws RemoteException {
+        isValidToken(token);
+        if (!isManager(token))
+            throw new InvalidParameterException("Forbidden operation, you should be a manager to read metrics");
+        return metrics.snapshot();
     }
-@Override
+
+    @Override
     public boolean userSync(String token) throws RemoteException {
         isValidToken(token);
         if (!isManager(token))
             throw new InvalidParameterException("Forbidden operation, you should be a manager to add new employees");
 
-        return nodesSync();
+        antiEntropy.runNow();
+        return true;
     }
 
 }
 
-class CreateThread extends Thread {
+class CreateTask implements Dispatcher.Task {
     String ip;
     int port;
     String fullName;
-    List<String> nodes;
+    long size;
+    String transferId;
 
-    public CreateThread(String ip, int port, String fullName, List<String> nodes) {
+    public CreateTask(String ip, int port, String fullName, long size, String transferId) {
         this.ip = ip;
         this.port = port;
         this.fullName = fullName;
-        this.nodes = nodes;
+        this.size = size;
+        this.transferId = transferId;
     }
 
     @Override
-    public void run() {
-        try {
-            List<String> sortedNodes = CoordinatorImp.getBestNode(nodes);
-            for (String nodeId : sortedNodes) {
-                NodeInt node = CoordinatorImp.nodes.get(nodeId);
-                try {
-                    CoordinatorImp.increaseLoad(node);
-                    CoordinatorImp.makeWrite(fullName);
-                    node.createFile(ip, port, fullName);
-                    CoordinatorImp.decreaseLoad(node);
-                    CoordinatorImp.removeStatus(fullName);
-
-                    FileMeta fm = new FileMeta(fullName);
-                    fm.addNode(node.getNodeId());
-                    CoordinatorImp.filesMeta.put(fullName, fm);
-
-                    break; // Operation succeeded, exit loop
-                } catch (RemoteException e) {
-                    // If this node fails, try the next one
-                    System.err.println("Node " + nodeId + " failed to create file: " + e.getMessage());
-                    CoordinatorImp.decreaseLoad(node);
-                    CoordinatorImp.removeStatus(fullName);
-                }
+    public void run(Dispatcher.Handle handle) throws Exception {
+        // Someone else may have created it while we were queued
+        FileMeta existing = CoordinatorImp.filesMeta.get(fullName);
+        if (existing != null && !existing.getNodes().isEmpty())
+            throw new IllegalArgumentException(fullName + " already exists");
+
+        List<String> sortedNodes = CoordinatorImp.preferPinned(
+                CoordinatorImp.getBestNode(CoordinatorImp.nodes.keySet().stream().toList(), size), transferId);
+        String primary = null;
+        for (String nodeId : sortedNodes) {
+            NodeInt node = CoordinatorImp.nodes.get(nodeId);
+            if (node == null) continue; // dropped by the health check meanwhile
+            long startedAt = CoordinatorImp.increaseLoad(nodeId, size);
+            // Whatever this node receives before a drop is kept there under the transfer id
+            CoordinatorImp.pinTransfer(transferId, nodeId);
+            try {
+                if (!node.createFile(ip, port, fullName, transferId))
+                    throw new IllegalStateException("Node " + nodeId + " could not create " + fullName);
+                primary = nodeId;
+                break; // The client stream landed, the rest is node to node
+            } catch (RemoteException e) {
+                // If this node fails, try the next one
+                System.err.println("Node " + nodeId + " failed to create file: " + e.getMessage());
+            } finally {
+                CoordinatorImp.decreaseLoad(nodeId, size, startedAt);
             }
-        } catch (ServiceUnavailableException e) {
-            throw new RuntimeException("No nodes available", e);
-        } catch (RemoteException e) {
-            throw new RuntimeException("Unexpected remote error", e);
         }
+        if (primary == null) throw new ServiceUnavailableException("No node could create " + fullName);
+        CoordinatorImp.unpinTransfer(transferId);
+
+        FileMeta fm = new FileMeta(fullName);
+        FileMeta previous = CoordinatorImp.filesMeta.get(fullName);
+        if (previous != null) fm.setVersion(previous.getVersion());
+        fm.nextVersion();
+        fm.addNode(primary);
+        fm.setSize(size);
+        fm.setDigest(CoordinatorImp.digestOn(primary, fullName));
+        CoordinatorImp.filesMeta.put(fullName, fm);
+        CoordinatorImp.persistFile(fullName).join();
+        CoordinatorImp.listingChanged(fm.dep);
+
+        int factor = CoordinatorImp.replicationFactor(fm.dep);
+        String source = primary;
+        List<String> targets = sortedNodes.stream().filter(n -> !n.equals(source)).limit(factor - 1).toList();
+        CoordinatorImp.replicate(handle, fullName, primary, targets, CoordinatorImp.writeQuorum(factor));
     }
 }
 
-class GetThread extends Thread {
+class GetTask implements Dispatcher.Task {
     String ip;
     int port;
     String fullName;
-    List<String> nodes;
 
-    public GetThread(String ip, int port, String fullName, List<String> nodes) {
+    public GetTask(String ip, int port, String fullName) {
         this.ip = ip;
         this.port = port;
         this.fullName = fullName;
-        this.nodes = nodes;
     }
 
     @Override
-    public void run() {
-        try {
-            List<String> sortedNodes = CoordinatorImp.getBestNode(nodes);
-            for (String nodeId : sortedNodes) {
-                NodeInt node = CoordinatorImp.nodes.get(nodeId);
-                try {
-                    CoordinatorImp.increaseLoad(node);
-                    CoordinatorImp.makeRead(fullName);
-                    node.getFile(ip, port, fullName);
-                    CoordinatorImp.decreaseLoad(node);
-                    CoordinatorImp.removeStatus(fullName);
-                    break; // Operation succeeded, exit loop
-                } catch (RemoteException e) {
-                    // If this node fails, try the next one
-                    System.err.println("Node " + nodeId + " failed to get file: " + e.getMessage());
-                    CoordinatorImp.decreaseLoad(node);
-                    CoordinatorImp.removeStatus(fullName);
-                }
+    public void run(Dispatcher.Handle handle) throws Exception {
+        long size = CoordinatorImp.sizeOf(fullName);
+        List<String> sortedNodes = CoordinatorImp.getBestNode(CoordinatorImp.replicasOf(fullName), size);
+        for (String nodeId : sortedNodes) {
+            NodeInt node = CoordinatorImp.nodes.get(nodeId);
+            if (node == null) continue; // dropped by the health check meanwhile
+            long startedAt = CoordinatorImp.increaseLoad(nodeId, size);
+            try {
+                node.getFile(ip, port, fullName);
+                return; // Operation succeeded
+            } catch (RemoteException e) {
+                // If this node fails, try the next one
+                System.err.println("Node " + nodeId + " failed to get file: " + e.getMessage());
+            } finally {
+                CoordinatorImp.decreaseLoad(nodeId, size, startedAt);
             }
-        } catch (ServiceUnavailableException e) {
-            throw new RuntimeException("No nodes available", e);
-        } catch (RemoteException e) {
-            throw new RuntimeException("Unexpected remote error", e);
         }
+        throw new ServiceUnavailableException("No node could serve " + fullName);
     }
 }
 
-class UpdateThread extends Thread {
+/**
+ * Serves a ranged download: every replica pulls the next pending part off a shared queue, so
+ * faster replicas end up sending more of the file. A replica that fails hands its part back and
+ * drops out; the others keep going until every part is sent or no replica is left.
+ */
+class RangedGetTask implements Dispatcher.Task {
     String ip;
     int port;
     String fullName;
-    List<String> nodes;
+    long version;
+    long size;
+    long start;
+    long partSize;
+    int parts;
 
-    public UpdateThread(String ip, int port, String fullName, List<String> nodes) {
+    public RangedGetTask(String ip, int port, String fullName, long version, long size, long start, long partSize, int parts) {
         this.ip = ip;
         this.port = port;
         this.fullName = fullName;
-        this.nodes = nodes;
+        this.version = version;
+        this.size = size;
+        this.start = start;
+        this.partSize = partSize;
+        this.parts = parts;
     }
 
     @Override
-    public void run() {
-        try {
-            List<String> sortedNodes = CoordinatorImp.getBestNode(nodes);
-            for (String nodeId : sortedNodes) {
-                NodeInt node = CoordinatorImp.nodes.get(nodeId);
-                try {
-                    CoordinatorImp.increaseLoad(node);
-                    CoordinatorImp.makeWrite(fullName);
-                    node.updateFile(ip, port, fullName);
-                    CoordinatorImp.decreaseLoad(node);
-                    CoordinatorImp.removeStatus(fullName);
-                    break; // Operation succeeded, exit loop
-                } catch (RemoteException e) {
-                    // If this node fails, try the next one
-                    System.err.println("Node " + nodeId + " failed to update file: " + e.getMessage());
-                    CoordinatorImp.decreaseLoad(node);
-                    CoordinatorImp.removeStatus(fullName);
-                }
+    public void run(Dispatcher.Handle handle) throws Exception {
+        if (CoordinatorImp.versionOf(fullName) != version) {
+            throw new IllegalStateException(fullName + " changed before the download started");
+        }
+        Queue<Integer> pending = new ConcurrentLinkedQueue<>();
+        for (int part = 0; part < parts; part++) pending.add(part);
+        AtomicInteger sent = new AtomicInteger();
+        List<String> replicas = new ArrayList<>(CoordinatorImp.getBestNode(CoordinatorImp.replicasOf(fullName), size));
+
+        while (sent.get() < parts) {
+            if (replicas.isEmpty()) {
+                throw new ServiceUnavailableException("No replica left to serve " + fullName + ", " + sent.get() + " of " + parts + " parts sent");
             }
-        } catch (ServiceUnavailableException e) {
-            throw new RuntimeException("No nodes available", e);
-        } catch (RemoteException e) {
-            throw new RuntimeException("Unexpected remote error", e);
+            List<String> failed = new CopyOnWriteArrayList<>();
+            List<CompletableFuture<Void>> workers = new ArrayList<>();
+            for (String nodeId : replicas) {
+                workers.add(CompletableFuture.runAsync(() -> {
+                    if (!sendParts(nodeId, pending, sent)) failed.add(nodeId);
+                }, CoordinatorImp.replicationPool));
+            }
+            CompletableFuture.allOf(workers.toArray(new CompletableFuture<?>[0])).join();
+            replicas.removeAll(failed);
         }
     }
+
+    private boolean sendParts(String nodeId, Queue<Integer> pending, AtomicInteger sent) {
+        NodeInt node = CoordinatorImp.nodes.get(nodeId);
+        if (node == null) return false; // dropped by the health check meanwhile
+        Integer part;
+        while ((part = pending.poll()) != null) {
+            long offset = start + part * partSize;
+            long length = Math.min(partSize, size - offset);
+            long startedAt = CoordinatorImp.increaseLoad(nodeId, length);
+            try {
+                node.getFileRange(ip, port, fullName, offset, length);
+                sent.incrementAndGet();
+            } catch (RemoteException e) {
+                System.err.println("Node " + nodeId + " failed to send part " + part + " of " + fullName + ": " + e.getMessage());
+                pending.add(part);
+                return false;
+            } finally {
+                CoordinatorImp.decreaseLoad(nodeId, length, startedAt);
+            }
+        }
+        return true;
+    }
 }
 
-class DeleteThread extends Thread {
+class UpdateTask implements Dispatcher.Task {
     String ip;
     int port;
     String fullName;
-    List<String> nodes;
+    long size;
+    String transferId;
 
-    public DeleteThread(String fullName, List<String> nodes) {
+    public UpdateTask(String ip, int port, String fullName, long size, String transferId) {
+        this.ip = ip;
+        this.port = port;
         this.fullName = fullName;
-        this.nodes = nodes;
+        this.size = size;
+        this.transferId = transferId;
     }
 
     @Override
-    public void run() {
-        try {
-            List<String> sortedNodes = CoordinatorImp.getBestNode(nodes);
-            for (String nodeId : sortedNodes) {
-                NodeInt node = CoordinatorImp.nodes.get(nodeId);
-                try {
-                    CoordinatorImp.increaseLoad(node);
-                    CoordinatorImp.makeWrite(fullName);
-                    node.deleteFile(fullName);
-                    CoordinatorImp.decreaseLoad(node);
-                    CoordinatorImp.removeStatus(fullName);
-                    CoordinatorImp.deleteFile(fullName);
-                    break; // Operation succeeded, exit loop
-                } catch (RemoteException e) {
-                    // If this node fails, try the next one
-                    System.err.println("Node " + nodeId + " failed to delete file: " + e.getMessage());
-                    CoordinatorImp.decreaseLoad(node);
-                    CoordinatorImp.removeStatus(fullName);
-                }
+    public void run(Dispatcher.Handle handle) throws Exception {
+        List<String> replicas = CoordinatorImp.replicasOf(fullName);
+        List<String> sortedNodes = CoordinatorImp.preferPinned(CoordinatorImp.getBestNode(replicas, size), transferId);
+        String primary = null;
+        for (String nodeId : sortedNodes) {
+            NodeInt node = CoordinatorImp.nodes.get(nodeId);
+            if (node == null) continue; // dropped by the health check meanwhile
+            long startedAt = CoordinatorImp.increaseLoad(nodeId, size);
+            CoordinatorImp.pinTransfer(transferId, nodeId);
+            try {
+                if (!node.updateFile(ip, port, fullName, transferId))
+                    throw new IllegalStateException("Node " + nodeId + " could not update " + fullName);
+                primary = nodeId;
+                break; // The client stream landed, the rest is node to node
+            } catch (RemoteException e) {
+                // If this node fails, try the next one
+                System.err.println("Node " + nodeId + " failed to update file: " + e.getMessage());
+            } finally {
+                CoordinatorImp.decreaseLoad(nodeId, size, startedAt);
             }
-        } catch (ServiceUnavailableException e) {
-            throw new RuntimeException("No nodes available", e);
-        } catch (RemoteException e) {
-            throw new RuntimeException("Unexpected remote error", e);
         }
+        if (primary == null) throw new ServiceUnavailableException("No node could update " + fullName);
+        CoordinatorImp.unpinTransfer(transferId);
+
+        // Only the primary has the new version now, so stop serving reads from the others until they catch up
+        FileMeta fm = CoordinatorImp.filesMeta.get(fullName);
+        fm.clearNodes();
+        fm.addNode(primary);
+        fm.setSize(size);
+        fm.setDigest(CoordinatorImp.digestOn(primary, fullName)); // anti-entropy asks again if this failed
+        fm.nextVersion();
+        CoordinatorImp.persistFile(fullName).join();
+
+        int factor = CoordinatorImp.replicationFactor(fm.dep);
+        String source = primary;
+        List<String> targets = new ArrayList<>(replicas);
+        targets.remove(source);
+        // Top up to the configured factor if the file had fewer replicas
+        CoordinatorImp.nodes.keySet().stream()
+                .filter(n -> !n.equals(source) && !targets.contains(n))
+                .limit(Math.max(0, factor - 1 - targets.size()))
+                .forEach(targets::add);
+        CoordinatorImp.replicate(handle, fullName, primary, targets, CoordinatorImp.writeQuorum(factor));
     }
 }
 
-class SyncThread extends Thread {
+class DeleteTask implements Dispatcher.Task {
     String fullName;
-    List<String> nodes;
 
-    public SyncThread(String fullName, List<String> nodes) {
+    public DeleteTask(String fullName) {
         this.fullName = fullName;
-        this.nodes = nodes;
     }
 
+    /**
+     * Deletes every replica in parallel. The file is gone once a majority of them confirmed, the
+     * anti-entropy rounds remove copies left on the others; with fewer the file stays listed
+     * as it was, and the same rounds put back the copies that did go.
+     */
     @Override
-    public void run() {
-        try {
-            List<String> sortedNodes = CoordinatorImp.getBestNode(nodes);
-            for (String nodeId : sortedNodes) {
-                NodeInt node = CoordinatorImp.nodes.get(nodeId);
+    public void run(Dispatcher.Handle handle) throws Exception {
+        long size = CoordinatorImp.sizeOf(fullName);
+        List<String> replicas = CoordinatorImp.replicasOf(fullName);
+        AtomicInteger deleted = new AtomicInteger();
+        List<CompletableFuture<Void>> deletes = new ArrayList<>();
+        for (String nodeId : replicas) {
+            NodeInt node = CoordinatorImp.nodes.get(nodeId);
+            if (node == null) continue; // dropped by the health check meanwhile
+            deletes.add(CompletableFuture.runAsync(() -> {
+                long startedAt = CoordinatorImp.increaseLoad(nodeId, size);
                 try {
-                    CoordinatorImp.increaseLoad(node);
-                    node.syncFile(fullName);
-                    CoordinatorImp.decreaseLoad(node);
-                    break; // Operation succeeded, exit loop
+                    node.deleteFile(fullName); // false when it had no copy, which is just as gone
+                    deleted.incrementAndGet();
                 } catch (RemoteException e) {
-                    // If this node fails, try the next one
-                    System.err.println("Node " + nodeId + " failed to sync file: " + e.getMessage());
-                    CoordinatorImp.decreaseLoad(node);
+                    System.err.println("Node " + nodeId + " failed to delete " + fullName + ": " + e.getMessage());
+                } finally {
+                    CoordinatorImp.decreaseLoad(nodeId, size, startedAt);
                 }
-            }
-        } catch (ServiceUnavailableException e) {
-            throw new RuntimeException("No nodes available", e);
-        } catch (RemoteException e) {
-            throw new RuntimeException("Unexpected remote error", e);
+            }, CoordinatorImp.replicationPool));
+        }
+        CompletableFuture.allOf(deletes.toArray(new CompletableFuture<?>[0])).join();
+
+        int required = CoordinatorImp.writeQuorum(replicas.size());
+        if (deleted.get() < required) {
+            throw new ServiceUnavailableException("Only " + deleted.get() + " of " + replicas.size() + " replicas deleted " + fullName);
         }
+        CoordinatorImp.deleteFile(fullName);
     }
-}
\ No newline at end of file
+}
+
+class TransferPin {
+    final String nodeId;
+    final long expiresAt;
+
+    TransferPin(String nodeId, long expiresAt) {
+        this.nodeId = nodeId;
+        this.expiresAt = expiresAt;
+    }
+}
@@ -11,25 +11,58 @@ public interface CoordinatorInt extends Remote {
 
     boolean otherActionsAllowed(String token, String department) throws RemoteException;
 
+    SessionSnapshot bootstrap(String token) throws RemoteException, InvalidParameterException;
+
+    void registerListener(String token, ListingListener listener) throws RemoteException, InvalidParameterException;
+
+    /**
+     * Listing of department, or null when knownVersion is still current.
+     */
+    DepartmentListing getDepartmentListing(String token, String department, long knownVersion) throws RemoteException, InvalidParameterException;
+
     String login(String username, String password) throws RemoteException, InvalidParameterException;
 
+    void logout(String token) throws RemoteException;
+
     boolean isManager(String token) throws RemoteException;
 
     List<String> getDepartments(String token) throws RemoteException, InvalidParameterException;
 
     List<String> getDepartmentFiles(String token, String department) throws RemoteException, InvalidParameterException;
 
-    boolean fileCreate(String token, String ip, int port, String fullName) throws RemoteException, ServiceUnavailableException, InvalidParameterException;
+    long fileCreate(String token, String ip, int port, String fullName, long size, String transferId) throws RemoteException, ServiceUnavailableException, InvalidParameterException;
+
+    long fileGet(String token, String ip, int port, String name, String dep) throws RemoteException, ServiceUnavailableException, InvalidParameterException;
+
+    DownloadPlan fileGetRanged(String token, String ip, int port, String name, String dep, long resumeVersion, long resumeFrom) throws RemoteException, ServiceUnavailableException, InvalidParameterException;
+
+    List<DownloadPlan> fileGetRangedMany(String token, String ip, List<Integer> ports, String dep, List<String> names, List<Long> resumeVersions, List<Long> resumeFroms) throws RemoteException, ServiceUnavailableException, InvalidParameterException;
 
-    boolean fileGet(String token, String ip, int port, String name, String dep) throws RemoteException, ServiceUnavailableException, InvalidParameterException;
+    long fileUpdate(String token, String ip, int port, String fullName, long size, String transferId) throws RemoteException, ServiceUnavailableException;
 
-    boolean fileUpdate(String token, String ip, int port, String fullName) throws RemoteException, ServiceUnavailableException;
+    long fileDelete(String token, String fullName) throws RemoteException, ServiceUnavailableException;
 
-    boolean fileDelete(String token, String fullName) throws RemoteException, ServiceUnavailableException;
+    List<Long> fileDeleteMany(String token, List<String> fullNames) throws RemoteException, ServiceUnavailableException;
+
+    OperationStatus getOperationStatus(String token, long operationId) throws RemoteException, InvalidParameterException;
+
+    OperationStatus awaitOperation(String token, long operationId, long timeoutMs) throws RemoteException, InvalidParameterException;
+
+    List<OperationStatus> awaitOperations(String token, List<Long> operationIds, long timeoutMs) throws RemoteException, InvalidParameterException;
 
     void addNode(String id) throws RemoteException, MalformedURLException, NotBoundException;
 
+    void heartbeat(String nodeId, NodeHeartbeat beat) throws RemoteException;
+
     boolean addEmployee(String token, String username, String password, List<String> roles) throws RemoteException;
     boolean userSync(String token) throws RemoteException;
 
+    /**
+     * Operation latencies, lock waits, queue depths and per-node load as the coordinator sees them.
+     * Managers only.
+     */
+    MetricsSnapshot getMetrics(String token) throws RemoteException, InvalidParameterException;
+
+    boolean setReplicationFactor(String token, String department, int factor) throws RemoteException, InvalidParameterException;
+
 }
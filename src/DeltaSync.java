@@ -0,0 +1,559 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * rsync-style block delta over a single connection. The side holding the old version sends a
+ * signature per fixed-size block (rolling weak checksum plus MD5); the side holding the new version
+ * slides a window over its file and answers with block references for every window whose
+ * signature matches and literal bytes for everything else.
+ * <p>
+ * Wire format, all big-endian:
+ * <pre>
+ * signatures: int blockSize, int count, count * (int weak, byte[16] md5), long resumeFrom
+ * delta:      (byte COPY, int block | byte LITERAL, int length, bytes)*, byte END, long length, byte[16] md5
+ * </pre>
+ * The sender leaves out the first resumeFrom bytes of the delta, which the receiver still holds
+ * from an interrupted attempt.
+ */
+public final class DeltaSync {
+    private static final int MIN_BLOCK_SIZE = 2 * 1024;
+    private static final int MAX_BLOCK_SIZE = 64 * 1024;
+    private static final int MAX_LITERAL = 64 * 1024; // Literal runs are flushed at this size
+    private static final int READ_CHUNK = 256 * 1024;
+    private static final int STRONG_LENGTH = 16;
+
+    private static final byte OP_END = 0;
+    private static final byte OP_COPY = 1;
+    private static final byte OP_LITERAL = 2;
+
+    private DeltaSync() {
+    }
+
+    /**
+     * Receiving side: offers the signatures of target over out, reads the delta from in and brings
+     * target up to date. When every block reference points at the same offset in both versions the
+     * file is patched in place and only the literal bytes hit the disk; otherwise the new version is
+     * assembled in stagingDir and moved over target.
+     * <p>
+     * With a resumable spool path the received part of the delta survives a dropped connection, and
+     * the next call with the same path asks the sender to continue where it stopped.
+     *
+     * @return number of bytes written to disk
+     */
+    public static long receive(ReadableByteChannel in, WritableByteChannel out, Path target, Path stagingDir, Path resumable) throws IOException {
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        try (FileChannel base = Files.exists(target) ? FileChannel.open(target, StandardOpenOption.READ) : null) {
+            Spooled delta = spool(in, out, base, stagingDir, resumable);
+            long written;
+            if (delta.inPlace) {
+                written = patchInPlace(delta, target);
+            } else {
+                Path staging = Files.createTempFile(stagingDir, "delta-", ".part");
+                try {
+                    rebuild(delta, base, staging);
+                    Files.move(staging, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    written = delta.length;
+                } finally {
+                    Files.deleteIfExists(staging);
+                }
+            }
+            Files.deleteIfExists(delta.file);
+            return written;
+        }
+    }
+
+    /**
+     * Receiving side for stores that cannot be patched in place: base is any readable view of the
+     * current version (or null) and the complete new version is written to output.
+     *
+     * @return length of the new version
+     */
+    public static long receive(ReadableByteChannel in, WritableByteChannel out, FileChannel base, Path output, Path stagingDir, Path resumable) throws IOException {
+        Spooled delta = spool(in, out, base, stagingDir, resumable);
+        rebuild(delta, base, output);
+        Files.deleteIfExists(delta.file);
+        return delta.length;
+    }
+
+    private static Spooled spool(ReadableByteChannel in, WritableByteChannel out, FileChannel base, Path stagingDir, Path resumable) throws IOException {
+        Files.createDirectories(stagingDir);
+        MessageDigest signatureDigest = md5();
+        DataOutputStream signatureOut = new DataOutputStream(new DigestOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(out), READ_CHUNK), signatureDigest));
+        int blockSize;
+        if (base != null) {
+            blockSize = writeSignatures(base, signatureOut);
+        } else {
+            blockSize = MIN_BLOCK_SIZE;
+            signatureOut.writeInt(blockSize);
+            signatureOut.writeInt(0);
+        }
+        // The signatures pin down which version of our copy a spooled delta was made against
+        byte[] basis = signatureDigest.digest();
+
+        MessageDigest result = md5();
+        Spooled spooled = resumable != null ? replay(resumable, base, blockSize, basis, result) : null;
+        if (spooled == null) {
+            Path file = resumable != null ? resumable : Files.createTempFile(stagingDir, "delta-", ".ops");
+            Files.write(file, basis);
+            spooled = new Spooled(file, blockSize);
+            spooled.inPlace = base != null;
+            result.reset();
+        }
+        // Spool the delta first: whether it can be applied in place is only known once all of it is seen
+        signatureOut.writeLong(Files.size(spooled.file) - STRONG_LENGTH);
+        signatureOut.flush();
+
+        DataInputStream delta = new DataInputStream(new BufferedInputStream(Channels.newInputStream(in), READ_CHUNK));
+        boolean complete = false;
+        boolean mismatched = false;
+        try (DataOutputStream ops = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(spooled.file, StandardOpenOption.APPEND), READ_CHUNK))) {
+            byte[] block = new byte[Math.max(blockSize, MAX_LITERAL)];
+            while (true) {
+                byte op = delta.readByte();
+                if (op == OP_COPY) {
+                    int index = delta.readInt();
+                    if (base == null || index < 0 || (long) (index + 1) * blockSize > base.size()) {
+                        throw new IOException("Delta references missing block " + index);
+                    }
+                    readFully(base, ByteBuffer.wrap(block, 0, blockSize), (long) index * blockSize);
+                    result.update(block, 0, blockSize);
+                    spooled.inPlace &= (long) index * blockSize == spooled.length;
+                    spooled.length += blockSize;
+                    ops.writeByte(OP_COPY);
+                    ops.writeInt(index);
+                } else if (op == OP_LITERAL) {
+                    int literalLength = delta.readInt();
+                    if (literalLength < 0) throw new IOException("Invalid literal length " + literalLength);
+                    ops.writeByte(OP_LITERAL);
+                    ops.writeInt(literalLength);
+                    for (int left = literalLength; left > 0; ) {
+                        int n = Math.min(left, block.length);
+                        delta.readFully(block, 0, n);
+                        result.update(block, 0, n);
+                        ops.write(block, 0, n);
+                        left -= n;
+                    }
+                    spooled.length += literalLength;
+                } else if (op == OP_END) {
+                    long expectedLength = delta.readLong();
+                    byte[] expectedDigest = new byte[STRONG_LENGTH];
+                    delta.readFully(expectedDigest);
+                    if (expectedLength != spooled.length || !Arrays.equals(expectedDigest, result.digest())) {
+                        mismatched = true; // Resuming this spool would fail the same way, start over next time
+                        throw new IOException("Delta does not reproduce the sender's file");
+                    }
+                    ops.writeByte(OP_END);
+                    complete = true;
+                    break;
+                } else {
+                    throw new IOException("Unknown delta op " + op);
+                }
+            }
+        } finally {
+            // ops is closed by now
+            if (!complete && (resumable == null || mismatched)) Files.deleteIfExists(spooled.file);
+        }
+        return spooled;
+    }
+
+    /**
+     * Picks up a spool left by an interrupted receive: drops a torn op at the end and recomputes
+     * length and digest of what it holds. Returns null when the spool does not fit the current base.
+     */
+    private static Spooled replay(Path file, FileChannel base, int blockSize, byte[] basis, MessageDigest result) throws IOException {
+        if (!Files.exists(file) || Files.size(file) < STRONG_LENGTH) return null;
+
+        // First find where the last complete op ends
+        long valid = STRONG_LENGTH;
+        try (DataInputStream ops = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), READ_CHUNK))) {
+            byte[] header = new byte[STRONG_LENGTH];
+            ops.readFully(header);
+            if (!Arrays.equals(header, basis)) return null;
+            while (true) {
+                byte op = ops.readByte();
+                if (op == OP_COPY && base != null) {
+                    ops.readInt();
+                    valid += 5;
+                } else if (op == OP_LITERAL) {
+                    int literalLength = ops.readInt();
+                    if (literalLength < 0) break;
+                    ops.skipNBytes(literalLength);
+                    valid += 5 + literalLength;
+                } else {
+                    break; // END is resent with the rest
+                }
+            }
+        } catch (EOFException e) {
+            // The previous attempt stopped inside this op
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(valid);
+        }
+
+        Spooled spooled = new Spooled(file, blockSize);
+        spooled.inPlace = base != null;
+        try (DataInputStream ops = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), READ_CHUNK))) {
+            ops.skipNBytes(STRONG_LENGTH);
+            byte[] block = new byte[Math.max(blockSize, MAX_LITERAL)];
+            for (long at = STRONG_LENGTH; at < valid; ) {
+                byte op = ops.readByte();
+                int value = ops.readInt();
+                at += 5;
+                if (op == OP_COPY) {
+                    readFully(base, ByteBuffer.wrap(block, 0, blockSize), (long) value * blockSize);
+                    result.update(block, 0, blockSize);
+                    spooled.inPlace &= (long) value * blockSize == spooled.length;
+                    spooled.length += blockSize;
+                } else {
+                    for (int left = value; left > 0; ) {
+                        int n = Math.min(left, block.length);
+                        ops.readFully(block, 0, n);
+                        result.update(block, 0, n);
+                        left -= n;
+                    }
+                    spooled.length += value;
+                    at += value;
+                }
+            }
+        }
+        return spooled;
+    }
+
+    /**
+     * Sending side: reads the peer's signatures from in and streams a delta that turns the peer's
+     * version into source over out.
+     *
+     * @return number of literal bytes sent
+     */
+    public static long send(FileChannel source, ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        DataInputStream peer = new DataInputStream(new BufferedInputStream(Channels.newInputStream(in)));
+        Signatures signatures = Signatures.read(peer);
+        // The delta comes out the same every time for the same two versions, so a resume just skips what arrived
+        long resumeFrom = peer.readLong();
+        DataOutputStream delta = new DataOutputStream(new BufferedOutputStream(
+                new SkippingOutputStream(Channels.newOutputStream(out), resumeFrom), READ_CHUNK));
+        int blockSize = signatures.blockSize;
+        MessageDigest whole = md5();
+        MessageDigest strong = md5();
+
+        // Holds at most one pending literal run and a window, so compaction always frees room for a read
+        byte[] buffer = new byte[MAX_LITERAL + 2 * blockSize + READ_CHUNK];
+        int literalStart = 0;
+        int position = 0;
+        int end = 0;
+        long readPosition = 0;
+        boolean eof = false;
+        long literalBytes = 0;
+        int a = 0;
+        int b = 0;
+        boolean rolling = false;
+
+        while (true) {
+            if (end - position < blockSize && !eof) {
+                if (literalStart > 0) {
+                    System.arraycopy(buffer, literalStart, buffer, 0, end - literalStart);
+                    position -= literalStart;
+                    end -= literalStart;
+                    literalStart = 0;
+                }
+                int n = source.read(ByteBuffer.wrap(buffer, end, buffer.length - end), readPosition);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    whole.update(buffer, end, n);
+                    end += n;
+                    readPosition += n;
+                }
+                continue;
+            }
+
+            if (end - position < blockSize || signatures.isEmpty()) {
+                // No full window left to match, what remains is literal
+                position = end;
+                if (eof) break;
+                literalBytes += writeLiteral(delta, buffer, literalStart, position);
+                literalStart = position;
+                continue;
+            }
+
+            if (!rolling) {
+                a = 0;
+                b = 0;
+                for (int i = 0; i < blockSize; i++) {
+                    int x = buffer[position + i] & 0xff;
+                    a += x;
+                    b += (blockSize - i) * x;
+                }
+                a &= 0xffff;
+                b &= 0xffff;
+                rolling = true;
+            }
+
+            int match = signatures.find((b << 16) | a, buffer, position, strong);
+            if (match >= 0) {
+                literalBytes += writeLiteral(delta, buffer, literalStart, position);
+                delta.writeByte(OP_COPY);
+                delta.writeInt(match);
+                position += blockSize;
+                literalStart = position;
+                rolling = false;
+                continue;
+            }
+
+            // Slide the window one byte: drop the oldest byte, take in the next one
+            if (position + blockSize < end) {
+                int out0 = buffer[position] & 0xff;
+                int in0 = buffer[position + blockSize] & 0xff;
+                a = (a - out0 + in0) & 0xffff;
+                b = (b - blockSize * out0 + a) & 0xffff;
+            } else {
+                rolling = false;
+            }
+            position++;
+            if (position - literalStart >= MAX_LITERAL) {
+                literalBytes += writeLiteral(delta, buffer, literalStart, position);
+                literalStart = position;
+            }
+        }
+
+        literalBytes += writeLiteral(delta, buffer, literalStart, end);
+        delta.writeByte(OP_END);
+        delta.writeLong(readPosition);
+        delta.write(whole.digest());
+        delta.flush();
+        return literalBytes;
+    }
+
+    private static int writeSignatures(FileChannel base, DataOutputStream out) throws IOException {
+        long size = base.size();
+        int blockSize = blockSizeFor(size);
+        // Only whole blocks get signatures, a short tail is always resent as literal
+        int count = (int) (size / blockSize);
+        out.writeInt(blockSize);
+        out.writeInt(count);
+
+        MessageDigest strong = md5();
+        byte[] block = new byte[blockSize];
+        for (int i = 0; i < count; i++) {
+            readFully(base, ByteBuffer.wrap(block), (long) i * blockSize);
+            out.writeInt(weak(block, 0, blockSize));
+            out.write(strong.digest(block));
+        }
+        return blockSize;
+    }
+
+    private static long patchInPlace(Spooled delta, Path target) throws IOException {
+        long written = 0;
+        try (DataInputStream ops = new DataInputStream(new BufferedInputStream(Files.newInputStream(delta.file), READ_CHUNK));
+             FileChannel file = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            ops.skipNBytes(STRONG_LENGTH);
+            long position = 0;
+            byte[] chunk = new byte[MAX_LITERAL];
+            while (true) {
+                byte op = ops.readByte();
+                if (op == OP_END) break;
+                if (op == OP_COPY) {
+                    // In place means the block is already where it belongs
+                    ops.readInt();
+                    position += delta.blockSize;
+                    continue;
+                }
+                int literalLength = ops.readInt();
+                for (int left = literalLength; left > 0; ) {
+                    int n = Math.min(left, chunk.length);
+                    ops.readFully(chunk, 0, n);
+                    ByteBuffer data = ByteBuffer.wrap(chunk, 0, n);
+                    while (data.hasRemaining()) {
+                        position += file.write(data, position);
+                    }
+                    written += n;
+                    left -= n;
+                }
+            }
+            file.truncate(delta.length);
+            file.force(false);
+        }
+        return written;
+    }
+
+    private static void rebuild(Spooled delta, FileChannel base, Path output) throws IOException {
+        int blockSize = delta.blockSize;
+        try (DataInputStream ops = new DataInputStream(new BufferedInputStream(Files.newInputStream(delta.file), READ_CHUNK));
+             FileChannel file = FileChannel.open(output, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ops.skipNBytes(STRONG_LENGTH);
+            // Written front to back, so block copies and literals both just append
+            byte[] chunk = new byte[MAX_LITERAL];
+            while (true) {
+                byte op = ops.readByte();
+                if (op == OP_END) break;
+                if (op == OP_COPY) {
+                    long from = (long) ops.readInt() * blockSize;
+                    for (long copied = 0; copied < blockSize; ) {
+                        copied += base.transferTo(from + copied, blockSize - copied, file);
+                    }
+                    continue;
+                }
+                int literalLength = ops.readInt();
+                for (int left = literalLength; left > 0; ) {
+                    int n = Math.min(left, chunk.length);
+                    ops.readFully(chunk, 0, n);
+                    ByteBuffer data = ByteBuffer.wrap(chunk, 0, n);
+                    while (data.hasRemaining()) {
+                        file.write(data);
+                    }
+                    left -= n;
+                }
+            }
+            file.force(false);
+        }
+    }
+
+    private static long writeLiteral(DataOutputStream out, byte[] buffer, int from, int to) throws IOException {
+        if (to <= from) return 0;
+        out.writeByte(OP_LITERAL);
+        out.writeInt(to - from);
+        out.write(buffer, from, to - from);
+        return to - from;
+    }
+
+    static int blockSizeFor(long size) {
+        // Roughly sqrt(size) like rsync, so the signature list and the literal overhead stay balanced
+        int blockSize = (int) Math.sqrt((double) size) & ~1023;
+        return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, blockSize));
+    }
+
+    static int weak(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+        return ((b & 0xffff) << 16) | (a & 0xffff);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) throw new EOFException("Unexpected end of file at " + position);
+            position += n;
+        }
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Discards the first skip bytes written through it.
+     */
+    private static class SkippingOutputStream extends FilterOutputStream {
+        private long skip;
+
+        SkippingOutputStream(OutputStream out, long skip) {
+            super(out);
+            this.skip = skip;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (skip > 0) {
+                skip--;
+                return;
+            }
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int skipped = (int) Math.min(skip, len);
+            skip -= skipped;
+            if (len > skipped) out.write(b, off + skipped, len - skipped);
+        }
+    }
+
+    /**
+     * A delta on disk, behind a header holding the digest of the signatures it was made against.
+     */
+    private static class Spooled {
+        final Path file;
+        final int blockSize;
+        long length;
+        boolean inPlace;
+
+        Spooled(Path file, int blockSize) {
+            this.file = file;
+            this.blockSize = blockSize;
+        }
+    }
+
+    private static class Signatures {
+        final int blockSize;
+        final byte[][] strong;
+        final Map<Integer, List<Integer>> byWeak = new HashMap<>();
+
+        Signatures(int blockSize, int count) {
+            this.blockSize = blockSize;
+            this.strong = new byte[count][];
+        }
+
+        static Signatures read(DataInputStream in) throws IOException {
+            int blockSize = in.readInt();
+            int count = in.readInt();
+            if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || count < 0) {
+                throw new IOException("Invalid signature header: block size " + blockSize + ", count " + count);
+            }
+            Signatures signatures = new Signatures(blockSize, count);
+            for (int i = 0; i < count; i++) {
+                int weak = in.readInt();
+                byte[] strong = new byte[STRONG_LENGTH];
+                in.readFully(strong);
+                signatures.strong[i] = strong;
+                signatures.byWeak.computeIfAbsent(weak, k -> new ArrayList<>(1)).add(i);
+            }
+            return signatures;
+        }
+
+        boolean isEmpty() {
+            return strong.length == 0;
+        }
+
+        /**
+         * Block index whose signature matches the window at offset, or -1. The MD5 is only computed
+         * when the weak checksum already hit.
+         */
+        int find(int weak, byte[] buffer, int offset, MessageDigest digest) {
+            List<Integer> candidates = byWeak.get(weak);
+            if (candidates == null) return -1;
+            digest.update(buffer, offset, blockSize);
+            byte[] windowStrong = digest.digest();
+            for (int index : candidates) {
+                if (Arrays.equals(strong[index], windowStrong)) return index;
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * The files of one department as of a listing version. The coordinator bumps the version whenever
+ * a file appears in or disappears from the department, so a client holding the same version
+ * already has the same list.
+ */
+public class DepartmentListing implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String department;
+    private final long version;
+    private final List<String> files;
+
+    public DepartmentListing(String department, long version, List<String> files) {
+        this.department = department;
+        this.version = version;
+        this.files = files;
+    }
+
+    public String getDepartment() {
+        return department;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<String> getFiles() {
+        return files;
+    }
+}
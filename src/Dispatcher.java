@@ -0,0 +1,241 @@
+import javax.naming.ServiceUnavailableException;
+import java.security.InvalidParameterException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs coordinator file operations on a fixed pool of workers fed by a bounded queue.
+ * When the queue is full new operations are rejected instead of spawning more threads,
+ * and every accepted operation gets an id that clients can poll or wait on.
+ * An operation first queues for its lease on the file without a worker, and only takes
+ * one once the lease is granted; it holds the lease until its task returns, renewed on a
+ * heartbeat for as long as the task runs, however long the transfer takes.
+ */
+public class Dispatcher {
+    private static final long RETENTION_MS = 10 * 60 * 1000; // Forget finished operations after 10 minutes
+    private static final int LEASE_RENEWALS = 4; // Heartbeats per lease time, so a late one or two do not lose it
+
+    @FunctionalInterface
+    public interface Task {
+        void run(Handle handle) throws Exception;
+    }
+
+    /**
+     * Lets a task report success before it returns, e.g. once a write quorum
+     * acknowledged while the remaining replicas are still being written.
+     */
+    public interface Handle {
+        void succeed();
+    }
+
+    /**
+     * Per kind of operation: time queued, time from submit to done, and failures.
+     */
+    private record Timers(LatencyHistogram queued, LatencyHistogram total, Metrics.Meter failed) {
+    }
+
+    private final ThreadPoolExecutor workers;
+    private final int queueCapacity;
+    private final FileLockManager locks;
+    private final long lockWaitMs;
+    private final AtomicInteger awaitingLease = new AtomicInteger();
+    private final ScheduledExecutorService janitor;
+    private final ConcurrentHashMap<Long, Operation> operations = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final Metrics metrics;
+    private final ConcurrentHashMap<String, Timers> timers = new ConcurrentHashMap<>();
+
+    public Dispatcher(int workerCount, int queueCapacity, FileLockManager locks, long lockWaitMs, Metrics metrics) {
+        this.metrics = metrics;
+        this.queueCapacity = queueCapacity;
+        this.locks = locks;
+        this.lockWaitMs = lockWaitMs;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "dispatch-worker-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        this.janitor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dispatch-janitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long renewEvery = locks.getLeaseMs() / LEASE_RENEWALS;
+        janitor.scheduleAtFixedRate(this::renewLeases, renewEvery, renewEvery, TimeUnit.MILLISECONDS);
+        metrics.gauge("dispatch.queued", () -> workers.getQueue().size());
+        metrics.gauge("dispatch.running", workers::getActiveCount);
+        metrics.gauge("dispatch.awaiting.lease", awaitingLease::get);
+    }
+
+    public long submitRead(String kind, String fullName, Task task) throws ServiceUnavailableException {
+        return submit(kind, fullName, false, task);
+    }
+
+    public long submitWrite(String kind, String fullName, Task task) throws ServiceUnavailableException {
+        return submit(kind, fullName, true, task);
+    }
+
+    private long submit(String kind, String fullName, boolean write, Task task) throws ServiceUnavailableException {
+        if (awaitingLease.get() >= queueCapacity) {
+            throw new ServiceUnavailableException("Coordinator is busy, try again later");
+        }
+        Operation op = new Operation(nextId.incrementAndGet(), kind, fullName, timersFor(kind));
+        operations.put(op.id, op);
+        CompletableFuture<FileLockManager.Lease> lease = locks.acquire(fullName, write, lockWaitMs);
+        if (lease.isDone()) {
+            // The file was free, so a full queue can still turn the caller away
+            if (!start(op, task, lease.join())) {
+                operations.remove(op.id);
+                throw new ServiceUnavailableException("Coordinator is busy, try again later");
+            }
+            return op.id;
+        }
+        awaitingLease.incrementAndGet();
+        lease.whenComplete((granted, error) -> {
+            awaitingLease.decrementAndGet();
+            if (error != null) {
+                fail(op, error.getMessage());
+                return;
+            }
+            if (!start(op, task, granted)) {
+                fail(op, "Coordinator is busy, try again later");
+            }
+        });
+        return op.id;
+    }
+
+    public OperationStatus status(long id) {
+        return get(id).snapshot();
+    }
+
+    public OperationStatus await(long id, long timeoutMs) throws InterruptedException {
+        Operation op = get(id);
+        try {
+            op.done.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException ignored) {
+            // The snapshot below tells the caller it is still running
+        }
+        return op.snapshot();
+    }
+
+    public int queuedCount() {
+        return workers.getQueue().size() + awaitingLease.get();
+    }
+
+    private Timers timersFor(String kind) {
+        Timers existing = timers.get(kind);
+        if (existing != null) return existing;
+        return timers.computeIfAbsent(kind, k -> new Timers(metrics.latency("queue." + k), metrics.latency("op." + k), metrics.meter("op." + k + ".failed")));
+    }
+
+    private Operation get(long id) {
+        Operation op = operations.get(id);
+        if (op == null) {
+            throw new InvalidParameterException("Unknown operation " + id);
+        }
+        return op;
+    }
+
+    /**
+     * Hands an operation that holds its lease to the workers. The lease is renewed from here on, so
+     * it also survives the wait for a free worker. False when the queue is full.
+     */
+    private boolean start(Operation op, Task task, FileLockManager.Lease lease) {
+        op.lease = lease;
+        try {
+            workers.execute(() -> run(op, task));
+            return true;
+        } catch (RejectedExecutionException e) {
+            op.lease = null;
+            lease.close();
+            return false;
+        }
+    }
+
+    private void run(Operation op, Task task) {
+        FileLockManager.Lease lease = op.lease;
+        op.start();
+        op.timers.queued.record(System.nanoTime() - op.submittedAt);
+        try {
+            try {
+                task.run(op);
+            } finally {
+                op.lease = null;
+                lease.close();
+            }
+            op.finish(OperationStatus.State.SUCCEEDED, null);
+        } catch (Exception e) {
+            op.timers.failed.mark(1);
+            System.err.println("Coordinator: " + op.kind + " of " + op.fullName + " failed: " + e.getMessage());
+            if (!op.finish(OperationStatus.State.FAILED, e.getMessage())) {
+                System.err.println("Coordinator: " + op.kind + " of " + op.fullName + " had already been reported as succeeded");
+            }
+        } finally {
+            op.timers.total.record(System.nanoTime() - op.submittedAt);
+            janitor.schedule(() -> operations.remove(op.id), RETENTION_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void renewLeases() {
+        for (Operation op : operations.values()) {
+            FileLockManager.Lease lease = op.lease;
+            if (lease != null && !lease.renew() && op.lease == lease) {
+                System.err.println("Coordinator: " + op.kind + " of " + op.fullName + " lost its lease");
+            }
+        }
+    }
+
+    /**
+     * Ends an operation that never got to run.
+     */
+    private void fail(Operation op, String message) {
+        op.timers.failed.mark(1);
+        System.err.println("Coordinator: " + op.kind + " of " + op.fullName + " failed: " + message);
+        op.finish(OperationStatus.State.FAILED, message);
+        op.timers.total.record(System.nanoTime() - op.submittedAt);
+        janitor.schedule(() -> operations.remove(op.id), RETENTION_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static class Operation implements Handle {
+        final long id;
+        final String kind;
+        final String fullName;
+        final Timers timers;
+        final long submittedAt = System.nanoTime();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        volatile OperationStatus.State state = OperationStatus.State.QUEUED;
+        volatile String message;
+        volatile FileLockManager.Lease lease; // from its grant until the task returns
+
+        Operation(long id, String kind, String fullName, Timers timers) {
+            this.id = id;
+            this.kind = kind;
+            this.fullName = fullName;
+            this.timers = timers;
+        }
+
+        @Override
+        public void succeed() {
+            finish(OperationStatus.State.SUCCEEDED, null);
+        }
+
+        synchronized boolean finish(OperationStatus.State state, String message) {
+            if (done.isDone()) return false;
+            this.message = message;
+            this.state = state;
+            done.complete(null);
+            return true;
+        }
+
+        synchronized void start() {
+            if (!done.isDone()) state = OperationStatus.State.RUNNING;
+        }
+
+        OperationStatus snapshot() {
+            return new OperationStatus(id, state, message);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+import java.io.Serializable;
+
+/**
+ * How a ranged download will arrive: the bytes from start to size are cut into parts of partSize
+ * bytes (the last one shorter), and every part comes in on its own connection, possibly from
+ * different replicas and in any order. start is only non-zero when a partial download of the
+ * same version is being resumed.
+ */
+public class DownloadPlan implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long operationId;
+    private final long version;
+    private final long size;
+    private final long start;
+    private final long partSize;
+    private final int parts;
+
+    public DownloadPlan(long operationId, long version, long size, long start, long partSize, int parts) {
+        this.operationId = operationId;
+        this.version = version;
+        this.size = size;
+        this.start = start;
+        this.partSize = partSize;
+        this.parts = parts;
+    }
+
+    public long getOperationId() {
+        return operationId;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getPartSize() {
+        return partSize;
+    }
+
+    public int getParts() {
+        return parts;
+    }
+
+    @Override
+    public String toString() {
+        return "Download " + operationId + ": " + (size - start) + " of " + size + " bytes in " + parts + " parts of " + partSize;
+    }
+}
@@ -1,14 +1,37 @@
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.List;
 
+/**
+ * An account. Only a salted PBKDF2 hash of the password is kept, in memory and in the journal.
+ */
 public class Employee {
+    private static final SecureRandom secureRandom = new SecureRandom();
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_ITERATIONS = 100_000;
+    private static final int HASH_BITS = 256;
 
     private String username;
-    private String password;
+    private byte[] salt;
+    private byte[] passwordHash;
     private List<String> roles;
 
     public Employee(String username, String password, List<String> roles) {
         this.username = username;
-        this.password = password;
+        this.roles = roles;
+        setPassword(password);
+    }
+
+    /**
+     * An account restored from a hash taken earlier.
+     */
+    Employee(String username, byte[] salt, byte[] passwordHash, List<String> roles) {
+        this.username = username;
+        this.salt = salt;
+        this.passwordHash = passwordHash;
         this.roles = roles;
     }
 
@@ -28,8 +51,19 @@ public class Employee {
         this.roles = roles;
     }
 
+    byte[] getSalt() {
+        return salt;
+    }
+
+    byte[] getPasswordHash() {
+        return passwordHash;
+    }
+
     public void setPassword(String password) {
-        this.password = password;
+        byte[] salt = new byte[SALT_LENGTH];
+        secureRandom.nextBytes(salt);
+        this.passwordHash = hash(password, salt);
+        this.salt = salt;
     }
 
     public void addRole(String role) {
@@ -41,6 +75,17 @@ public class Employee {
     }
 
     public boolean passwordAttempt(String password) {
-        return this.password.equals(password);
+        return password != null && MessageDigest.isEqual(passwordHash, hash(password, salt));
+    }
+
+    private static byte[] hash(String password, byte[] salt) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_ITERATIONS, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2 is not available", e); // every JRE ships it
+        } finally {
+            spec.clearPassword();
+        }
     }
 }
@@ -0,0 +1,324 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Contents of hot files held in direct buffers, bounded by a byte budget ({@code node.cache.bytes},
+ * 0 turns it off). Eviction is W-TinyLFU: new files enter a small LRU window; what falls out of
+ * the window only replaces main-area files that were requested less often, judged by a count-min
+ * sketch of recent requests. A file everybody downloads every morning stays, a one-off download
+ * passes through the window without pushing it out.
+ * <p>
+ * The main area is a segmented LRU: files hit again while on probation move to the protected
+ * segment. Any write to a file must call {@link #invalidate}; a load that raced with one is not
+ * cached.
+ */
+public class FileCache {
+    private static final long DEFAULT_CAPACITY = 256L * 1024 * 1024;
+    private static final double WINDOW_SHARE = 0.01; // Of the whole budget, as in Caffeine
+    private static final double PROTECTED_SHARE = 0.8; // Of the main area
+    private static final int MAX_ENTRY_SHARE = 8; // A single file may take at most this fraction of the budget
+    private static final int AVERAGE_ENTRY_GUESS = 64 * 1024; // Sizes the sketch
+
+    private enum Segment { WINDOW, PROBATION, PROTECTED }
+
+    private static final class Entry {
+        final String name;
+        final ByteBuffer data;
+        Segment segment;
+
+        Entry(String name, ByteBuffer data) {
+            this.name = name;
+            this.data = data;
+        }
+
+        long size() {
+            return data.capacity();
+        }
+    }
+
+    private final long capacity;
+    private final long windowCapacity;
+    private final long protectedCapacity;
+    private final long maxEntryBytes;
+    private final FrequencySketch sketch;
+
+    // Insertion ordered, the first entry is the least recently used; all guarded by this
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<>();
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+    private long invalidations;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+
+    public FileCache(long capacity) {
+        this.capacity = Math.max(0, capacity);
+        this.windowCapacity = Math.max(1, (long) (this.capacity * WINDOW_SHARE));
+        this.protectedCapacity = (long) ((this.capacity - windowCapacity) * PROTECTED_SHARE);
+        this.maxEntryBytes = Math.min(Integer.MAX_VALUE, this.capacity / MAX_ENTRY_SHARE);
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(16, this.capacity / AVERAGE_ENTRY_GUESS)));
+    }
+
+    public static FileCache fromConfig() {
+        return new FileCache(Long.getLong("node.cache.bytes", DEFAULT_CAPACITY));
+    }
+
+    /**
+     * Cached contents of name, loading them from store if the file is worth keeping. Returns null
+     * when the caller should stream from disk instead. The buffer is a read-only view of its own.
+     */
+    public ByteBuffer getOrLoad(String name, FileStore store) throws IOException {
+        if (capacity == 0) return null;
+        long startedAt;
+        synchronized (this) {
+            sketch.increment(name);
+            Entry entry = touch(name);
+            if (entry != null) {
+                hits++;
+                return entry.data.duplicate();
+            }
+            misses++;
+            startedAt = invalidations;
+        }
+
+        try (FileChannel file = store.openRead(name)) {
+            long size = file.size();
+            if (size > maxEntryBytes) return null;
+            // A file too big for the window would only be evicted again unless it has been asked for before
+            synchronized (this) {
+                if (size > windowCapacity && sketch.frequency(name) < 2) return null;
+            }
+            ByteBuffer data = ByteBuffer.allocateDirect((int) size);
+            while (data.hasRemaining()) {
+                if (file.read(data, data.position()) < 0) throw new IOException(name + " shrank while being cached");
+            }
+            ByteBuffer readOnly = data.flip().asReadOnlyBuffer();
+            synchronized (this) {
+                // Something was written meanwhile, what we read may be stale
+                if (invalidations != startedAt || find(name) != null) return readOnly.duplicate();
+                Entry entry = new Entry(name, readOnly);
+                addToWindow(entry);
+            }
+            return readOnly.duplicate();
+        }
+    }
+
+    public synchronized void invalidate(String name) {
+        invalidations++;
+        Entry entry = find(name);
+        if (entry != null) remove(entry);
+    }
+
+    public synchronized CacheStats getStats() {
+        return new CacheStats(hits, misses, evictions, rejections,
+                window.size() + probation.size() + protectedSegment.size(),
+                windowBytes + probationBytes + protectedBytes, capacity);
+    }
+
+    private Entry find(String name) {
+        Entry entry = window.get(name);
+        if (entry == null) entry = probation.get(name);
+        if (entry == null) entry = protectedSegment.get(name);
+        return entry;
+    }
+
+    /**
+     * Records a hit: moves the entry to the most recent end of its segment, or up from probation.
+     */
+    private Entry touch(String name) {
+        Entry entry = find(name);
+        if (entry == null) return null;
+        switch (entry.segment) {
+            case WINDOW -> {
+                window.remove(name);
+                window.put(name, entry);
+            }
+            case PROTECTED -> {
+                protectedSegment.remove(name);
+                protectedSegment.put(name, entry);
+            }
+            case PROBATION -> {
+                probation.remove(name);
+                probationBytes -= entry.size();
+                entry.segment = Segment.PROTECTED;
+                protectedSegment.put(name, entry);
+                protectedBytes += entry.size();
+                // Protected overflow goes back on probation rather than out
+                while (protectedBytes > protectedCapacity && protectedSegment.size() > 1) {
+                    Entry demoted = pollFirst(protectedSegment);
+                    protectedBytes -= demoted.size();
+                    demoted.segment = Segment.PROBATION;
+                    probation.put(demoted.name, demoted);
+                    probationBytes += demoted.size();
+                }
+            }
+        }
+        return entry;
+    }
+
+    private void addToWindow(Entry entry) {
+        entry.segment = Segment.WINDOW;
+        window.put(entry.name, entry);
+        windowBytes += entry.size();
+        while (windowBytes > windowCapacity && !window.isEmpty()) {
+            Entry candidate = pollFirst(window);
+            windowBytes -= candidate.size();
+            admit(candidate);
+        }
+    }
+
+    /**
+     * Moves a window evictee into the main area if it is requested more often than everything it
+     * would displace.
+     */
+    private void admit(Entry candidate) {
+        long mainCapacity = capacity - windowCapacity;
+        long needed = probationBytes + protectedBytes + candidate.size() - mainCapacity;
+        if (needed > 0) {
+            int candidateFrequency = sketch.frequency(candidate.name);
+            long freed = 0;
+            Iterator<Entry> victims = new VictimIterator();
+            List<Entry> displaced = new ArrayList<>();
+            while (freed < needed && victims.hasNext()) {
+                Entry victim = victims.next();
+                if (sketch.frequency(victim.name) >= candidateFrequency) {
+                    rejections++;
+                    return;
+                }
+                displaced.add(victim);
+                freed += victim.size();
+            }
+            if (freed < needed) {
+                rejections++;
+                return;
+            }
+            for (Entry victim : displaced) {
+                remove(victim);
+                evictions++;
+            }
+        }
+        candidate.segment = Segment.PROBATION;
+        probation.put(candidate.name, candidate);
+        probationBytes += candidate.size();
+    }
+
+    private void remove(Entry entry) {
+        switch (entry.segment) {
+            case WINDOW -> {
+                window.remove(entry.name);
+                windowBytes -= entry.size();
+            }
+            case PROBATION -> {
+                probation.remove(entry.name);
+                probationBytes -= entry.size();
+            }
+            case PROTECTED -> {
+                protectedSegment.remove(entry.name);
+                protectedBytes -= entry.size();
+            }
+        }
+    }
+
+    private static Entry pollFirst(LinkedHashMap<String, Entry> segment) {
+        Iterator<Map.Entry<String, Entry>> first = segment.entrySet().iterator();
+        Entry entry = first.next().getValue();
+        first.remove();
+        return entry;
+    }
+
+    /**
+     * Main-area entries in eviction order: probation first, then protected, oldest first.
+     */
+    private class VictimIterator implements Iterator<Entry> {
+        private final Iterator<Entry> probationEntries = probation.values().iterator();
+        private final Iterator<Entry> protectedEntries = protectedSegment.values().iterator();
+
+        @Override
+        public boolean hasNext() {
+            return probationEntries.hasNext() || protectedEntries.hasNext();
+        }
+
+        @Override
+        public Entry next() {
+            return probationEntries.hasNext() ? probationEntries.next() : protectedEntries.next();
+        }
+    }
+}
+
+/**
+ * Count-min sketch of request counts with 4-bit saturating counters. Every sampleSize increments
+ * all counters are halved, so the counts follow recent popularity rather than all-time totals.
+ */
+class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x97cb3127, 0x0ba5bd5d, 0x5c6bfb3b, 0x3a9d2c4f};
+
+    private final byte[][] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int expectedEntries) {
+        int width = Integer.highestOneBit(Math.max(16, expectedEntries - 1) << 1);
+        this.counters = new byte[DEPTH][width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    void increment(String key) {
+        int hash = spread(key.hashCode());
+        // Conservative update: only the smallest counters grow, which keeps overestimates down
+        int min = frequency(hash);
+        if (min >= MAX_COUNT) return;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = indexOf(hash, row);
+            if (counters[row][index] == min) counters[row][index]++;
+        }
+        if (++additions >= sampleSize) halve();
+    }
+
+    int frequency(String key) {
+        return frequency(spread(key.hashCode()));
+    }
+
+    private int frequency(int hash) {
+        int min = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, counters[row][indexOf(hash, row)]);
+        }
+        return min;
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void halve() {
+        for (byte[] row : counters) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>= 1;
+            }
+        }
+        additions /= 2;
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 17;
+        hash *= 0xed5ad4bb;
+        hash ^= hash >>> 11;
+        return hash;
+    }
+}
@@ -0,0 +1,251 @@
+import javax.naming.ServiceUnavailableException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Per-file reader/writer locks handed out as leases. Any number of readers may hold a file at
+ * once, writers wait their turn in arrival order instead of being turned away. A lease lasts
+ * for the lease time unless its holder renews it, e.g. while the operation holding it still
+ * runs; one left to expire is presumed leaked and reclaimed for the next waiter.
+ * Waiting takes no thread: a queued lease is granted by whoever releases the file before it.
+ * Files are spread over a fixed set of stripes so unrelated files rarely share a monitor.
+ */
+public class FileLockManager {
+    private static final int STRIPES = 64;
+    private static final long EXPIRY_CHECK_MS = 1000; // How often files with waiters are checked for dead leases
+
+    public final class Lease implements AutoCloseable {
+        private final String fullName;
+        private final boolean write;
+        private final long requestedAt = System.nanoTime();
+        private final CompletableFuture<Lease> granted = new CompletableFuture<>();
+        private volatile long expiresAt;
+        private volatile boolean ended; // released by its holder or reclaimed
+
+        private Lease(String fullName, boolean write) {
+            this.fullName = fullName;
+            this.write = write;
+        }
+
+        public String getFullName() {
+            return fullName;
+        }
+
+        public boolean isWrite() {
+            return write;
+        }
+
+        /**
+         * Pushes the expiry a full lease time out again. Does nothing once the lease was released
+         * or reclaimed, the file may belong to someone else by then.
+         *
+         * @return false when the lease has ended
+         */
+        public boolean renew() {
+            if (ended) return false;
+            expiresAt = System.currentTimeMillis() + leaseMs;
+            return true;
+        }
+
+        private boolean isStale(long now) {
+            return now > expiresAt;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    private static class FileState {
+        final Set<Lease> readers = new HashSet<>();
+        final ArrayDeque<Lease> waiting = new ArrayDeque<>();
+        Lease writer;
+
+        boolean isIdle() {
+            return readers.isEmpty() && writer == null && waiting.isEmpty();
+        }
+    }
+
+    private static class Stripe {
+        final Map<String, FileState> files = new HashMap<>();
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long leaseMs;
+    private final LatencyHistogram readWait;
+    private final LatencyHistogram writeWait;
+    private final ScheduledExecutorService timer;
+
+    public FileLockManager(long leaseMs, Metrics metrics) {
+        this.leaseMs = leaseMs;
+        this.readWait = metrics.latency("lock.read.wait");
+        this.writeWait = metrics.latency("lock.write.wait");
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lock-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::expireStale, EXPIRY_CHECK_MS, EXPIRY_CHECK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public long getLeaseMs() {
+        return leaseMs;
+    }
+
+    /**
+     * Blocks until fullName can be read, for at most timeoutMs.
+     */
+    public Lease acquireRead(String fullName, long timeoutMs) throws ServiceUnavailableException, InterruptedException {
+        Lease lease = new Lease(fullName, false);
+        enqueue(lease);
+        try {
+            return lease.granted.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if (abandon(lease)) throw timedOut(lease);
+            return lease; // granted just now
+        } catch (InterruptedException e) {
+            if (!abandon(lease)) release(lease);
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause()); // nothing fails a lease a thread waits on
+        }
+    }
+
+    /**
+     * Queues for a lease on fullName without blocking. The future completes with the lease once it
+     * is granted, whoever holds it then must close it, or fails with ServiceUnavailableException
+     * when it was not granted within timeoutMs.
+     */
+    public CompletableFuture<Lease> acquire(String fullName, boolean write, long timeoutMs) {
+        Lease lease = new Lease(fullName, write);
+        enqueue(lease);
+        if (!lease.granted.isDone()) {
+            timer.schedule(() -> {
+                if (abandon(lease)) lease.granted.completeExceptionally(timedOut(lease));
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        return lease.granted;
+    }
+
+    private void enqueue(Lease lease) {
+        Stripe stripe = stripeFor(lease.fullName);
+        List<Lease> granted;
+        synchronized (stripe) {
+            FileState state = stripe.files.computeIfAbsent(lease.fullName, k -> new FileState());
+            state.waiting.addLast(lease);
+            granted = grantWaiting(state, System.currentTimeMillis());
+        }
+        complete(granted);
+    }
+
+    /**
+     * Takes lease out of the queue.
+     *
+     * @return false when it was granted already
+     */
+    private boolean abandon(Lease lease) {
+        Stripe stripe = stripeFor(lease.fullName);
+        List<Lease> granted;
+        synchronized (stripe) {
+            FileState state = stripe.files.get(lease.fullName);
+            if (state == null || !state.waiting.remove(lease)) return false;
+            // A writer giving up at the head lets the readers behind it go
+            granted = grantWaiting(state, System.currentTimeMillis());
+            if (state.isIdle()) stripe.files.remove(lease.fullName);
+        }
+        complete(granted);
+        return true;
+    }
+
+    private void release(Lease lease) {
+        Stripe stripe = stripeFor(lease.fullName);
+        List<Lease> granted;
+        synchronized (stripe) {
+            FileState state = stripe.files.get(lease.fullName);
+            lease.ended = true;
+            if (state == null) return;
+            if (state.writer == lease) state.writer = null;
+            else state.readers.remove(lease);
+            granted = grantWaiting(state, System.currentTimeMillis());
+            if (state.isIdle()) stripe.files.remove(lease.fullName);
+        }
+        complete(granted);
+    }
+
+    private void expireStale() {
+        long now = System.currentTimeMillis();
+        for (Stripe stripe : stripes) {
+            List<Lease> granted = new ArrayList<>();
+            synchronized (stripe) {
+                for (FileState state : stripe.files.values()) {
+                    if (!state.waiting.isEmpty()) granted.addAll(grantWaiting(state, now));
+                }
+            }
+            complete(granted);
+        }
+    }
+
+    /**
+     * Grants what the head of the queue allows: a writer alone once the file is free, or every
+     * reader up to the next writer, so readers never pass a writer that arrived first.
+     * The caller holds the stripe and completes the returned leases after letting go of it.
+     */
+    private List<Lease> grantWaiting(FileState state, long now) {
+        expireStale(state, now);
+        List<Lease> granted = new ArrayList<>();
+        while (state.writer == null && !state.waiting.isEmpty()) {
+            Lease next = state.waiting.peekFirst();
+            if (next.write && !state.readers.isEmpty()) break;
+            state.waiting.pollFirst();
+            next.expiresAt = now + leaseMs;
+            if (next.write) state.writer = next;
+            else state.readers.add(next);
+            granted.add(next);
+        }
+        return granted;
+    }
+
+    private void complete(List<Lease> granted) {
+        for (Lease lease : granted) {
+            (lease.write ? writeWait : readWait).record(System.nanoTime() - lease.requestedAt);
+            lease.granted.complete(lease);
+        }
+    }
+
+    private static void expireStale(FileState state, long now) {
+        if (state.writer != null && state.writer.isStale(now)) {
+            System.err.println("Coordinator: Reclaiming expired write lease on " + state.writer.fullName);
+            state.writer.ended = true;
+            state.writer = null;
+        }
+        state.readers.removeIf(reader -> {
+            if (!reader.isStale(now)) return false;
+            System.err.println("Coordinator: Reclaiming expired read lease on " + reader.fullName);
+            reader.ended = true;
+            return true;
+        });
+    }
+
+    private static ServiceUnavailableException timedOut(Lease lease) {
+        return new ServiceUnavailableException("Timed out waiting to " + (lease.write ? "write " : "read ") + lease.fullName);
+    }
+
+    private Stripe stripeFor(String fullName) {
+        return stripes[Math.floorMod(fullName.hashCode(), STRIPES)];
+    }
+}
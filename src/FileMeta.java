@@ -1,27 +1,32 @@
-import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class FileMeta {
-    private final HashSet<String> nodes;
+    private final Set<String> nodes; // replicas are added concurrently while a write fans out
     String name;
     String dep;
+    private volatile long size; // bytes, as declared by the last upload
+    private volatile long version; // changes with every write, so resumed downloads can tell the content moved on
+    private volatile String digest; // SHA-256 of the content the primary committed, null until known
 
     public FileMeta(String name, String dep, List<String> nodes) {
         this.name = name;
         this.dep = dep;
-        this.nodes = new HashSet<>(nodes);
+        this.nodes = ConcurrentHashMap.newKeySet();
+        this.nodes.addAll(nodes);
     }
 
     public FileMeta(String name, String dep) {
         this.name = name;
         this.dep = dep;
-        this.nodes = new HashSet<>();
+        this.nodes = ConcurrentHashMap.newKeySet();
     }
 
     public FileMeta(String fullName) {
         this.name = fullName.split("/")[1];
         this.dep = fullName.split("/")[0];
-        this.nodes = new HashSet<>();
+        this.nodes = ConcurrentHashMap.newKeySet();
     }
 
     public void addNode(String node) {
@@ -48,6 +53,37 @@ public class FileMeta {
         return this.nodes.stream().toList();
     }
 
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public void setDigest(String digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * Moves to a version no earlier incarnation of this file used, even across delete and re-create.
+     */
+    public void nextVersion() {
+        this.version = Math.max(version + 1, System.currentTimeMillis());
+    }
+
     public String getFullName() {
         return dep + '/' + name;
     }
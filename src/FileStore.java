@@ -0,0 +1,197 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * How a node keeps file contents on disk. Writers never touch a stored file directly: they fill a
+ * staging file and hand it to {@link #commit}, or let the store run one of the transfer protocols
+ * itself. Readers get a read-only FileChannel whatever the layout underneath.
+ * <p>
+ * Pick one with the {@code node.storage} system property: {@code plain} (default) keeps every file
+ * as a regular copy, {@code chunked} deduplicates content across files.
+ */
+public interface FileStore {
+    String STAGING_DIR = ".staging";
+
+    boolean exists(String name);
+
+    FileChannel openRead(String name) throws IOException;
+
+    /**
+     * Chunk list of a stored file when the store already knows it, null otherwise.
+     */
+    List<Chunker.Chunk> chunks(String name) throws IOException;
+
+    Path stagingFile() throws IOException;
+
+    /**
+     * Makes staged the new content of name, replacing any previous version.
+     */
+    void commit(String name, Path staged) throws IOException;
+
+    boolean delete(String name) throws IOException;
+
+    /**
+     * Names of all stored files.
+     */
+    List<String> list() throws IOException;
+
+    /**
+     * Runs the receiving side of {@link DeltaSync} against the stored copy of name. With a
+     * transferId, what arrived before a failure stays in the staging area and a later call with the
+     * same id continues from there.
+     *
+     * @return number of bytes written to disk
+     */
+    long receiveDelta(String name, String transferId, ReadableByteChannel in, WritableByteChannel out) throws IOException;
+
+    /**
+     * Runs the receiving side of the {@link Chunker} offer protocol for name. A store that shares
+     * chunks between files asks to be offered chunks, any other takes the file as a plain stream.
+     * With a transferId, what arrived before a failure is kept and not asked for again by a later
+     * call with the same id.
+     *
+     * @return number of bytes received
+     */
+    long receiveChunks(String name, String transferId, ReadableByteChannel in, WritableByteChannel out) throws IOException;
+
+    /**
+     * Drops what interrupted transfers left in the staging area longer than maxAgeMs ago.
+     */
+    void expireStaged(long maxAgeMs) throws IOException;
+
+    /**
+     * Names of the regular files below root, relative to it and '/' separated, leaving out
+     * directories that start with a dot.
+     */
+    static List<String> namesUnder(Path root) throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            return files.filter(Files::isRegularFile)
+                    .map(root::relativize)
+                    .filter(relative -> !relative.getName(0).toString().startsWith("."))
+                    .map(relative -> relative.toString().replace(relative.getFileSystem().getSeparator(), "/"))
+                    .toList();
+        }
+    }
+
+    /**
+     * Transfer ids end up in staging file names, so only a safe alphabet is accepted.
+     */
+    static void checkTransferId(String transferId) throws IOException {
+        if (transferId != null && !transferId.matches("[A-Za-z0-9-]{1,64}")) {
+            throw new IOException("Invalid transfer id " + transferId);
+        }
+    }
+
+    static FileStore fromConfig(Path basePath) throws IOException {
+        String name = System.getProperty("node.storage", "plain");
+        return switch (name) {
+            case "plain" -> new PlainFileStore(basePath);
+            case "chunked" -> new ChunkedFileStore(basePath);
+            default -> throw new IllegalArgumentException("Unknown storage engine " + name);
+        };
+    }
+}
+
+/**
+ * One regular file per stored file, at basePath/name.
+ */
+class PlainFileStore implements FileStore {
+    private final Path basePath;
+    private final Path stagingDir;
+
+    PlainFileStore(Path basePath) throws IOException {
+        this.basePath = basePath;
+        this.stagingDir = basePath.resolve(STAGING_DIR);
+        Files.createDirectories(stagingDir);
+    }
+
+    private Path pathOf(String name) {
+        return basePath.resolve(name);
+    }
+
+    @Override
+    public boolean exists(String name) {
+        return Files.exists(pathOf(name));
+    }
+
+    @Override
+    public FileChannel openRead(String name) throws IOException {
+        return FileChannel.open(pathOf(name), StandardOpenOption.READ);
+    }
+
+    @Override
+    public List<Chunker.Chunk> chunks(String name) {
+        return null;
+    }
+
+    @Override
+    public Path stagingFile() throws IOException {
+        return Files.createTempFile(stagingDir, "write-", ".part");
+    }
+
+    @Override
+    public void commit(String name, Path staged) throws IOException {
+        Path target = pathOf(name);
+        Files.createDirectories(target.getParent());
+        Files.move(staged, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public boolean delete(String name) throws IOException {
+        return Files.deleteIfExists(pathOf(name));
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        return FileStore.namesUnder(basePath);
+    }
+
+    @Override
+    public long receiveDelta(String name, String transferId, ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        FileStore.checkTransferId(transferId);
+        Path spool = transferId != null ? stagingDir.resolve("update-" + transferId + ".ops") : null;
+        return DeltaSync.receive(in, out, pathOf(name), stagingDir, spool);
+    }
+
+    @Override
+    public long receiveChunks(String name, String transferId, ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        FileStore.checkTransferId(transferId);
+        Path staged = transferId != null ? stagingDir.resolve("upload-" + transferId + ".part") : stagingFile();
+        boolean done = false;
+        try {
+            long received;
+            try (FileChannel file = FileChannel.open(staged, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                // Nothing to share between files here, so take plain bytes and carry on after what an earlier attempt left
+                long[] range = Chunker.requestStream(file.size(), in, out);
+                file.truncate(range[0]);
+                received = Transfers.receive(in, file, range[0], range[1] - range[0]);
+                file.force(false);
+            }
+            commit(name, staged);
+            done = true;
+            return received;
+        } finally {
+            if (done || transferId == null) Files.deleteIfExists(staged);
+        }
+    }
+
+    @Override
+    public void expireStaged(long maxAgeMs) throws IOException {
+        long cutoff = System.currentTimeMillis() - maxAgeMs;
+        try (Stream<Path> staged = Files.list(stagingDir)) {
+            for (Path file : (Iterable<Path>) staged::iterator) {
+                if (Files.getLastModifiedTime(file).toMillis() < cutoff) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+}
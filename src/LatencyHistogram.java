@@ -0,0 +1,122 @@
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies in nanoseconds, counted in log-linear buckets: 16 per power of two, so any value is
+ * reported within 1/16 (about 6%) of what was recorded, from 1 ns up to centuries, in a fixed
+ * array. Recording is a few atomic increments and never allocates; readers take a
+ * {@link Snapshot}, which is what goes over RMI.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(indexOf(nanos));
+        total.add(nanos);
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+            // lost to another writer, look again
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        int first = BUCKETS;
+        int last = -1;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            if (copy[i] == 0) continue;
+            count += copy[i];
+            first = Math.min(first, i);
+            last = i;
+        }
+        // Only the occupied range goes over the wire, typically a few hundred of the buckets
+        return last < 0 ? new Snapshot(new long[0], 0, 0, 0, 0)
+                : new Snapshot(Arrays.copyOfRange(copy, first, last + 1), first, count, total.sum(), max.get());
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value); // at least SUB_BUCKET_BITS here
+        int sub = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Largest value that falls into bucket index.
+     */
+    private static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + sub) << (magnitude - SUB_BUCKET_BITS);
+        return lower + (1L << (magnitude - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public static class Snapshot implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final long[] counts;
+        private final int firstIndex; // bucket of counts[0]
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+
+        private Snapshot(long[] counts, int firstIndex, long count, long totalNanos, long maxNanos) {
+            this.counts = counts;
+            this.firstIndex = firstIndex;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanNanos() {
+            return count == 0 ? 0 : (double) totalNanos / count;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        /**
+         * Smallest bucket bound at or below which quantile (0 to 1) of the recorded values fall.
+         */
+        public long getValueAtQuantile(double quantile) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(upperBoundOf(firstIndex + i), maxNanos);
+            }
+            return maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d mean=%.2f p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f ms",
+                    count, getMeanNanos() / 1e6, millis(getValueAtQuantile(0.5)), millis(getValueAtQuantile(0.9)),
+                    millis(getValueAtQuantile(0.99)), millis(getValueAtQuantile(0.999)), millis(maxNanos));
+        }
+
+        private static double millis(long nanos) {
+            return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Exported by a client so the coordinator can tell it a department listing changed, instead of the
+ * client fetching the listing again on every screen.
+ */
+public interface ListingListener extends Remote {
+    void listingChanged(String department, long version) throws RemoteException;
+}
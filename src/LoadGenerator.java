@@ -0,0 +1,475 @@
+import javax.naming.ServiceUnavailableException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Headless load test: many virtual users, each logged in as its own employee, run a weighted mix
+ * of operations against a coordinator and its nodes back to back, and the run ends with throughput
+ * and latency percentiles per operation. The cluster is started in this JVM, as local processes,
+ * or is one already running.
+ * <p>
+ * Options, each --name=value:
+ * cluster (inprocess, processes or external), nodes, users, duration and warmup (seconds), think
+ * (milliseconds between a user's operations), mix (operation:weight,...), sizes (size:weight,...
+ * with k, m or g suffixes), seed, report (csv file the summary is also written to).
+ */
+public class LoadGenerator {
+    private static final String REGISTRY_URL = "rmi://localhost:5000/";
+    private static final String WORK_DIR = "storage/loadgen"; // Logs of started processes and the users' local copies
+    private static final String PASSWORD = "load";
+    private static final String DEFAULT_MIX = "login:2,list:30,get:40,create:12,update:10,delete:6";
+    private static final String DEFAULT_SIZES = "4k:50,64k:35,1m:14,16m:1";
+    private static final long OPERATION_TIMEOUT_MS = 60 * 1000; // Same patience as the interactive client
+    private static final int ACCEPT_POLL_MS = 5 * 1000;
+    private static final long STARTUP_TIMEOUT_MS = 30 * 1000; // For each started process to bind itself
+    private static final int EDITED_BLOCKS = 4; // Blocks an update rewrites, so updates exercise the delta path
+    private static final int EDIT_BLOCK_SIZE = 4 * 1024;
+    private static final int IO_BUFFER_SIZE = 256 * 1024;
+
+    enum Operation {
+        LOGIN, LIST, GET, CREATE, UPDATE, DELETE;
+
+        String key() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        boolean needsFile() {
+            return this == GET || this == UPDATE || this == DELETE;
+        }
+    }
+
+    private final CoordinatorInt coordinator;
+    private final Metrics metrics = new Metrics("LoadGenerator");
+    private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+    private final Map<Operation, Metrics.Meter> failures = new EnumMap<>(Operation.class);
+    private final Metrics.Meter bytesSent = metrics.meter("bytes.sent");
+    private final Metrics.Meter bytesReceived = metrics.meter("bytes.received");
+    private final WeightedChoice<Operation> mix;
+    private final WeightedChoice<Long> sizes;
+    private final long thinkMs;
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private volatile long measureFrom;
+    private volatile long measureUntil;
+
+    LoadGenerator(CoordinatorInt coordinator, WeightedChoice<Operation> mix, WeightedChoice<Long> sizes, long thinkMs) {
+        this.coordinator = coordinator;
+        this.mix = mix;
+        this.sizes = sizes;
+        this.thinkMs = thinkMs;
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, metrics.latency("op." + operation.key()));
+            failures.put(operation, metrics.meter("op." + operation.key() + ".failed"));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        String cluster = options.getOrDefault("cluster", "inprocess");
+        int nodeCount = Integer.parseInt(options.getOrDefault("nodes", "3"));
+        int userCount = Integer.parseInt(options.getOrDefault("users", "16"));
+        long durationS = Long.parseLong(options.getOrDefault("duration", "60"));
+        long warmupS = Long.parseLong(options.getOrDefault("warmup", "10"));
+        long thinkMs = Long.parseLong(options.getOrDefault("think", "0"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "42"));
+        WeightedChoice<Operation> mix = WeightedChoice.parse(options.getOrDefault("mix", DEFAULT_MIX),
+                key -> Operation.valueOf(key.toUpperCase(Locale.ROOT)));
+        WeightedChoice<Long> sizes = WeightedChoice.parse(options.getOrDefault("sizes", DEFAULT_SIZES), LoadGenerator::parseSize);
+
+        Files.createDirectories(Paths.get(WORK_DIR));
+        PrintStream console = System.out;
+        List<Process> processes = new ArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> processes.forEach(Process::destroy)));
+        switch (cluster) {
+            case "inprocess" -> {
+                // Coordinator and nodes log every operation, which would bury the report
+                System.setOut(new PrintStream(new FileOutputStream(Paths.get(WORK_DIR, "cluster.log").toFile()), true));
+                CoordinatorImp.main(new String[0]);
+                for (int i = 1; i <= nodeCount; i++) NodeImp.startInstance("node_" + i);
+            }
+            case "processes" -> {
+                processes.add(launch("CoordinatorImp"));
+                awaitBound("coordinator");
+                for (int i = 1; i <= nodeCount; i++) processes.add(launch("NodeImp", "node_" + i));
+                for (int i = 1; i <= nodeCount; i++) awaitBound("node_" + i);
+                // A node registers with the coordinator right after binding itself
+                Thread.sleep(2 * NodeHeartbeat.INTERVAL_MS);
+            }
+            case "external" -> {
+            }
+            default -> throw new IllegalArgumentException("Unknown cluster mode " + cluster);
+        }
+        CoordinatorInt coordinator = (CoordinatorInt) awaitBound("coordinator");
+
+        LoadGenerator generator = new LoadGenerator(coordinator, mix, sizes, thinkMs);
+        generator.metrics.registerMBean("LoadGenerator", null);
+        List<VirtualUser> users = generator.createUsers(userCount, seed);
+        console.println("LoadGenerator: " + userCount + " users against " + (cluster.equals("external") ? "a running cluster" : nodeCount + " nodes (" + cluster + ")")
+                + ", " + warmupS + "s warmup then " + durationS + "s measured");
+
+        long started = System.nanoTime();
+        generator.measureFrom = started + TimeUnit.SECONDS.toNanos(warmupS);
+        generator.measureUntil = generator.measureFrom + TimeUnit.SECONDS.toNanos(durationS);
+        ExecutorService pool = Executors.newFixedThreadPool(userCount, runnable -> {
+            Thread thread = new Thread(runnable, "virtual-user");
+            thread.setDaemon(true);
+            return thread;
+        });
+        users.forEach(pool::execute);
+        pool.shutdown();
+        // Operations still running at the end are allowed to finish, up to their own timeout
+        pool.awaitTermination(warmupS + durationS + OPERATION_TIMEOUT_MS / 1000 * 2, TimeUnit.SECONDS);
+
+        generator.report(console, durationS, options.get("report"));
+        for (VirtualUser user : users) user.cleanUp();
+        System.exit(0);
+    }
+
+    private List<VirtualUser> createUsers(int count, long seed) throws RemoteException {
+        String managerToken = coordinator.login("man", "123");
+        List<String> departments = coordinator.getDepartments(managerToken);
+        List<VirtualUser> users = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String username = "load_" + i;
+            String department = departments.get(i % departments.size());
+            try {
+                coordinator.addEmployee(managerToken, username, PASSWORD, List.of(department));
+            } catch (InvalidParameterException e) {
+                // Left over from an earlier run against the same coordinator
+            }
+            users.add(new VirtualUser(username, department, new Random(seed + i)));
+        }
+        coordinator.logout(managerToken);
+        return users;
+    }
+
+    private void report(PrintStream out, long durationS, String csvPath) throws IOException {
+        List<String> rows = new ArrayList<>();
+        rows.add("operation,count,ops_per_s,errors,mean_ms,p50_ms,p99_ms,p999_ms,max_ms");
+        out.printf("%-8s %9s %9s %7s %9s %9s %9s %9s %9s%n", "op", "count", "ops/s", "errors", "mean ms", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram.Snapshot snapshot = latencies.get(operation).snapshot();
+            long errors = failures.get(operation).getTotal();
+            if (snapshot.getCount() == 0 && errors == 0) continue;
+            double rate = snapshot.getCount() / (double) durationS;
+            double[] millis = {snapshot.getMeanNanos() / 1e6, snapshot.getValueAtQuantile(0.5) / 1e6, snapshot.getValueAtQuantile(0.99) / 1e6,
+                    snapshot.getValueAtQuantile(0.999) / 1e6, snapshot.getMaxNanos() / 1e6};
+            out.printf("%-8s %9d %9.1f %7d %9.2f %9.2f %9.2f %9.2f %9.2f%n", operation.key(), snapshot.getCount(), rate, errors,
+                    millis[0], millis[1], millis[2], millis[3], millis[4]);
+            rows.add(String.format(Locale.ROOT, "%s,%d,%.3f,%d,%.3f,%.3f,%.3f,%.3f,%.3f", operation.key(), snapshot.getCount(), rate, errors,
+                    millis[0], millis[1], millis[2], millis[3], millis[4]));
+        }
+        out.printf("Uploaded %.1f MB/s, downloaded %.1f MB/s%n",
+                bytesSent.getTotal() / 1e6 / durationS, bytesReceived.getTotal() / 1e6 / durationS);
+        if (csvPath != null) {
+            Files.write(Paths.get(csvPath), rows);
+            out.println("Report written to " + csvPath);
+        }
+    }
+
+    /**
+     * One simulated person: logs in, then picks operations from the mix until the run is over.
+     * Gets, updates and deletes only touch files this user created, so users never race each other
+     * and a failure always means the system failed.
+     */
+    private class VirtualUser implements Runnable {
+        private final String username;
+        private final String department;
+        private final Random random;
+        private final Path localDir;
+        private final List<String> files = new ArrayList<>();
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+        private String token;
+        private int created;
+
+        VirtualUser(String username, String department, Random random) {
+            this.username = username;
+            this.department = department;
+            this.random = random;
+            this.localDir = Paths.get(WORK_DIR, "users", username);
+        }
+
+        @Override
+        public void run() {
+            try {
+                Files.createDirectories(localDir);
+                token = coordinator.login(username, PASSWORD);
+            } catch (IOException e) {
+                System.err.println("LoadGenerator: " + username + " could not start: " + e.getMessage());
+                return;
+            }
+            while (System.nanoTime() < measureUntil) {
+                Operation operation = mix.pick(random);
+                if (operation.needsFile() && files.isEmpty()) operation = Operation.CREATE;
+                long startedAt = System.nanoTime();
+                boolean failed = false;
+                try {
+                    execute(operation);
+                } catch (Exception e) {
+                    failed = true;
+                    if (startedAt >= measureFrom) {
+                        System.err.println("LoadGenerator: " + username + " " + operation.key() + " failed: " + e.getMessage());
+                    }
+                }
+                // Warmup operations run but are not counted
+                if (startedAt >= measureFrom) {
+                    if (failed) {
+                        failures.get(operation).mark(1);
+                    } else {
+                        latencies.get(operation).record(System.nanoTime() - startedAt);
+                    }
+                }
+                if (thinkMs > 0) {
+                    try {
+                        Thread.sleep(thinkMs);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void execute(Operation operation) throws IOException, ServiceUnavailableException {
+            switch (operation) {
+                case LOGIN -> {
+                    String previous = token;
+                    token = coordinator.login(username, PASSWORD);
+                    coordinator.logout(previous);
+                }
+                case LIST -> coordinator.getDepartmentFiles(token, department);
+                case GET -> get(files.get(random.nextInt(files.size())));
+                case CREATE -> create();
+                case UPDATE -> update(files.get(random.nextInt(files.size())));
+                case DELETE -> {
+                    String fileName = files.remove(random.nextInt(files.size()));
+                    Files.deleteIfExists(localDir.resolve(fileName));
+                    awaitOperation(coordinator.fileDelete(token, department + "/" + fileName));
+                }
+            }
+        }
+
+        private void create() throws IOException, ServiceUnavailableException {
+            String fileName = username + "-" + runId + "-" + created++ + ".bin";
+            Path local = localDir.resolve(fileName);
+            long size = sizes.pick(random);
+            try (FileChannel out = FileChannel.open(local, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                byte[] block = new byte[EDIT_BLOCK_SIZE];
+                for (long written = 0; written < size; written += block.length) {
+                    random.nextBytes(block);
+                    out.write(ByteBuffer.wrap(block, 0, (int) Math.min(block.length, size - written)));
+                }
+            }
+            try (ServerSocketChannel socket = Transfers.listen(0)) {
+                long operationId = coordinator.fileCreate(token, "localhost", Transfers.localPort(socket), department + "/" + fileName, size, null);
+                try (SocketChannel nodeConnection = acceptFor(socket, operationId);
+                     FileChannel fileIn = FileChannel.open(local, StandardOpenOption.READ)) {
+                    Transfers.writeToken(nodeConnection, token);
+                    try (Compression.Link link = Compression.offer(nodeConnection, fileName)) {
+                        Chunker.send(fileIn, null, link.in(), link.out());
+                    }
+                }
+                awaitOperation(operationId);
+            }
+            bytesSent.mark(size);
+            files.add(fileName);
+        }
+
+        private void update(String fileName) throws IOException, ServiceUnavailableException {
+            // A few blocks change and the rest stays, like an edited document
+            Path local = localDir.resolve(fileName);
+            long size;
+            try (FileChannel out = FileChannel.open(local, StandardOpenOption.WRITE)) {
+                size = out.size();
+                byte[] block = new byte[EDIT_BLOCK_SIZE];
+                for (int i = 0; i < EDITED_BLOCKS; i++) {
+                    random.nextBytes(block);
+                    long position = size > block.length ? (long) (random.nextDouble() * (size - block.length)) : 0;
+                    out.write(ByteBuffer.wrap(block, 0, (int) Math.min(block.length, size)), position);
+                }
+            }
+            try (ServerSocketChannel socket = Transfers.listen(0)) {
+                long operationId = coordinator.fileUpdate(token, "localhost", Transfers.localPort(socket), department + "/" + fileName, size, null);
+                try (SocketChannel nodeConnection = acceptFor(socket, operationId);
+                     FileChannel fileIn = FileChannel.open(local, StandardOpenOption.READ)) {
+                    Transfers.writeToken(nodeConnection, token);
+                    try (Compression.Link link = Compression.offer(nodeConnection, fileName)) {
+                        bytesSent.mark(DeltaSync.send(fileIn, link.in(), link.out()));
+                    }
+                }
+                awaitOperation(operationId);
+            }
+        }
+
+        private void get(String fileName) throws IOException, ServiceUnavailableException {
+            try (ServerSocketChannel socket = Transfers.listen(0)) {
+                long operationId = coordinator.fileGet(token, "localhost", Transfers.localPort(socket), fileName, department);
+                long received = 0;
+                try (SocketChannel nodeConnection = acceptFor(socket, operationId)) {
+                    Transfers.writeToken(nodeConnection, token);
+                    try (Compression.Link link = Compression.offer(nodeConnection, fileName)) {
+                        // Only the bytes count, they are not kept
+                        int n;
+                        while ((n = link.in().read(buffer.clear())) >= 0) received += n;
+                    }
+                }
+                awaitOperation(operationId);
+                bytesReceived.mark(received);
+            }
+        }
+
+        private SocketChannel acceptFor(ServerSocketChannel socket, long operationId) throws IOException {
+            socket.socket().setSoTimeout(ACCEPT_POLL_MS);
+            while (true) {
+                try {
+                    return socket.socket().accept().getChannel();
+                } catch (SocketTimeoutException e) {
+                    OperationStatus status = coordinator.getOperationStatus(token, operationId);
+                    if (status.isDone()) {
+                        throw new IOException("Operation " + operationId + " ended without connecting: " + status.getMessage());
+                    }
+                }
+            }
+        }
+
+        private void awaitOperation(long operationId) throws IOException {
+            OperationStatus status = coordinator.awaitOperation(token, operationId, OPERATION_TIMEOUT_MS);
+            if (status.getState() == OperationStatus.State.FAILED) {
+                throw new IOException("Operation failed: " + status.getMessage());
+            }
+            if (!status.isDone()) {
+                throw new IOException("Operation " + operationId + " still " + status.getState().name().toLowerCase(Locale.ROOT) + " after " + OPERATION_TIMEOUT_MS + " ms");
+            }
+        }
+
+        /**
+         * Removes what this user created, so repeated runs start from the same cluster state.
+         */
+        void cleanUp() {
+            try {
+                if (token != null && !files.isEmpty()) {
+                    List<String> fullNames = files.stream().map(fileName -> department + "/" + fileName).toList();
+                    coordinator.awaitOperations(token, coordinator.fileDeleteMany(token, fullNames), OPERATION_TIMEOUT_MS);
+                }
+                if (token != null) coordinator.logout(token);
+            } catch (RemoteException | ServiceUnavailableException | RuntimeException e) {
+                System.err.println("LoadGenerator: " + username + " could not delete its files: " + e.getMessage());
+            }
+            try (Stream<Path> paths = Files.walk(localDir)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            } catch (IOException | UncheckedIOException e) {
+                // Only scratch copies
+            }
+        }
+    }
+
+    /**
+     * Starts mainClass in a JVM of its own with our class path, logging to the work directory.
+     */
+    private static Process launch(String mainClass, String... args) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        // Settings like -Dnode.storage apply to the cluster too
+        ManagementFactory.getRuntimeMXBean().getInputArguments().stream().filter(arg -> arg.startsWith("-D")).forEach(command::add);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(mainClass);
+        command.addAll(List.of(args));
+        String logName = (args.length > 0 ? args[0] : mainClass) + ".log";
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(Paths.get(WORK_DIR, logName).toFile())
+                .start();
+    }
+
+    private static Object awaitBound(String name) throws Exception {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MS;
+        while (true) {
+            try {
+                return Naming.lookup(REGISTRY_URL + name);
+            } catch (NotBoundException | RemoteException e) {
+                if (System.currentTimeMillis() > deadline) throw new IllegalStateException(name + " did not come up", e);
+                Thread.sleep(200);
+            }
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+
+    static long parseSize(String size) {
+        String lower = size.toLowerCase(Locale.ROOT);
+        long unit = switch (lower.charAt(lower.length() - 1)) {
+            case 'k' -> 1024L;
+            case 'm' -> 1024L * 1024;
+            case 'g' -> 1024L * 1024 * 1024;
+            default -> 1;
+        };
+        return Long.parseLong(unit == 1 ? lower : lower.substring(0, lower.length() - 1)) * unit;
+    }
+}
+
+/**
+ * Picks values at random in proportion to their weights, parsed from "value:weight,...".
+ */
+class WeightedChoice<T> {
+    private final List<T> values = new ArrayList<>();
+    private final List<Double> cumulative = new ArrayList<>();
+    private double total;
+
+    static <T> WeightedChoice<T> parse(String spec, Function<String, T> parser) {
+        WeightedChoice<T> choice = new WeightedChoice<>();
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.trim().split(":");
+            double weight = parts.length > 1 ? Double.parseDouble(parts[1]) : 1;
+            if (weight <= 0) continue;
+            choice.values.add(parser.apply(parts[0]));
+            choice.total += weight;
+            choice.cumulative.add(choice.total);
+        }
+        if (choice.values.isEmpty()) throw new IllegalArgumentException("Nothing to choose from in " + spec);
+        return choice;
+    }
+
+    T pick(Random random) {
+        double point = random.nextDouble() * total;
+        for (int i = 0; i < values.size(); i++) {
+            if (point < cumulative.get(i)) return values.get(i);
+        }
+        return values.get(values.size() - 1);
+    }
+}
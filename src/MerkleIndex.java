@@ -0,0 +1,153 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hash tree over the files of one department. Files fall by name into 2^DEPTH leaf buckets, a
+ * bucket is the XOR of its files' entry hashes and every inner node hashes its two children; an
+ * empty subtree hashes to 0. Holders of the same files with the same contents have equal roots, and
+ * where they differ, comparing level by level reaches the differing buckets in DEPTH steps however
+ * many files there are. Changing one file touches its bucket and the DEPTH nodes above it.
+ * <p>
+ * Nodes are numbered heap style: {@link #ROOT} is 1, the children of i are 2i and 2i + 1, and
+ * buckets are the last 2^DEPTH numbers.
+ */
+public class MerkleIndex {
+    public static final int DEPTH = 8;
+    public static final int ROOT = 1;
+    private static final int LEAVES = 1 << DEPTH;
+    private static final int READ_BUFFER = 256 * 1024;
+
+    private final long[] tree = new long[2 * LEAVES];
+    private final List<Map<String, String>> buckets = new ArrayList<>(Collections.nCopies(LEAVES, null)); // name to digest, per leaf
+
+    public synchronized void put(String name, String digest) {
+        int leaf = leafOf(name);
+        Map<String, String> bucket = buckets.get(leaf - LEAVES);
+        if (bucket == null) {
+            bucket = new HashMap<>();
+            buckets.set(leaf - LEAVES, bucket);
+        }
+        String previous = bucket.put(name, digest);
+        if (digest.equals(previous)) return;
+        if (previous != null) tree[leaf] ^= entryHash(name, previous);
+        tree[leaf] ^= entryHash(name, digest);
+        rehashAbove(leaf);
+    }
+
+    /**
+     * Like {@link #put} but leaves an existing entry alone, for filling the index in the background
+     * while writes keep updating it.
+     */
+    public synchronized void putIfAbsent(String name, String digest) {
+        if (digestOf(name) == null) put(name, digest);
+    }
+
+    public synchronized void remove(String name) {
+        int leaf = leafOf(name);
+        Map<String, String> bucket = buckets.get(leaf - LEAVES);
+        String previous = bucket != null ? bucket.remove(name) : null;
+        if (previous == null) return;
+        tree[leaf] ^= entryHash(name, previous);
+        rehashAbove(leaf);
+    }
+
+    public synchronized String digestOf(String name) {
+        Map<String, String> bucket = buckets.get(leafOf(name) - LEAVES);
+        return bucket != null ? bucket.get(name) : null;
+    }
+
+    public synchronized long root() {
+        return tree[ROOT];
+    }
+
+    public synchronized long hash(int index) {
+        return tree[index];
+    }
+
+    public synchronized long[] hashes(int[] indices) {
+        long[] hashes = new long[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            hashes[i] = tree[indices[i]];
+        }
+        return hashes;
+    }
+
+    /**
+     * Files in the given leaf buckets, name to digest.
+     */
+    public synchronized Map<String, String> entries(int[] leaves) {
+        Map<String, String> entries = new HashMap<>();
+        for (int leaf : leaves) {
+            Map<String, String> bucket = buckets.get(leaf - LEAVES);
+            if (bucket != null) entries.putAll(bucket);
+        }
+        return entries;
+    }
+
+    public static boolean isLeaf(int index) {
+        return index >= LEAVES;
+    }
+
+    /**
+     * SHA-256 of the whole content, in hex. What replicas are compared by.
+     */
+    public static String digestOf(FileChannel file) throws IOException {
+        MessageDigest sha = sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER);
+        long position = 0;
+        int n;
+        while ((n = file.read(buffer, position)) > 0) {
+            position += n;
+            sha.update(buffer.flip());
+            buffer.clear();
+        }
+        return HexFormat.of().formatHex(sha.digest());
+    }
+
+    private void rehashAbove(int leaf) {
+        for (int i = leaf / 2; i >= ROOT; i /= 2) {
+            long left = tree[2 * i];
+            long right = tree[2 * i + 1];
+            tree[i] = left == 0 && right == 0 ? 0 : combine(left, right);
+        }
+    }
+
+    private static int leafOf(String name) {
+        // String.hashCode is fixed by the language spec, so every JVM puts a name in the same bucket
+        int h = name.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return LEAVES + (h & (LEAVES - 1));
+    }
+
+    private static long entryHash(String name, String digest) {
+        MessageDigest sha = sha256();
+        sha.update(name.getBytes(StandardCharsets.UTF_8));
+        sha.update((byte) 0);
+        sha.update(digest.getBytes(StandardCharsets.US_ASCII));
+        return ByteBuffer.wrap(sha.digest()).getLong();
+    }
+
+    private static long combine(long left, long right) {
+        return ByteBuffer.wrap(sha256().digest(ByteBuffer.allocate(16).putLong(left).putLong(right).array())).getLong();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,372 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Append-only journal of coordinator metadata with periodic snapshots.
+ * <p>
+ * Records are upserts of the current value of one file, employee or department replication
+ * factor, read from the live
+ * maps when the record is written, so replaying them in order (or twice) always converges on
+ * the latest state. A single writer thread drains every pending record, writes them in one go
+ * and fsyncs once for the whole batch. After enough records the journal rolls over to a new
+ * segment and a background thread dumps the maps into a snapshot; once that snapshot is on disk
+ * the segments it covers are deleted. Recovery loads the newest snapshot and replays the
+ * segments written after it.
+ */
+public class MetadataJournal {
+    private static final int SNAPSHOT_MAGIC = 0x534E4150; // "SNAP"
+    private static final byte FILE_RECORD = 1;
+    private static final byte EMPLOYEE_RECORD = 2;
+    private static final byte REPLICATION_RECORD = 3;
+    private static final int SNAPSHOT_EVERY_RECORDS = 200_000; // Roll over and snapshot after this many appends
+    private static final int IO_BUFFER_SIZE = 1 << 20;
+
+    private final Path directory;
+    private final Map<String, FileMeta> filesMeta;
+    private final Map<String, Employee> employees;
+    private final Map<String, Integer> replicationFactors;
+    private final BlockingQueue<Pending> pending = new LinkedBlockingQueue<>();
+    private final LatencyHistogram fsyncLatency;
+
+    private long segment;
+    private FileOutputStream segmentFile;
+    private DataOutputStream segmentOut;
+    private long recordsInSegment;
+    private volatile boolean snapshotRunning;
+
+    private record Pending(byte type, String key, CompletableFuture<Void> durable) {
+    }
+
+    public MetadataJournal(Path directory, Map<String, FileMeta> filesMeta, Map<String, Employee> employees,
+                           Map<String, Integer> replicationFactors, Metrics metrics) {
+        this.directory = directory;
+        this.filesMeta = filesMeta;
+        this.employees = employees;
+        this.replicationFactors = replicationFactors;
+        this.fsyncLatency = metrics.latency("journal.fsync");
+        metrics.gauge("journal.pending", pending::size);
+    }
+
+    /**
+     * Rebuilds the maps from disk and opens a fresh segment for new records.
+     */
+    public void recover() throws IOException {
+        Files.createDirectories(directory);
+        long started = System.currentTimeMillis();
+
+        long snapshotSegment = -1;
+        for (long candidate : listIds("snapshot-", ".snap")) {
+            snapshotSegment = Math.max(snapshotSegment, candidate);
+        }
+        if (snapshotSegment >= 0) {
+            loadSnapshot(snapshotPath(snapshotSegment));
+        }
+
+        long lastSegment = Math.max(snapshotSegment, 0);
+        int replayed = 0;
+        for (long id : listIds("journal-", ".log")) {
+            if (id < snapshotSegment) continue;
+            replayed += replay(segmentPath(id));
+            lastSegment = Math.max(lastSegment, id);
+        }
+
+        System.out.println("Coordinator: Recovered " + filesMeta.size() + " files and " + employees.size() + " employees ("
+                + replayed + " journal records) in " + (System.currentTimeMillis() - started) + " ms");
+
+        // Never append after a possibly torn tail, start a new segment instead
+        openSegment(lastSegment + 1);
+
+        Thread writer = new Thread(this::writeLoop, "metadata-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public CompletableFuture<Void> logFile(String fullName) {
+        return append(FILE_RECORD, fullName);
+    }
+
+    public CompletableFuture<Void> logEmployee(String username) {
+        return append(EMPLOYEE_RECORD, username);
+    }
+
+    public CompletableFuture<Void> logReplicationFactor(String department) {
+        return append(REPLICATION_RECORD, department);
+    }
+
+    private CompletableFuture<Void> append(byte type, String key) {
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        pending.add(new Pending(type, key, durable));
+        return durable;
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(pending.take());
+                pending.drainTo(batch);
+
+                for (Pending record : batch) {
+                    writeRecord(record.type, record.key);
+                }
+                long started = System.nanoTime();
+                segmentOut.flush();
+                segmentFile.getChannel().force(false); // one fsync for the whole batch
+                fsyncLatency.record(System.nanoTime() - started);
+                batch.forEach(record -> record.durable.complete(null));
+
+                recordsInSegment += batch.size();
+                if (recordsInSegment >= SNAPSHOT_EVERY_RECORDS && !snapshotRunning) {
+                    rollOver();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Coordinator: Metadata journal write failed: " + e.getMessage());
+                batch.forEach(record -> record.durable.completeExceptionally(e));
+                try {
+                    // Leave the damaged tail behind, replay stops at it and carries on with the next segment
+                    segmentOut.close();
+                    openSegment(segment + 1);
+                } catch (IOException reopenFailure) {
+                    System.err.println("Coordinator: Could not open a new journal segment: " + reopenFailure.getMessage());
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private void writeRecord(byte type, String key) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        writeEntry(out, type, key);
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray(), 0, bytes.size());
+        segmentOut.writeInt(bytes.size());
+        segmentOut.writeInt((int) crc.getValue());
+        bytes.writeTo(segmentOut);
+    }
+
+    /**
+     * Writes the current value for key, or a tombstone when it is gone from the live map.
+     */
+    private void writeEntry(DataOutputStream out, byte type, String key) throws IOException {
+        out.writeUTF(key);
+        switch (type) {
+            case FILE_RECORD -> {
+                FileMeta fm = filesMeta.get(key);
+                List<String> nodes = fm != null ? fm.getNodes() : List.of();
+                out.writeInt(nodes.size());
+                for (String node : nodes) out.writeUTF(node);
+                out.writeLong(fm != null ? fm.getSize() : 0);
+                out.writeLong(fm != null ? fm.getVersion() : 0);
+                String digest = fm != null ? fm.getDigest() : null;
+                out.writeUTF(digest != null ? digest : "");
+            }
+            case EMPLOYEE_RECORD -> {
+                Employee employee = employees.get(key);
+                out.writeBoolean(employee != null);
+                if (employee != null) writeEmployee(out, employee);
+            }
+            case REPLICATION_RECORD -> {
+                Integer factor = replicationFactors.get(key);
+                out.writeInt(factor != null ? factor : 0);
+            }
+            default -> throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    private void readEntry(DataInputStream in, byte type) throws IOException {
+        String key = in.readUTF();
+        switch (type) {
+            case FILE_RECORD -> {
+                int count = in.readInt();
+                List<String> nodes = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) nodes.add(in.readUTF());
+                FileMeta fm = filesMeta.computeIfAbsent(key, FileMeta::new);
+                fm.clearNodes();
+                fm.addNodes(nodes);
+                fm.setSize(in.readLong());
+                fm.setVersion(in.readLong());
+                String digest = in.readUTF();
+                fm.setDigest(digest.isEmpty() ? null : digest);
+            }
+            case EMPLOYEE_RECORD -> {
+                if (in.readBoolean()) employees.put(key, readEmployee(key, in));
+                else employees.remove(key);
+            }
+            case REPLICATION_RECORD -> {
+                int factor = in.readInt();
+                if (factor > 0) replicationFactors.put(key, factor);
+                else replicationFactors.remove(key);
+            }
+            default -> throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    private int replay(Path path) throws IOException {
+        int records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), IO_BUFFER_SIZE))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return records;
+                }
+                int expectedCrc = in.readInt();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != expectedCrc) {
+                    System.err.println("Coordinator: Corrupt record in " + path.getFileName() + " after " + records + " records, ignoring the rest");
+                    return records;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                readEntry(record, record.readByte());
+                records++;
+            }
+        } catch (EOFException e) {
+            // Torn write at the tail from a crash mid-append
+            System.err.println("Coordinator: Truncated record in " + path.getFileName() + " after " + records + " records");
+            return records;
+        }
+    }
+
+    private void rollOver() throws IOException {
+        segmentOut.close();
+        long covered = segment;
+        openSegment(segment + 1);
+        long snapshotId = segment;
+
+        snapshotRunning = true;
+        Thread snapshotter = new Thread(() -> {
+            try {
+                writeSnapshot(snapshotId);
+                deleteOlderThan(snapshotId);
+                System.out.println("Coordinator: Metadata snapshot " + snapshotId + " written, journal up to segment " + covered + " compacted");
+            } catch (IOException e) {
+                System.err.println("Coordinator: Metadata snapshot failed: " + e.getMessage());
+            } finally {
+                snapshotRunning = false;
+            }
+        }, "metadata-snapshot");
+        snapshotter.setDaemon(true);
+        snapshotter.start();
+    }
+
+    private void openSegment(long id) throws IOException {
+        segment = id;
+        segmentFile = new FileOutputStream(segmentPath(id).toFile(), true);
+        segmentOut = new DataOutputStream(new BufferedOutputStream(segmentFile, IO_BUFFER_SIZE));
+        recordsInSegment = 0;
+    }
+
+    private void writeSnapshot(long id) throws IOException {
+        Path tmp = directory.resolve("snapshot-" + id + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+             CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, IO_BUFFER_SIZE), new CRC32());
+             DataOutputStream out = new DataOutputStream(checked)) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            writeSection(out, FILE_RECORD, List.copyOf(filesMeta.keySet()));
+            writeSection(out, EMPLOYEE_RECORD, List.copyOf(employees.keySet()));
+            writeSection(out, REPLICATION_RECORD, List.copyOf(replicationFactors.keySet()));
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            file.getChannel().force(false);
+        }
+        Files.move(tmp, snapshotPath(id), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void writeSection(DataOutputStream out, byte type, List<String> keys) throws IOException {
+        out.writeInt(keys.size());
+        for (String key : keys) {
+            writeEntry(out, type, key);
+        }
+    }
+
+    private void loadSnapshot(Path path) throws IOException {
+        try (CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(Files.newInputStream(path), IO_BUFFER_SIZE), new CRC32());
+             DataInputStream in = new DataInputStream(checked)) {
+            if (in.readInt() != SNAPSHOT_MAGIC) throw new IOException("Not a metadata snapshot: " + path);
+            for (byte type : new byte[]{FILE_RECORD, EMPLOYEE_RECORD, REPLICATION_RECORD}) {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    readEntry(in, type);
+                }
+            }
+            long expected = checked.getChecksum().getValue();
+            if (in.readLong() != expected) throw new IOException("Checksum mismatch in " + path);
+        }
+    }
+
+    private void deleteOlderThan(long id) throws IOException {
+        for (long old : listIds("journal-", ".log")) {
+            if (old < id) Files.deleteIfExists(segmentPath(old));
+        }
+        for (long old : listIds("snapshot-", ".snap")) {
+            if (old < id) Files.deleteIfExists(snapshotPath(old));
+        }
+    }
+
+    private List<Long> listIds(String prefix, String suffix) throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                ids.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+            }
+        }
+        ids.sort(null);
+        return ids;
+    }
+
+    private Path segmentPath(long id) {
+        return directory.resolve("journal-" + id + ".log");
+    }
+
+    private Path snapshotPath(long id) {
+        return directory.resolve("snapshot-" + id + ".snap");
+    }
+
+    private static void writeEmployee(DataOutputStream out, Employee employee) throws IOException {
+        writeBytes(out, employee.getSalt());
+        writeBytes(out, employee.getPasswordHash());
+        List<String> roles = employee.getRoles();
+        out.writeInt(roles.size());
+        for (String role : roles) out.writeUTF(role);
+    }
+
+    private static Employee readEmployee(String username, DataInputStream in) throws IOException {
+        byte[] salt = readBytes(in);
+        byte[] passwordHash = readBytes(in);
+        int count = in.readInt();
+        List<String> roles = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) roles.add(in.readUTF());
+        return new Employee(username, salt, passwordHash, roles);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,157 @@
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Latency histograms, throughput meters and gauges of one coordinator or node, read over RMI as a
+ * {@link MetricsSnapshot} and over JMX as an MXBean. Code on a hot path looks its histogram or
+ * meter up once and keeps it, after that recording never allocates. Gauges are only evaluated when
+ * someone reads them.
+ */
+public class Metrics implements MetricsMXBean {
+    private static final long TICK_SECONDS = 5; // How often meter rates are brought up to date
+    private static final double RATE_WEIGHT = 1 - Math.exp(-TICK_SECONDS / 60.0); // One minute moving average
+    private static final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metrics-ticker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Counts events or bytes and keeps their rate per second over about the last minute.
+     */
+    public static class Meter {
+        private final LongAdder total = new LongAdder();
+        private long lastTotal; // only touched by the ticker
+        private boolean started;
+        private volatile double rate;
+
+        public void mark(long amount) {
+            total.add(amount);
+        }
+
+        public long getTotal() {
+            return total.sum();
+        }
+
+        public double getRatePerSecond() {
+            return rate;
+        }
+
+        private void tick() {
+            long now = total.sum();
+            double instant = (now - lastTotal) / (double) TICK_SECONDS;
+            lastTotal = now;
+            rate = started ? rate + RATE_WEIGHT * (instant - rate) : instant;
+            started = true;
+        }
+    }
+
+    private final String name;
+    private final long startedAt = System.currentTimeMillis();
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final Map<String, Meter> meters = new ConcurrentHashMap<>();
+    private final Map<String, DoubleSupplier> gauges = new ConcurrentHashMap<>();
+
+    public Metrics(String name) {
+        this.name = name;
+        ticker.scheduleAtFixedRate(() -> meters.values().forEach(Meter::tick), TICK_SECONDS, TICK_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public LatencyHistogram latency(String key) {
+        return latencies.computeIfAbsent(key, k -> new LatencyHistogram());
+    }
+
+    public Meter meter(String key) {
+        return meters.computeIfAbsent(key, k -> new Meter());
+    }
+
+    public void gauge(String key, DoubleSupplier value) {
+        gauges.put(key, value);
+    }
+
+    public void removeGauges(String prefix) {
+        gauges.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    public MetricsSnapshot snapshot() {
+        Map<String, LatencyHistogram.Snapshot> latencySnapshots = new TreeMap<>();
+        latencies.forEach((key, histogram) -> latencySnapshots.put(key, histogram.snapshot()));
+        return new MetricsSnapshot(name, getUptimeMillis(), latencySnapshots, getCounters(), getRatesPerSecond(), getGauges());
+    }
+
+    /**
+     * Makes this registry visible to JConsole and other JMX clients, replacing one registered under
+     * the same name before.
+     */
+    public void registerMBean(String type, String id) {
+        try {
+            Hashtable<String, String> properties = new Hashtable<>();
+            properties.put("type", type);
+            if (id != null) properties.put("name", ObjectName.quote(id));
+            ObjectName objectName = new ObjectName("dfs", properties);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            System.err.println(name + ": Cannot register metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getUptimeMillis() {
+        return System.currentTimeMillis() - startedAt;
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> totals = new TreeMap<>();
+        meters.forEach((key, meter) -> totals.put(key, meter.getTotal()));
+        return totals;
+    }
+
+    @Override
+    public Map<String, Double> getRatesPerSecond() {
+        Map<String, Double> rates = new TreeMap<>();
+        meters.forEach((key, meter) -> rates.put(key, meter.getRatePerSecond()));
+        return rates;
+    }
+
+    @Override
+    public Map<String, Double> getGauges() {
+        Map<String, Double> values = new TreeMap<>();
+        gauges.forEach((key, gauge) -> values.put(key, gauge.getAsDouble()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Double> getLatencyMillis() {
+        Map<String, Double> values = new TreeMap<>();
+        latencies.forEach((key, histogram) -> {
+            LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+            values.put(key + ".count", (double) snapshot.getCount());
+            values.put(key + ".mean", snapshot.getMeanNanos() / 1e6);
+            values.put(key + ".p50", snapshot.getValueAtQuantile(0.5) / 1e6);
+            values.put(key + ".p90", snapshot.getValueAtQuantile(0.9) / 1e6);
+            values.put(key + ".p99", snapshot.getValueAtQuantile(0.99) / 1e6);
+            values.put(key + ".p999", snapshot.getValueAtQuantile(0.999) / 1e6);
+            values.put(key + ".max", snapshot.getMaxNanos() / 1e6);
+        });
+        return values;
+    }
+}
@@ -0,0 +1,29 @@
+import java.util.Map;
+
+/**
+ * JMX view of a {@link Metrics} registry, registered as {@code dfs:type=Coordinator} or
+ * {@code dfs:type=Node,name=<node id>}.
+ */
+public interface MetricsMXBean {
+    String getName();
+
+    long getUptimeMillis();
+
+    /**
+     * Running totals of every meter, e.g. bytes sent.
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * One minute moving average of every meter, per second.
+     */
+    Map<String, Double> getRatesPerSecond();
+
+    Map<String, Double> getGauges();
+
+    /**
+     * For every latency histogram its count and its mean, p50, p90, p99, p99.9 and max in
+     * milliseconds, keyed "&lt;histogram&gt;.&lt;statistic&gt;".
+     */
+    Map<String, Double> getLatencyMillis();
+}
@@ -0,0 +1,59 @@
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * Everything a {@link Metrics} registry holds at one moment, as returned by getMetrics.
+ */
+public class MetricsSnapshot implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String name;
+    private final long uptimeMillis;
+    private final Map<String, LatencyHistogram.Snapshot> latencies;
+    private final Map<String, Long> totals;
+    private final Map<String, Double> rates;
+    private final Map<String, Double> gauges;
+
+    public MetricsSnapshot(String name, long uptimeMillis, Map<String, LatencyHistogram.Snapshot> latencies,
+                           Map<String, Long> totals, Map<String, Double> rates, Map<String, Double> gauges) {
+        this.name = name;
+        this.uptimeMillis = uptimeMillis;
+        this.latencies = latencies;
+        this.totals = totals;
+        this.rates = rates;
+        this.gauges = gauges;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getUptimeMillis() {
+        return uptimeMillis;
+    }
+
+    public Map<String, LatencyHistogram.Snapshot> getLatencies() {
+        return latencies;
+    }
+
+    public Map<String, Long> getTotals() {
+        return totals;
+    }
+
+    public Map<String, Double> getRates() {
+        return rates;
+    }
+
+    public Map<String, Double> getGauges() {
+        return gauges;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder(name + ", up " + uptimeMillis / 1000 + " s\n");
+        latencies.forEach((key, latency) -> report.append(String.format("  %-28s %s%n", key, latency)));
+        totals.forEach((key, total) -> report.append(String.format("  %-28s %d total, %.1f/s%n", key, total, rates.getOrDefault(key, 0.0))));
+        gauges.forEach((key, value) -> report.append(String.format("  %-28s %.2f%n", key, value)));
+        return report.toString();
+    }
+}
@@ -0,0 +1,48 @@
+import java.io.Serializable;
+
+/**
+ * What a node pushes to the coordinator every INTERVAL_MS: proof of life plus the load figures
+ * only the node itself can see.
+ */
+public class NodeHeartbeat implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final long INTERVAL_MS = 500;
+
+    private final long sequence;
+    private final double systemLoad;
+    private final long usableBytes;
+    private final int incomingSyncs;
+    private final CacheStats cacheStats;
+
+    public NodeHeartbeat(long sequence, double systemLoad, long usableBytes, int incomingSyncs, CacheStats cacheStats) {
+        this.sequence = sequence;
+        this.systemLoad = systemLoad;
+        this.usableBytes = usableBytes;
+        this.incomingSyncs = incomingSyncs;
+        this.cacheStats = cacheStats;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * One minute load average per processor, negative where the platform has none.
+     */
+    public double getSystemLoad() {
+        return systemLoad;
+    }
+
+    public long getUsableBytes() {
+        return usableBytes;
+    }
+
+    public int getIncomingSyncs() {
+        return incomingSyncs;
+    }
+
+    public CacheStats getCacheStats() {
+        return cacheStats;
+    }
+}
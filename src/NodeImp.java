@@ -1,21 +1,47 @@
-
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.server.UnicastRemoteObject;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.net.DatagramPacket;
+import java.util.Queue;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.Calendar;
-import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class NodeImp extends UnicastRemoteObject implements NodeInt {
     private String id;
@@ -28,20 +54,91 @@ public class NodeImp extends UnicastRemoteObject implements NodeInt {
     private static final String MULTICAST_ADDRESS = "239.0.0.1"; // Standard multicast example address
     private static final int MULTICAST_PORT = 1234;         // Standard multicast example port
     private static final int MULTICAST_PACKET_BUFFER_SIZE = 1500; // Max packet size for receiving
-    private static final int DATA_CHUNK_MAX_PAYLOAD_SIZE = 1024; // Max data payload for sending (leaves room for headers)
-    private static final String MSG_DELIMITER = ":";
-    private MulticastSocket multicastListenSocket;
+    private static final int MAX_DATAGRAM_SIZE = 1472; // 1500 byte Ethernet MTU minus IP and UDP headers
+    private static final double MULTICAST_INITIAL_RATE = 8 * 1024 * 1024; // bytes/s, adapts to NACKs from there
+    private static final double MULTICAST_MIN_RATE = 256 * 1024;
+    private static final double MULTICAST_MAX_RATE = 100 * 1024 * 1024;
+    private static final int FEEDBACK_POLL_MS = 5;
+    private static final int REPAIR_ROUND_MS = 200; // How long the sender waits for NACKs after each END
+    private static final int MAX_REPAIR_ROUNDS = 200;
+    private static final int MAX_SILENT_ROUNDS = 10; // Rounds without any NACK before giving up on missing targets
+    private static final long INCOMING_TRANSFER_TIMEOUT_MS = 60 * 1000; // Drop receive state idle for this long
+    private static final int MAX_EARLY_CHUNKS = 1024; // Chunks kept in memory while the layout is unknown
+    private static final long EXPIRY_CHECK_MS = 1000; // How often the listener looks for stalled syncs
+    private static final int MULTICAST_RECEIVE_BUFFER = 4 * 1024 * 1024; // SO_RCVBUF, rides out bursts the listener cannot keep up with
+    private static final int SYNC_WRITER_THREADS = 4; // Syncs written to disk in parallel
+    private static final int MAX_QUEUED_PACKETS = 4096; // Per sync, DATA beyond this is dropped and repaired by NACK
+    private static final int PACKET_POOL_SIZE = 1024; // Receive buffers kept for reuse once their chunk is written
+    private static final int REPLICATION_ACCEPT_TIMEOUT_MS = 30 * 1000; // Give up if the source never connects
+    private static final long STAGED_TRANSFER_TTL_MS = 60 * 60 * 1000; // Interrupted uploads can resume for this long
+    private static final double MULTICAST_MIN_SAVING = 0.1; // Sync compressed only if that saves at least this share
+    private static final long MULTICAST_REJOIN_MS = 24 * 60 * 60 * 1000; // How often the group membership is renewed
+    private DatagramChannel multicastChannel;
+    private MembershipKey multicastMembership;
     private InetAddress multicastGroupAddress;
-    private Timer timer = new Timer();
-    // To keep track of files being received via multicast
-    // Key: "senderNodeId:fileName", Value: FileOutputStream
-    private final Map<String, FileOutputStream> receivingFilesMap = new HashMap<>();
+    private InetSocketAddress multicastGroup;
+    private NetworkInterface multicastInterface;
+    private final ScheduledExecutorService multicastRejoin = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "multicast-rejoin");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Timer stagingExpiry = new Timer(true);
+    // Syncs being received, by transfer id
+    private final Map<Long, IncomingTransfer> incomingTransfers = new ConcurrentHashMap<>();
+    private final Set<Long> outgoingTransfers = ConcurrentHashMap.newKeySet(); // Our own syncs, which loop back to our listener
+    private IncomingTransfer lastTransfer; // Only touched by the listener, spares a map lookup for every chunk of the same sync
+    private long lastExpiryCheck;
+    private final BlockingQueue<ByteBuffer> packetBuffers = new ArrayBlockingQueue<>(PACKET_POOL_SIZE);
+    private final ExecutorService syncWriters = Executors.newFixedThreadPool(SYNC_WRITER_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "sync-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private final String storageBasePath;
+    private final FileStore store;
+    private final FileCache cache = FileCache.fromConfig();
+    private final Metrics metrics;
+    private final LatencyHistogram createLatency;
+    private final LatencyHistogram getLatency;
+    private final LatencyHistogram rangeLatency;
+    private final LatencyHistogram updateLatency;
+    private final LatencyHistogram deleteLatency;
+    private final LatencyHistogram replicateLatency;
+    private final LatencyHistogram syncLatency;
+    private final Metrics.Meter bytesReceived;
+    private final Metrics.Meter bytesSent;
+    private final Map<String, ReentrantLock> writeLocks = new ConcurrentHashMap<>(); // Names being written, see lockName
+    private final Map<String, MerkleIndex> merkle = new ConcurrentHashMap<>(); // Department to a hash tree of what this node holds
+    private volatile boolean merkleReady; // Until the startup scan is done the trees may lack files
+    private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private CoordinatorInt coordinator; // Only touched by the heartbeat thread
+    private long heartbeatSequence;
+    private boolean coordinatorLost;
     public NodeImp(String nodeId) throws RemoteException {
         super();
         this.id = nodeId;
         this.storageBasePath = "storage/" + nodeId + File.separator;
+        this.metrics = new Metrics("Node " + nodeId);
+        this.createLatency = metrics.latency("create");
+        this.getLatency = metrics.latency("get");
+        this.rangeLatency = metrics.latency("get.range");
+        this.updateLatency = metrics.latency("update");
+        this.deleteLatency = metrics.latency("delete");
+        this.replicateLatency = metrics.latency("replicate");
+        this.syncLatency = metrics.latency("sync");
+        this.bytesReceived = metrics.meter("bytes.received");
+        this.bytesSent = metrics.meter("bytes.sent");
+        metrics.gauge("multicast.incoming", incomingTransfers::size);
+        metrics.gauge("cache.bytes", () -> cache.getStats().getBytes());
+        metrics.gauge("cache.hitRate", () -> cache.getStats().getHitRate());
+        metrics.gauge("disk.usableBytes", () -> new File(storageBasePath).getUsableSpace());
+        metrics.registerMBean("Node", nodeId);
         File storageDir = new File(this.storageBasePath);
         if (!storageDir.exists()) {
             if (storageDir.mkdirs()) {
@@ -50,12 +147,34 @@ public class NodeImp extends UnicastRemoteObject implements NodeInt {
                 System.err.println("Node " + id + ": Failed to create storage directory: " + this.storageBasePath);
             }
         }
+        try {
+            this.store = FileStore.fromConfig(Paths.get(this.storageBasePath));
+        } catch (IOException e) {
+            throw new RemoteException("Node " + id + ": Cannot open file store", e);
+        }
         System.out.println("Node " + id + " is ready at path: " + this.storageBasePath);
+        Thread merkleScan = new Thread(this::buildMerkleIndex, "merkle-scan");
+        merkleScan.setDaemon(true);
+        merkleScan.start();
+        stagingExpiry.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    store.expireStaged(STAGED_TRANSFER_TTL_MS);
+                } catch (IOException e) {
+                    System.err.println("Node " + id + ": Error expiring staged transfers: " + e.getMessage());
+                }
+            }
+        }, STAGED_TRANSFER_TTL_MS, STAGED_TRANSFER_TTL_MS);
         try {
             multicastGroupAddress = InetAddress.getByName(MULTICAST_ADDRESS);
-            multicastListenSocket = new MulticastSocket(MULTICAST_PORT); // Bind to the port for listening
-            multicastListenSocket.joinGroup(multicastGroupAddress);
-            System.out.println("Node " + id + ": Joined multicast group " + MULTICAST_ADDRESS + ":" + MULTICAST_PORT);
+            multicastGroup = new InetSocketAddress(multicastGroupAddress, MULTICAST_PORT);
+            multicastInterface = multicastInterface(multicastGroupAddress);
+            multicastChannel = DatagramChannel.open(StandardProtocolFamily.INET)
+                    .setOption(StandardSocketOptions.SO_REUSEADDR, true) // Every node on this host listens on the port
+                    .setOption(StandardSocketOptions.SO_RCVBUF, MULTICAST_RECEIVE_BUFFER)
+                    .bind(new InetSocketAddress(MULTICAST_PORT));
+            joinMulticastGroup();
 
             Thread multicastListenerThread = new Thread(NodeImp.this::listenForMulticastMessages);
             multicastListenerThread.setDaemon(true);
@@ -68,11 +187,10 @@ public class NodeImp extends UnicastRemoteObject implements NodeInt {
 
         // Graceful shutdown of multicast socket
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            if (multicastListenSocket != null && !multicastListenSocket.isClosed()) {
+            if (multicastChannel != null && multicastChannel.isOpen()) {
                 try {
                     System.out.println("Node " + id + ": Leaving multicast group and closing socket...");
-                    multicastListenSocket.leaveGroup(multicastGroupAddress);
-                    multicastListenSocket.close();
+                    multicastChannel.close(); // Drops the membership as well
                     System.out.println("Node " + id + ": Multicast socket closed on shutdown.");
                 } catch (IOException ex) {
                     System.err.println("Node " + id + ": Error closing multicast socket on shutdown: " + ex.getMessage());
@@ -81,136 +199,461 @@ public class NodeImp extends UnicastRemoteObject implements NodeInt {
         }));
     }
     @Override
-    public void syncFile(String fullName) throws RemoteException {
-        System.out.println("Node " + id + ": Initiating multicast sync for file: " + fullName);
-        File file = new File(this.storageBasePath + fullName);
-        if (!file.exists()) {
-            System.err.println("Node " + id + ": File " + fullName + " not found for syncing.");
-            return;
-        }
-
-        try (FileInputStream fis = new FileInputStream(file);
-             MulticastSocket sendSocket = new MulticastSocket()) {
-
-            // 1. Send START message
-            MulticastMessage startMsg = new MulticastMessage(id, fullName, MulticastMessageType.START, null);
-            byte[] startBuffer = startMsg.toBytes();
-            sendSocket.send(new DatagramPacket(startBuffer, startBuffer.length, multicastGroupAddress, MULTICAST_PORT));
-            System.out.println("Node " + id + ": Sent START for " + fullName);
-            Thread.sleep(20);
-
-            // 2. Send DATA chunks
-            byte[] dataChunk = new byte[DATA_CHUNK_MAX_PAYLOAD_SIZE];
-            int bytesRead;
-            while ((bytesRead = fis.read(dataChunk)) != -1) {
-                byte[] payload = Arrays.copyOf(dataChunk, bytesRead); // Trim excess
-                MulticastMessage dataMsg = new MulticastMessage(id, fullName, MulticastMessageType.DATA, payload);
-                byte[] dataBytes = dataMsg.toBytes();
-                sendSocket.send(new DatagramPacket(dataBytes, dataBytes.length, multicastGroupAddress, MULTICAST_PORT));
-                Thread.sleep(5);
-            }
-
-            // 3. Send END message
-            MulticastMessage endMsg = new MulticastMessage(id, fullName, MulticastMessageType.END, null);
-            byte[] endBuffer = endMsg.toBytes();
-            sendSocket.send(new DatagramPacket(endBuffer, endBuffer.length, multicastGroupAddress, MULTICAST_PORT));
-            System.out.println("Node " + id + ": Sent END for " + fullName);
+    public List<String> syncFile(String fullName, List<String> targets) throws RemoteException {
+        long started = System.nanoTime();
+        System.out.println("Node " + id + ": Initiating multicast sync for file: " + fullName + " to " + targets);
+        if (!store.exists(fullName)) {
+            throw new RemoteException("File " + fullName + " not found for syncing on " + id);
+        }
+
+        long transferId = ThreadLocalRandom.current().nextLong(Long.MAX_VALUE);
+        Set<String> completed = ConcurrentHashMap.newKeySet();
+        Queue<Integer> retransmit = new ConcurrentLinkedQueue<>();
+        RatePacer pacer = new RatePacer(MULTICAST_INITIAL_RATE, MULTICAST_MIN_RATE, MULTICAST_MAX_RATE);
+        Path spool = null;
+        FileChannel spoolChannel = null;
+        outgoingTransfers.add(transferId);
+
+        try (FileChannel fileChannel = store.openRead(fullName);
+             DatagramChannel sendChannel = DatagramChannel.open(StandardProtocolFamily.INET)
+                     .setOption(StandardSocketOptions.IP_MULTICAST_IF, multicastInterface).bind(null)) {
+
+            // The header takes the same few bytes whatever the path, data fills the rest of the MTU
+            int chunkSize = MAX_DATAGRAM_SIZE - SyncPacket.HEADER_SIZE;
+
+            // Compressible files go out as a compressed spool, receivers inflate it before committing
+            Compression.Codec codec = Compression.preferredCodec(fullName);
+            FileChannel source = fileChannel;
+            if (codec != Compression.Codec.NONE) {
+                spool = Paths.get(this.storageBasePath, FileStore.STAGING_DIR, "sync-out-" + transferId);
+                Files.createDirectories(spool.getParent());
+                long compressed = Compression.compress(fileChannel, codec, spool);
+                if (compressed <= fileChannel.size() * (1 - MULTICAST_MIN_SAVING)) {
+                    source = spoolChannel = FileChannel.open(spool, StandardOpenOption.READ);
+                } else {
+                    codec = Compression.Codec.NONE;
+                }
+            }
+
+            long size = source.size();
+            int totalChunks = (int) ((size + chunkSize - 1) / chunkSize);
+            byte[] layout = new SyncPacket.Layout(id, fullName, chunkSize, size, codec, targets).encode();
+            if (SyncPacket.HEADER_SIZE + layout.length > MAX_DATAGRAM_SIZE) {
+                throw new RemoteException("Path too long to sync over multicast: " + fullName);
+            }
+            // Every packet of this sync is built here, chunks are read from the file straight into it
+            ByteBuffer packet = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+
+            Thread feedbackThread = new Thread(() -> receiveFeedback(sendChannel, transferId, completed, retransmit, pacer));
+            feedbackThread.setDaemon(true);
+            feedbackThread.start();
+
+            // 1. Announce the transfer so receivers know the file, the chunk size and length
+            sendControl(sendChannel, packet, SyncPacket.Type.START, transferId, totalChunks, layout);
+            System.out.println("Node " + id + ": Sent START for " + fullName + " (" + totalChunks + " chunks of " + chunkSize + " bytes, " + codec + ")");
+
+            // 2. Stream every chunk once, paced
+            for (int seq = 0; seq < totalChunks; seq++) {
+                sendChunk(sendChannel, source, transferId, seq, chunkSize, packet, pacer);
+            }
+
+            // 3. Ask for gaps with END and repair them until every target confirmed or it stops answering
+            int silentRounds = 0;
+            for (int round = 0; round < MAX_REPAIR_ROUNDS && !completed.containsAll(targets) && silentRounds < MAX_SILENT_ROUNDS; round++) {
+                sendControl(sendChannel, packet, SyncPacket.Type.END, transferId, totalChunks, layout);
+
+                long deadline = System.currentTimeMillis() + REPAIR_ROUND_MS;
+                while (System.currentTimeMillis() < deadline && retransmit.isEmpty() && !completed.containsAll(targets)) {
+                    Thread.sleep(FEEDBACK_POLL_MS);
+                }
+                if (retransmit.isEmpty()) {
+                    silentRounds++;
+                    continue;
+                }
+                silentRounds = 0;
+
+                BitSet resent = new BitSet(totalChunks);
+                Integer seq;
+                while ((seq = retransmit.poll()) != null) {
+                    if (seq < 0 || seq >= totalChunks || resent.get(seq)) continue;
+                    resent.set(seq);
+                    sendChunk(sendChannel, source, transferId, seq, chunkSize, packet, pacer);
+                }
+            }
+            System.out.println("Node " + id + ": Sync of " + fullName + " confirmed by " + completed
+                    + " at " + (long) (pacer.getBytesPerSecond() / 1024) + " KB/s");
 
         } catch (IOException | InterruptedException e) {
             throw new RemoteException("Error syncing file: " + fullName, e);
+        } finally {
+            outgoingTransfers.remove(transferId);
+            syncLatency.record(System.nanoTime() - started);
+            try {
+                if (spoolChannel != null) spoolChannel.close();
+                if (spool != null) Files.deleteIfExists(spool);
+            } catch (IOException e) {
+                System.err.println("Node " + id + ": Could not remove sync spool " + spool + ": " + e.getMessage());
+            }
+        }
+        return List.copyOf(completed);
+    }
+
+    private void sendChunk(DatagramChannel channel, FileChannel fileChannel, long transferId, int seq,
+                           int chunkSize, ByteBuffer packet, RatePacer pacer) throws IOException {
+        SyncPacket.writeHeader(packet, SyncPacket.Type.DATA, transferId, seq).limit(SyncPacket.HEADER_SIZE + chunkSize);
+        long position = (long) seq * chunkSize - SyncPacket.HEADER_SIZE; // file offset of the packet's start
+        while (packet.hasRemaining() && fileChannel.read(packet, position + packet.position()) > 0) {
+            // keep reading until the chunk is full or the file ends
+        }
+        pacer.pace(packet.position() - SyncPacket.HEADER_SIZE);
+        channel.send(packet.flip(), multicastGroup);
+    }
+
+    private void sendControl(DatagramChannel channel, ByteBuffer packet, SyncPacket.Type type, long transferId,
+                             int totalChunks, byte[] layout) throws IOException {
+        SyncPacket.writeHeader(packet, type, transferId, totalChunks).put(layout);
+        channel.send(packet.flip(), multicastGroup);
+    }
+
+    // Collects NACKs and completions that receivers send straight back to the sender's channel
+    private void receiveFeedback(DatagramChannel channel, long transferId, Set<String> completed, Queue<Integer> retransmit, RatePacer pacer) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MULTICAST_PACKET_BUFFER_SIZE);
+        SyncPacket packet = new SyncPacket();
+        while (channel.isOpen()) {
+            try {
+                channel.receive(buffer.clear());
+                if (!packet.read(buffer.flip()) || packet.getTransferId() != transferId) continue;
+
+                if (packet.getType() == SyncPacket.Type.COMPLETE) {
+                    completed.add(StandardCharsets.UTF_8.decode(buffer).toString());
+                } else if (packet.getType() == SyncPacket.Type.NACK) {
+                    while (buffer.remaining() >= 4) {
+                        retransmit.add(buffer.getInt());
+                    }
+                    pacer.onLoss();
+                }
+            } catch (ClosedChannelException e) {
+                // the sync is over, closing the channel ends the wait
+                break;
+            } catch (IOException e) {
+                System.err.println("Node " + id + ": Bad sync feedback: " + e.getMessage());
+            }
         }
     }
 
 
+    /**
+     * Receive loop of the group. It only reads headers and hands each packet, still in the buffer it
+     * was received into, to the writer of its sync; parsing the rest and writing to disk happens there.
+     * A slow disk therefore holds up its own sync rather than the socket, and syncs from different
+     * senders are written in parallel.
+     */
     private void listenForMulticastMessages() {
-        byte[] buffer = new byte[MULTICAST_PACKET_BUFFER_SIZE];
+        DatagramChannel channel = multicastChannel;
+        SyncPacket packet = new SyncPacket();
+        ByteBuffer buffer = packetBuffer();
         System.out.println("Node " + id + ": Multicast listener started on " + MULTICAST_ADDRESS + ":" + MULTICAST_PORT);
 
-        while (multicastListenSocket != null && !multicastListenSocket.isClosed()) {
+        while (channel.isOpen()) {
             try {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                multicastListenSocket.receive(packet);
-
-                MulticastMessage msg = MulticastMessageParser.fromBytes(packet.getData(), packet.getLength());
-                if (msg == null) {
+                SocketAddress source = channel.receive(buffer.clear());
+                if (!packet.read(buffer.flip())) {
                     System.err.println("Node " + id + ": Skipping malformed message.");
                     continue;
                 }
+                // Feedback goes to the sender's own channel, nothing to do on the group
+                if (packet.getType() == SyncPacket.Type.NACK || packet.getType() == SyncPacket.Type.COMPLETE) continue;
+
+                expireIncomingTransfers();
+                IncomingTransfer transfer = incomingTransfer(packet.getTransferId());
+                if (transfer.isOwn() || transfer.ignored) continue;
+                if (packet.getType() != SyncPacket.Type.DATA) transfer.sender = source;
+
+                // A writer that fell behind loses chunks to NACK repair, never START or END
+                if (packet.getType() == SyncPacket.Type.DATA && transfer.queued.get() >= MAX_QUEUED_PACKETS) continue;
+                transfer.queued.incrementAndGet();
+                transfer.pending.add(buffer.rewind());
+                if (transfer.draining.compareAndSet(false, true)) {
+                    syncWriters.execute(() -> drain(transfer));
+                }
+                buffer = packetBuffer();
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                System.err.println("Node " + id + ": IOException: " + e.getMessage());
+            }
+        }
 
-                if (msg.getSenderNodeId().equals(this.id)) continue;
-
-                String key = msg.getSenderNodeId() + MSG_DELIMITER + msg.getFilePath();
-
-                switch (msg.getType()) {
-                    case START -> {
-                        if (receivingFilesMap.containsKey(key)) {
-                            try { receivingFilesMap.get(key).close(); } catch (IOException ignored) {}
-                            receivingFilesMap.remove(key);
-                        }
-                        File fileToReceive = new File(this.storageBasePath + msg.getFilePath());
-                        if (!fileToReceive.getParentFile().exists()) {
-                            fileToReceive.getParentFile().mkdirs();
-                        }
-                        try {
-                            FileOutputStream fos = new FileOutputStream(fileToReceive);
-                            receivingFilesMap.put(key, fos);
-                            System.out.println("Node " + id + ": Started receiving sync for " + msg.getFilePath() + " from " + msg.getSenderNodeId());
-                        } catch (FileNotFoundException e) {
-                            System.err.println("Node " + id + ": Cannot open file for receiving: " + e.getMessage());
-                        }
-                    }
+        // Cleanup
+        incomingTransfers.values().forEach(IncomingTransfer::abort);
+        incomingTransfers.clear();
+        lastTransfer = null;
+        System.out.println("Node " + id + ": Multicast listener thread exited.");
+    }
 
-                    case DATA -> {
-                        FileOutputStream fos = receivingFilesMap.get(key);
-                        if (fos != null && msg.getPayload() != null) {
-                            fos.write(msg.getPayload());
-                        }
-                    }
+    private ByteBuffer packetBuffer() {
+        ByteBuffer buffer = packetBuffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(MULTICAST_PACKET_BUFFER_SIZE);
+    }
 
-                    case END -> {
-                        FileOutputStream fos = receivingFilesMap.remove(key);
-                        if (fos != null) {
-                            fos.close();
-                            System.out.println("Node " + id + ": Finished receiving sync for " + msg.getFilePath());
-                        }
-                    }
+    // Runs on a sync writer, the draining flag keeps every sync on at most one writer at a time
+    private void drain(IncomingTransfer transfer) {
+        SyncPacket packet = new SyncPacket();
+        do {
+            ByteBuffer buffer;
+            while ((buffer = transfer.pending.poll()) != null) {
+                transfer.queued.decrementAndGet();
+                try {
+                    packet.read(buffer);
+                    receiveSyncPacket(transfer, packet, buffer);
+                } catch (ClosedChannelException e) {
+                    // expired or shut down while packets were still queued
+                } catch (IOException e) {
+                    System.err.println("Node " + id + ": Error writing sync " + transfer.transferId + ": " + e.getMessage());
+                } finally {
+                    packetBuffers.offer(buffer);
+                }
+            }
+            transfer.draining.set(false);
+        } while (!transfer.pending.isEmpty() && transfer.draining.compareAndSet(false, true));
+    }
 
-                    case ERROR_HEADER_TOO_LARGE -> {
-                        FileOutputStream fos = receivingFilesMap.remove(key);
-                        if (fos != null) {
-                            fos.close();
-                            new File(this.storageBasePath + msg.getFilePath()).delete();
-                            System.err.println("Node " + id + ": Sync for " + msg.getFilePath() + " aborted by sender due to header size.");
-                        }
-                    }
+    private void receiveSyncPacket(IncomingTransfer transfer, SyncPacket packet, ByteBuffer payload) throws IOException {
+        switch (packet.getType()) {
+            case START -> {
+                SyncPacket.Layout layout = SyncPacket.Layout.decode(payload);
+                if (!meantForUs(transfer, layout)) return;
+                transfer.describe(packet.getSequence(), layout);
+                System.out.println("Node " + id + ": Started receiving sync for " + layout.path + " from " + layout.senderId);
+            }
 
-                    default -> {
-                        System.out.println("Node " + id + ": Unknown message type: " + msg.getType());
+            // Also opens the transfer if START was lost, chunks wait for END to learn the layout
+            case DATA -> transfer.write(packet.getSequence(), payload);
+
+            case END -> {
+                SyncPacket.Layout layout = SyncPacket.Layout.decode(payload);
+                if (!meantForUs(transfer, layout)) return;
+                transfer.describe(packet.getSequence(), layout);
+                ByteBuffer reply = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+
+                if (!transfer.completed) {
+                    int[] missing = transfer.missing((MAX_DATAGRAM_SIZE - SyncPacket.HEADER_SIZE) / 4);
+                    if (missing.length > 0) {
+                        SyncPacket.writeHeader(reply, SyncPacket.Type.NACK, packet.getTransferId(), missing.length);
+                        for (int seq : missing) reply.putInt(seq);
+                        multicastChannel.send(reply.flip(), transfer.sender);
+                        return;
                     }
+                    transfer.finish(store);
+                    cache.invalidate(transfer.name);
+                    indexFile(transfer.name);
+                    System.out.println("Node " + id + ": Finished receiving sync for " + transfer.name);
                 }
+                // Repeat the confirmation for every END in case the previous one was lost
+                SyncPacket.writeHeader(reply, SyncPacket.Type.COMPLETE, packet.getTransferId(), packet.getSequence())
+                        .put(id.getBytes(StandardCharsets.UTF_8));
+                multicastChannel.send(reply.flip(), transfer.sender);
+            }
 
-            } catch (SocketException se) {
-                if (multicastListenSocket.isClosed()) break;
-                System.err.println("Node " + id + ": SocketException: " + se.getMessage());
-            } catch (IOException e) {
-                System.err.println("Node " + id + ": IOException: " + e.getMessage());
+            default -> {
             }
         }
+    }
 
-        // Cleanup
-        for (Map.Entry<String, FileOutputStream> entry : receivingFilesMap.entrySet()) {
-            try { entry.getValue().close(); } catch (IOException ignored) {}
+    private synchronized void joinMulticastGroup() throws IOException {
+        if (multicastMembership != null) multicastMembership.drop();
+        multicastMembership = multicastChannel.join(multicastGroupAddress, multicastInterface);
+        System.out.println("Node " + id + ": Joined multicast group " + MULTICAST_ADDRESS + ":" + MULTICAST_PORT + " on " + multicastInterface.getName());
+    }
+
+    /**
+     * The interface syncs are sent and received on: multicast.interface if set, otherwise the one the
+     * route to the group leaves through, so a sync also reaches the other nodes on this host.
+     */
+    private static NetworkInterface multicastInterface(InetAddress group) throws IOException {
+        String name = System.getProperty("multicast.interface");
+        if (name != null) {
+            NetworkInterface named = NetworkInterface.getByName(name);
+            if (named == null) throw new IOException("No network interface " + name);
+            return named;
         }
-        receivingFilesMap.clear();
-        System.out.println("Node " + id + ": Multicast listener thread exited.");
+        try (DatagramSocket probe = new DatagramSocket()) {
+            probe.connect(group, MULTICAST_PORT); // Only looks up the route, nothing is sent
+            NetworkInterface routed = NetworkInterface.getByInetAddress(probe.getLocalAddress());
+            if (routed != null) return routed;
+        } catch (SocketException e) {
+            // no route to the group, stay on this host
+        }
+        return NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
     }
 
+    // Every node in the group hears every sync, only its targets keep the file
+    private boolean meantForUs(IncomingTransfer transfer, SyncPacket.Layout layout) {
+        if (layout.targets.contains(id)) return true;
+        transfer.ignore();
+        return false;
+    }
 
+    private IncomingTransfer incomingTransfer(long transferId) throws IOException {
+        IncomingTransfer transfer = lastTransfer;
+        if (transfer == null || transfer.transferId != transferId) {
+            transfer = incomingTransfers.get(transferId);
+            if (transfer == null) {
+                // Our own syncs get an entry as well, so their packets are recognized with one lookup
+                Path staging = null;
+                if (!outgoingTransfers.contains(transferId)) {
+                    staging = Paths.get(this.storageBasePath, FileStore.STAGING_DIR, "sync-" + transferId);
+                    Files.createDirectories(staging.getParent());
+                }
+                transfer = new IncomingTransfer(transferId, staging);
+                incomingTransfers.put(transferId, transfer);
+            }
+            lastTransfer = transfer;
+        }
+        transfer.lastActivity = System.currentTimeMillis();
+        return transfer;
+    }
 
-    private String getFileSystemPath(String name) {
-        return this.storageBasePath + name;
+    private void expireIncomingTransfers() {
+        long now = System.currentTimeMillis();
+        if (now - lastExpiryCheck < EXPIRY_CHECK_MS) return;
+        lastExpiryCheck = now;
+        incomingTransfers.entrySet().removeIf(entry -> {
+            IncomingTransfer transfer = entry.getValue();
+            if (now - transfer.lastActivity < INCOMING_TRANSFER_TIMEOUT_MS) return false;
+            if (!transfer.completed && !transfer.isOwn() && !transfer.ignored) {
+                System.err.println("Node " + id + ": Dropping stalled sync " + entry.getKey());
+            }
+            transfer.abort();
+            if (transfer == lastTransfer) lastTransfer = null;
+            return true;
+        });
     }
 
+    /**
+     * Receiver side of one multicast sync. Chunks are written at their offset in a staging file as
+     * they arrive, in any order, and the file replaces the real one only once every chunk is there.
+     * The listener queues packets and one sync writer at a time drains them; expiry can still reach
+     * in from the listener, hence the locking.
+     */
+    static class IncomingTransfer {
+        private final long transferId;
+        private final Path staging; // null for a sync of our own that looped back
+        private final FileChannel channel;
+        private final BitSet received = new BitSet();
+        private final List<ByteBuffer> early = new ArrayList<>();
+        private final List<Integer> earlySeqs = new ArrayList<>();
+        private final Queue<ByteBuffer> pending = new ConcurrentLinkedQueue<>(); // Received packets, header included
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private int chunkSize = -1;
+        private int totalChunks = -1;
+        private long size = -1;
+        private Compression.Codec codec = Compression.Codec.NONE;
+        String name; // known once START or END arrived
+        volatile SocketAddress sender;
+        long lastActivity = System.currentTimeMillis();
+        volatile boolean completed;
+        volatile boolean ignored; // Meant for other nodes, whatever else arrives is skipped
+
+        IncomingTransfer(long transferId, Path staging) throws IOException {
+            this.transferId = transferId;
+            this.staging = staging;
+            this.channel = staging != null
+                    ? FileChannel.open(staging, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+                    : null;
+        }
+
+        boolean isOwn() {
+            return staging == null;
+        }
+
+        synchronized void describe(int totalChunks, SyncPacket.Layout layout) throws IOException {
+            if (this.chunkSize > 0) return;
+            this.totalChunks = totalChunks;
+            this.chunkSize = layout.chunkSize;
+            this.size = layout.size;
+            this.codec = layout.codec;
+            this.name = layout.path;
+            // Chunks that raced ahead of the layout can be placed now
+            for (int i = 0; i < early.size(); i++) {
+                write(earlySeqs.get(i), early.get(i));
+            }
+            early.clear();
+            earlySeqs.clear();
+        }
+
+        /**
+         * Writes chunk seq from what remains of data.
+         */
+        synchronized void write(int seq, ByteBuffer data) throws IOException {
+            if (completed || ignored || seq < 0 || received.get(seq)) return;
+            if (chunkSize < 0) {
+                if (early.size() < MAX_EARLY_CHUNKS) {
+                    // A copy, data is a receive buffer and goes back to the pool
+                    early.add(ByteBuffer.allocate(data.remaining()).put(data).flip());
+                    earlySeqs.add(seq);
+                }
+                return;
+            }
+            long position = (long) seq * chunkSize;
+            while (data.hasRemaining()) {
+                position += channel.write(data, position);
+            }
+            received.set(seq);
+        }
+
+        synchronized int[] missing(int max) {
+            if (totalChunks < 0) return new int[0];
+            int count = Math.min(max, totalChunks - received.cardinality());
+            int[] missing = new int[Math.max(count, 0)];
+            int seq = received.nextClearBit(0);
+            for (int i = 0; i < missing.length && seq < totalChunks; i++) {
+                missing[i] = seq;
+                seq = received.nextClearBit(seq + 1);
+            }
+            return missing;
+        }
+
+        synchronized void finish(FileStore store) throws IOException {
+            channel.truncate(size);
+            channel.force(false);
+            channel.close();
+            if (codec == Compression.Codec.NONE) {
+                store.commit(name, staging);
+            } else {
+                // What arrived is the compressed stream, the store only ever sees the real bytes
+                Path inflated = staging.resolveSibling(staging.getFileName() + ".raw");
+                try {
+                    Compression.decompress(staging, codec, inflated);
+                    store.commit(name, inflated);
+                } finally {
+                    Files.deleteIfExists(inflated);
+                    Files.deleteIfExists(staging);
+                }
+            }
+            completed = true;
+        }
+
+        synchronized void ignore() {
+            ignored = true;
+            early.clear();
+            earlySeqs.clear();
+            abort();
+        }
+
+        synchronized void abort() {
+            if (channel == null) return;
+            try {
+                channel.close();
+                if (!completed) Files.deleteIfExists(staging);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+
+
     @Override
     public String getNodeId() throws RemoteException {
         return this.id;
@@ -218,174 +661,416 @@ public class NodeImp extends UnicastRemoteObject implements NodeInt {
 
     @Override
     public void syncDeleteFile(String fullName) throws RemoteException {
+        deleteFile(fullName);
+    }
 
-        System.out.println("Node " + id + ": Attempting to delete file: " + fullName);
-
-        boolean existsOnDisk = Files.exists(Paths.get(getFileSystemPath(fullName)));
 
-        if (!existsOnDisk) {
-            System.out.println("Node " + id + ": File " + fullName + " not found in memory or disk.");
+    @Override
+    public Map<String, Long> merkleRoots() throws RemoteException {
+        if (!merkleReady) return null;
+        Map<String, Long> roots = new HashMap<>();
+        merkle.forEach((department, index) -> {
+            long root = index.root();
+            if (root != 0) roots.put(department, root);
+        });
+        return roots;
+    }
 
-        }
+    @Override
+    public long[] merkleHashes(String department, int[] indices) throws RemoteException {
+        MerkleIndex index = merkle.get(department);
+        return index != null ? index.hashes(indices) : new long[indices.length];
+    }
 
+    @Override
+    public Map<String, String> merkleEntries(String department, int[] leaves) throws RemoteException {
+        MerkleIndex index = merkle.get(department);
+        return index != null ? index.entries(leaves) : new HashMap<>();
+    }
 
-        boolean deletedFromFileSystem = false;
+    @Override
+    public String fileDigest(String name) throws RemoteException {
+        if (!store.exists(name)) return null;
+        String digest = merkleOf(name).digestOf(name);
+        return digest != null ? digest : digestOf(name);
+    }
 
+    /**
+     * Hashes every stored file into the Merkle trees. Writes keep the trees current from the start,
+     * so the scan only fills in files they have not touched yet.
+     */
+    private void buildMerkleIndex() {
+        long started = System.currentTimeMillis();
         try {
-            deletedFromFileSystem = Files.deleteIfExists(Paths.get(getFileSystemPath(fullName)));
+            List<String> names = store.list();
+            for (String name : names) {
+                String digest = digestOf(name);
+                if (digest == null) continue;
+                merkleOf(name).putIfAbsent(name, digest);
+                if (!store.exists(name)) merkleOf(name).remove(name); // deleted while we hashed it
+            }
+            merkleReady = true;
+            System.out.println("Node " + id + ": Indexed " + names.size() + " files for anti-entropy in "
+                    + (System.currentTimeMillis() - started) + " ms");
         } catch (IOException e) {
-            System.err.println("Node " + id + ": Failed to delete file " + fullName + ": " + e.getMessage());
-            e.printStackTrace();
+            System.err.println("Node " + id + ": Cannot list stored files, replica repair will skip this node: " + e.getMessage());
+        }
+    }
+
+    private void indexFile(String name) {
+        String digest = digestOf(name);
+        if (digest != null) {
+            merkleOf(name).put(name, digest);
+        } else {
+            merkleOf(name).remove(name);
+        }
+    }
 
+    private String digestOf(String name) {
+        try (FileChannel file = store.openRead(name)) {
+            return MerkleIndex.digestOf(file);
+        } catch (IOException e) {
+            return null; // gone
         }
+    }
 
-        System.out.println("Node " + id + ": File " + fullName + " deleted : " + deletedFromFileSystem + ").");
+    private MerkleIndex merkleOf(String name) {
+        return merkle.computeIfAbsent(name.split("/")[0], department -> new MerkleIndex());
+    }
 
+    @Override
+    public MetricsSnapshot getMetrics() throws RemoteException {
+        return metrics.snapshot();
     }
 
+    @Override
+    public CacheStats getCacheStats() throws RemoteException {
+        return cache.getStats();
+    }
 
     @Override
     public boolean ping() throws RemoteException {
-        System.out.println("Node " + id + ": Ping received.");
         return true;
     }
 
     @Override
-    public synchronized boolean createFile(String socketAddress, int port,  String name) throws RemoteException {
-        String filePath = getFileSystemPath(name);
+    public void revokeToken(String token) throws RemoteException {
+        TokenGenerator.revoke(token);
+    }
 
-        File file = new File(filePath);
-        File parentDir = file.getParentFile();
+    /**
+     * Pushes a heartbeat to the coordinator every {@link NodeHeartbeat#INTERVAL_MS}. The coordinator
+     * judges liveness from their arrival times, so they go out on a thread of their own.
+     */
+    private void startHeartbeats(String coordinatorUrl) {
+        heartbeats.scheduleAtFixedRate(() -> sendHeartbeat(coordinatorUrl), 0, NodeHeartbeat.INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
 
-        // Create parent directories if they don't exist
-        if (parentDir != null && !parentDir.exists()) {
-            if (!parentDir.mkdirs()) {
-                System.err.println("Node " + id + ": Failed to create directory " + parentDir.getAbsolutePath());
-                return false;
+    private void sendHeartbeat(String coordinatorUrl) {
+        try {
+            if (coordinator == null) {
+                coordinator = (CoordinatorInt) Naming.lookup(coordinatorUrl);
+            }
+            OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            double load = os.getSystemLoadAverage();
+            coordinator.heartbeat(id, new NodeHeartbeat(++heartbeatSequence,
+                    load < 0 ? load : load / os.getAvailableProcessors(),
+                    new File(storageBasePath).getUsableSpace(), incomingTransfers.size(), cache.getStats()));
+            if (coordinatorLost) {
+                coordinatorLost = false;
+                System.out.println("Node " + id + ": Coordinator reachable again.");
+            }
+        } catch (RemoteException | NotBoundException | MalformedURLException e) {
+            // Look it up again next time, it may have been restarted
+            coordinator = null;
+            if (!coordinatorLost) {
+                coordinatorLost = true;
+                System.err.println("Node " + id + ": Cannot send heartbeat to coordinator: " + e.getMessage());
             }
         }
+    }
 
-        if (file.exists()) {
-            System.out.println("Node " + id + ": File " + name + " already exists. Cannot create.");
-            return false;
+    /**
+     * Clients open every data connection with their session token. Checking it here means a node
+     * only talks to a logged in user with rights on the department, whoever told it to connect.
+     */
+    private void authorize(SocketChannel clientChannel, String fileName, boolean write) throws IOException {
+        TokenGenerator.Claims claims = TokenGenerator.verify(Transfers.readToken(clientChannel));
+        if (claims == null) {
+            throw new IOException("Rejected data connection from " + clientChannel.getRemoteAddress() + ": invalid token");
         }
+        String department = fileName.split("/")[0];
+        if (write && !claims.hasRole(department) && !claims.hasRole("MANAGER")) {
+            throw new IOException("Rejected data connection: " + claims.getUsername() + " may not write to " + department);
+        }
+    }
+
+    /**
+     * Serializes writes to one name, a retry may reach us while a stalled earlier attempt still
+     * writes the same staged part. Writes to other names never wait.
+     */
+    private ReentrantLock lockName(String name) {
+        while (true) {
+            ReentrantLock lock = writeLocks.computeIfAbsent(name, key -> new ReentrantLock());
+            lock.lock();
+            if (writeLocks.get(name) == lock) return lock;
+            lock.unlock(); // Dropped by its last holder meanwhile, take the one now in the map
+        }
+    }
+
+    private void unlockName(String name, ReentrantLock lock) {
+        if (!lock.hasQueuedThreads()) writeLocks.remove(name, lock);
+        lock.unlock();
+    }
 
-        try (Socket nodeSocket = new Socket(socketAddress, port);
-             InputStream Nodein = nodeSocket.getInputStream();
-             FileOutputStream fos = new FileOutputStream(file)) {
-            File directory = new File(this.storageBasePath + File.separator + name);
-            if (!directory.exists()) {
-                directory.mkdirs();
+    @Override
+    public boolean createFile(String socketAddress, int port,  String name, String transferId) throws RemoteException {
+        ReentrantLock guard = lockName(name);
+        try {
+            long started = System.nanoTime();
+            if (store.exists(name)) {
+                System.out.println("Node " + id + ": File " + name + " already exists. Cannot create.");
+                return false;
             }
-            System.out.println("Node " + id + ": Receiving file " + name + " on port " + port);
 
-            Nodein.transferTo(fos);
-//            byte[] buffer = new byte[4096];
-//            int bytesRead;
-//            while ((bytesRead = in.read(buffer)) != -1) {
-//                fos.write(buffer, 0, bytesRead);
-//            }
+            // The store decides how the client sends: the chunks it lacks, or a plain stream
+            try (SocketChannel clientChannel = SocketChannel.open(new InetSocketAddress(socketAddress, port))) {
+                System.out.println("Node " + id + ": Receiving file " + name + " on port " + port);
+                authorize(clientChannel, name, true);
 
-            System.out.println("Node " + id + ": File " + name + " created successfully.");
-            return true;
+                try (Compression.Link link = Compression.accept(clientChannel)) {
+                    long received = store.receiveChunks(name, transferId, link.in(), link.out());
+                    bytesReceived.mark(received);
+                    cache.invalidate(name);
+                    indexFile(name);
 
-        } catch (IOException e) {
-            System.err.println("Node " + id + ": Error creating file " + name + ": " + e.getMessage());
-            e.printStackTrace();
-            return false;
+                    System.out.println("Node " + id + ": File " + name + " created successfully (" + received + " bytes received, " + link + ").");
+                }
+                return true;
+
+            } catch (IOException e) {
+                System.err.println("Node " + id + ": Error creating file " + name + ": " + e.getMessage());
+                return false;
+            } finally {
+                createLatency.record(System.nanoTime() - started);
+            }
+        } finally {
+            unlockName(name, guard);
         }
     }
  @Override
     public void getFile(String socketAddress, int port,String fileName) throws RemoteException {
-        File file = new File(storageBasePath +File.separator+ fileName);
-        if (!file.exists()) {
-            throw new RemoteException("File not found: " + file.getAbsolutePath());
+        long started = System.nanoTime();
+        if (!store.exists(fileName)) {
+            throw new RemoteException("File not found: " + fileName + " on " + id);
         }
 
-        try (Socket nodeSocket = new Socket(socketAddress, port);
-             OutputStream out = nodeSocket.getOutputStream();
-             FileInputStream fis = new FileInputStream(file)) {
-
-            byte[] buffer = new byte[4096];
-            int bytesRead;
+        try (SocketChannel clientChannel = SocketChannel.open(new InetSocketAddress(socketAddress, port))) {
 
-            System.out.println("Sending file: " + file.getName() + " to " + socketAddress + ":" + port);
+            authorize(clientChannel, fileName, false);
+            System.out.println("Node " + id + ": Sending file " + fileName + " to " + socketAddress + ":" + port);
 
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
+            // Hot files come from memory, everything else straight from disk
+            ByteBuffer cached = cache.getOrLoad(fileName, store);
+            try (Compression.Link link = Compression.accept(clientChannel)) {
+                if (cached != null) {
+                    bytesSent.mark(Transfers.send(cached, link.out()));
+                } else {
+                    try (FileChannel fileChannel = store.openRead(fileName)) {
+                        bytesSent.mark(Transfers.send(fileChannel, 0, fileChannel.size(), link.out()));
+                    }
+                }
             }
 
-            out.flush();
-            System.out.println("File sent successfully.");
+            System.out.println("Node " + id + ": File " + fileName + " sent to " + socketAddress + ":" + port);
 
         } catch (IOException e) {
-            e.printStackTrace();
+            System.err.println("Node " + id + ": Error sending file " + fileName + " to " + socketAddress + ":" + port + ": " + e.getMessage());
             throw new RemoteException("Error sending file to client socket", e);
+        } finally {
+            getLatency.record(System.nanoTime() - started);
         }
 
     }
 
     @Override
-    public synchronized boolean updateFile(String socketAddress, int port,  String name) throws RemoteException {
-    String filePath = getFileSystemPath(name);
-
-        System.out.println("Node " + id + ": Waiting to receive updated file: " + name + " on port " + port);
+    public void getFileRange(String socketAddress, int port, String fileName, long offset, long length) throws RemoteException {
+        long started = System.nanoTime();
+        if (!store.exists(fileName)) {
+            throw new RemoteException("File not found: " + fileName + " on " + id);
+        }
 
-        try (Socket nodeSocket = new Socket(socketAddress, port);
-             InputStream Nodein = nodeSocket.getInputStream();
-             FileOutputStream fos = new FileOutputStream(filePath, false)) {
+        try (SocketChannel clientChannel = SocketChannel.open(new InetSocketAddress(socketAddress, port))) {
 
-            File directory = new File(this.storageBasePath + File.separator + name);
-            if (!directory.exists()) {
-                directory.mkdirs();
+            authorize(clientChannel, fileName, false);
+            ByteBuffer cached = cache.getOrLoad(fileName, store);
+            try (FileChannel fileChannel = cached == null ? store.openRead(fileName) : null;
+                 Compression.Link link = Compression.accept(clientChannel)) {
+                long size = cached != null ? cached.remaining() : fileChannel.size();
+                if (offset < 0 || length < 0 || offset + length > size) {
+                    throw new RemoteException("Range " + offset + "+" + length + " is outside " + fileName);
+                }
+                long sent = cached != null
+                        ? Transfers.sendRange(cached, offset, length, link.out())
+                        : Transfers.sendRange(fileChannel, offset, length, link.out());
+                bytesSent.mark(sent);
+                if (sent < length) {
+                    throw new RemoteException("Only " + sent + " of " + length + " bytes of " + fileName + " sent");
+                }
             }
-            Nodein.transferTo(fos);
 
-//            byte[] buffer = new byte[4096];
-//            int bytesRead;
-//            while ((bytesRead = in.read(buffer)) != -1) {
-//                fos.write(buffer, 0, bytesRead);
-//            }
-//
-//            fos.flush();
-//            System.out.println("Node " + id + ": File " + fileKey + " updated successfully from socket.");
+        } catch (IOException e) {
+            throw new RemoteException("Error sending range of " + fileName + " to client socket", e);
+        } finally {
+            rangeLatency.record(System.nanoTime() - started);
+        }
+    }
 
+    @Override
+    public boolean updateFile(String socketAddress, int port,  String name, String transferId) throws RemoteException {
+        ReentrantLock guard = lockName(name);
+        try {
+            long started = System.nanoTime();
 
-            return true;
+            System.out.println("Node " + id + ": Waiting to receive updated file: " + name + " on port " + port);
 
-        } catch (IOException e) {
-            System.err.println("Node " + id + ": Error updating file " + name + ": " + e.getMessage());
-            e.printStackTrace();
-            return false;
+            // The client only sends what changed against our current copy
+            try (SocketChannel clientChannel = SocketChannel.open(new InetSocketAddress(socketAddress, port))) {
+
+                authorize(clientChannel, name, true);
+                try (Compression.Link link = Compression.accept(clientChannel)) {
+                    long written = store.receiveDelta(name, transferId, link.in(), link.out());
+                    bytesReceived.mark(written);
+                    cache.invalidate(name);
+                    indexFile(name);
+                    System.out.println("Node " + id + ": File " + name + " updated, " + written + " bytes written (" + link + ").");
+                }
+                return true;
+
+            } catch (IOException e) {
+                System.err.println("Node " + id + ": Error updating file " + name + ": " + e.getMessage());
+                return false;
+            } finally {
+                updateLatency.record(System.nanoTime() - started);
+            }
+        } finally {
+            unlockName(name, guard);
         }
     }
 
     @Override
-    public synchronized boolean deleteFile(String name) throws RemoteException {
+    public void sendDelta(String socketAddress, int port, String fileName) throws RemoteException {
+        if (!store.exists(fileName)) {
+            throw new RemoteException("File not found: " + fileName + " on " + id);
+        }
 
-        System.out.println("Node " + id + ": Attempting to delete file: " + name);
+        try (SocketChannel peerChannel = SocketChannel.open(new InetSocketAddress(socketAddress, port));
+             FileChannel fileChannel = store.openRead(fileName)) {
 
-       boolean existsOnDisk = Files.exists(Paths.get(getFileSystemPath(name)));
+            long literal = DeltaSync.send(fileChannel, peerChannel, peerChannel);
+            bytesSent.mark(literal);
+            System.out.println("Node " + id + ": Sent delta of " + fileName + " to " + socketAddress + ":" + port
+                    + " (" + literal + " of " + fileChannel.size() + " bytes literal)");
 
-        if (!existsOnDisk) {
-            System.out.println("Node " + id + ": File " + name + " not found in memory or disk.");
-            return false;
+        } catch (IOException e) {
+            throw new RemoteException("Error sending delta of " + fileName, e);
         }
+    }
 
+    @Override
+    public void offerFile(String socketAddress, int port, String fileName) throws RemoteException {
+        if (!store.exists(fileName)) {
+            throw new RemoteException("File not found: " + fileName + " on " + id);
+        }
 
-        boolean deletedFromFileSystem = false;
+        try (SocketChannel peerChannel = SocketChannel.open(new InetSocketAddress(socketAddress, port));
+             FileChannel fileChannel = store.openRead(fileName)) {
+
+            // A chunked store already knows the chunk list, a plain one only cuts the file if the receiver wants chunks
+            long sent = Chunker.send(fileChannel, store.chunks(fileName), peerChannel, peerChannel);
+            bytesSent.mark(sent);
+            System.out.println("Node " + id + ": Offered " + fileName + " to " + socketAddress + ":" + port
+                    + " (" + sent + " of " + fileChannel.size() + " bytes sent)");
 
-        try {
-            deletedFromFileSystem = Files.deleteIfExists(Paths.get(getFileSystemPath(name)));
         } catch (IOException e) {
-            System.err.println("Node " + id + ": Failed to delete file " + name + ": " + e.getMessage());
-            e.printStackTrace();
+            throw new RemoteException("Error offering " + fileName, e);
+        }
+    }
+
+    @Override
+    public boolean replicateFrom(String name, NodeInt source) throws RemoteException {
+        long started = System.nanoTime();
+        // An older copy we already hold only needs the changed blocks, otherwise take the chunks we lack
+        boolean delta = store.exists(name);
+
+        // Listen on an ephemeral port and let the source push the file to us, same as it would to a client
+        try (ServerSocketChannel serverChannel = Transfers.listen(0)) {
+            serverChannel.socket().setSoTimeout(REPLICATION_ACCEPT_TIMEOUT_MS);
+            int port = Transfers.localPort(serverChannel);
+            CompletableFuture<Void> sending = CompletableFuture.runAsync(() -> {
+                try {
+                    if (delta) {
+                        source.sendDelta("localhost", port, name);
+                    } else {
+                        source.offerFile("localhost", port, name);
+                    }
+                } catch (RemoteException e) {
+                    throw new CompletionException(e);
+                }
+            });
+
+            // Accepting through the socket adaptor honours the timeout and still hands back a channel
+            try (SocketChannel sourceChannel = serverChannel.socket().accept().getChannel()) {
+                if (delta) {
+                    bytesReceived.mark(store.receiveDelta(name, null, sourceChannel, sourceChannel));
+                } else {
+                    bytesReceived.mark(store.receiveChunks(name, null, sourceChannel, sourceChannel));
+                }
+                cache.invalidate(name);
+                indexFile(name);
+            }
+            sending.join();
 
+            System.out.println("Node " + id + ": Replica of " + name + " written.");
+            return true;
+        } catch (IOException | CompletionException e) {
+            System.err.println("Node " + id + ": Error replicating file " + name + ": " + e.getMessage());
             return false;
+        } finally {
+            replicateLatency.record(System.nanoTime() - started);
         }
+    }
 
-        System.out.println("Node " + id + ": File " + name + " deleted : " + deletedFromFileSystem + ").");
-        return true;
+    @Override
+    public boolean deleteFile(String name) throws RemoteException {
+        ReentrantLock guard = lockName(name);
+        try {
+            long started = System.nanoTime();
+            System.out.println("Node " + id + ": Attempting to delete file: " + name);
+
+            boolean deletedFromFileSystem = false;
+
+            try {
+                deletedFromFileSystem = store.delete(name);
+                cache.invalidate(name);
+                merkleOf(name).remove(name);
+            } catch (IOException e) {
+                System.err.println("Node " + id + ": Failed to delete file " + name + ": " + e.getMessage());
+                return false;
+            } finally {
+                deleteLatency.record(System.nanoTime() - started);
+            }
+
+            if (!deletedFromFileSystem) {
+                System.out.println("Node " + id + ": File " + name + " not found in memory or disk.");
+                return false;
+            }
+
+            System.out.println("Node " + id + ": File " + name + " deleted : " + deletedFromFileSystem + ").");
+            return true;
+        } finally {
+            unlockName(name, guard);
+        }
     }
 
     /**
@@ -401,7 +1086,7 @@ public class NodeImp extends UnicastRemoteObject implements NodeInt {
             System.setProperty("java.rmi.server.hostname", rmiRegistryHost);
 
             NodeImp node = new NodeImp(nodeId);
-            node.scheduleTask();
+            node.scheduleMulticastRejoin();
 
             try {
                 LocateRegistry.createRegistry(Integer.parseInt(rmiRegistryPort));
@@ -429,6 +1114,8 @@ public class NodeImp extends UnicastRemoteObject implements NodeInt {
             } catch (Exception e) {
                 System.err.println(node.getNodeId() + ": CRITICAL - Error during Coordinator interaction: " + e.getMessage());
             }
+            // Also registers the node again if the coordinator comes up later or restarts
+            node.startHeartbeats("rmi://" + rmiRegistryHost + ":" + rmiRegistryPort + "/coordinator");
 
         } catch (RemoteException e) { // From NodeImp constructor or Naming.rebind
             System.err.println("Node " + nodeId + " CRITICAL - RemoteException during startup: " + e.toString());
@@ -452,130 +1139,22 @@ public class NodeImp extends UnicastRemoteObject implements NodeInt {
 //        }
 
     public static void main(String[] args) {
-       startInstance("node_4");
+       startInstance(args.length > 0 ? args[0] : "node_4");
 
     }
-    public enum MulticastMessageType {
-        START,
-        DATA,
-        END,
-        ERROR_HEADER_TOO_LARGE
-    }
-
-
-
-    public static class MulticastMessage { // Made static
-        private final String senderNodeId;
-        private final String filePath;
-        private final MulticastMessageType type;
-        private final byte[] payload;
-
-
-        public MulticastMessage(String senderNodeId, String filePath, MulticastMessageType type, byte[] payload) {
-            this.senderNodeId = senderNodeId;
-            this.filePath = filePath;
-            this.type = type;
-            this.payload = payload;
-        }
 
 
-        public String getSenderNodeId() { return senderNodeId; }
-        public String getFilePath() { return filePath; }
-        public MulticastMessageType getType() { return type; }
-        public byte[] getPayload() { return payload; }
-
-
-        public byte[] toBytes() throws IOException {
-            try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                 DataOutputStream dos = new DataOutputStream(bos)) {
-                dos.writeUTF(senderNodeId);
-                dos.writeUTF(filePath);
-                dos.writeUTF(type.name()); // Use name() for enum serialization
-                dos.writeInt(payload != null ? payload.length : 0);
-                if (payload != null && payload.length > 0) { // Check length too
-                    dos.write(payload);
-                }
-                return bos.toByteArray();
-            }
-        }
-    }
-
-
-    public static class MulticastMessageParser { // Made static
-        public static MulticastMessage fromBytes(byte[] data, int length) throws IOException {
-            // Check for minimal possible length to avoid EOFExceptions prematurely
-            // Smallest possible: UTF(senderId_min) + UTF(filePath_min) + UTF(type_min_name) + Int(payloadLength=0)
-            // This check is a bit heuristic, robust parsing would be more involved.
-            if (length < 10) { // Heuristic minimum length
-                throw new IOException("Data array too short to be a valid MulticastMessage.");
-            }
-
-            try (ByteArrayInputStream bis = new ByteArrayInputStream(data, 0, length);
-                 DataInputStream dis = new DataInputStream(bis)) {
-                String senderNodeId = dis.readUTF();
-                String filePath = dis.readUTF();
-                MulticastMessageType type = MulticastMessageType.valueOf(dis.readUTF());
-                int payloadLength = dis.readInt();
-                byte[] payload = null;
-                if (payloadLength > 0) {
-                    if (dis.available() < payloadLength) {
-                        throw new IOException("Declared payload length " + payloadLength + " is greater than available bytes " + dis.available());
-                    }
-                    payload = new byte[payloadLength];
-                    dis.readFully(payload);
-                } else if (payloadLength < 0) {
-                    throw new IOException("Invalid payload length: " + payloadLength);
-                }
-               return new MulticastMessage(senderNodeId, filePath, type, payload);
-            } catch (IllegalArgumentException e) {
-               throw new IOException("Failed to parse MulticastMessageType: " + e.getMessage(), e);
-            } catch (EOFException e) {
-                throw new IOException("Reached end of stream prematurely while parsing MulticastMessage. Data length: " + length, e);
-            }
-        }
-    }
-
-
-    private void scheduleTask() {
-        // Calculate next 12 AM
-        Calendar calendar = Calendar.getInstance();
-        calendar.set(Calendar.HOUR_OF_DAY, 14);
-        calendar.set(Calendar.MINUTE, 46);
-        calendar.set(Calendar.SECOND, 0);
-        calendar.set(Calendar.MILLISECOND, 0);
-
-        Date firstRun = calendar.getTime();
-        if (firstRun.before(new Date())) {
-            calendar.add(Calendar.DAY_OF_MONTH, 1);
-            firstRun = calendar.getTime();
-        }
-
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-
-                try {
-                    multicastGroupAddress = InetAddress.getByName(MULTICAST_ADDRESS);
-                    multicastListenSocket = new MulticastSocket(MULTICAST_PORT); // Bind to the port for listening
-                    multicastListenSocket.joinGroup(multicastGroupAddress);
-                    System.out.println("Node " + id + ": Joined multicast group " + MULTICAST_ADDRESS + ":" + MULTICAST_PORT);
-
-                    Thread multicastListenerThread = new Thread(NodeImp.this::listenForMulticastMessages);
-                    multicastListenerThread.setDaemon(true);
-                    multicastListenerThread.start();
-
-                } catch (IOException e) {
-                    System.err.println("Node " + id + ": Multicast setup error: " + e.getMessage());
-                }
-
-                // Reschedule for next day
-                scheduleTask();
-
-                // Cancel current timer and create a new one
-                timer.cancel();
-                timer = new Timer();
+    /**
+     * Renews the membership of the running listener once a day, which routers may have aged out.
+     */
+    private void scheduleMulticastRejoin() {
+        multicastRejoin.scheduleAtFixedRate(() -> {
+            try {
+                if (multicastChannel != null && multicastChannel.isOpen()) joinMulticastGroup();
+            } catch (IOException e) {
+                System.err.println("Node " + id + ": Multicast setup error: " + e.getMessage());
             }
-        }, firstRun);
+        }, MULTICAST_REJOIN_MS, MULTICAST_REJOIN_MS, TimeUnit.MILLISECONDS);
     }
 }
 
@@ -1,19 +1,59 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
 
 public interface NodeInt extends Remote {
 
-    boolean createFile(String socketAddress, int port,  String name) throws RemoteException;
+    boolean createFile(String socketAddress, int port,  String name, String transferId) throws RemoteException;
 
  void getFile(String socketAddress, int port,String fileName) throws RemoteException;
 
-    boolean updateFile(String socketAddress, int port,  String name)throws RemoteException;
+    void getFileRange(String socketAddress, int port, String fileName, long offset, long length) throws RemoteException;
+
+    boolean updateFile(String socketAddress, int port,  String name, String transferId)throws RemoteException;
     boolean deleteFile(String name) throws RemoteException;
      String getNodeId() throws RemoteException;
 
     void syncDeleteFile(String fullName) throws RemoteException;
-    void syncFile(String fullName) throws RemoteException;
+    List<String> syncFile(String fullName, List<String> targets) throws RemoteException;
+
+    boolean replicateFrom(String name, NodeInt source) throws RemoteException;
+
+    void sendDelta(String socketAddress, int port, String fileName) throws RemoteException;
+
+    void offerFile(String socketAddress, int port, String fileName) throws RemoteException;
+
+    /**
+     * Root of this node's {@link MerkleIndex} for every department it holds files of, or null while
+     * the node is still hashing what it found on disk.
+     */
+    Map<String, Long> merkleRoots() throws RemoteException;
 
+    long[] merkleHashes(String department, int[] indices) throws RemoteException;
+
+    /**
+     * Name to content digest of the files in the given leaf buckets.
+     */
+    Map<String, String> merkleEntries(String department, int[] leaves) throws RemoteException;
+
+    /**
+     * Content digest of the stored copy of name, null if there is none.
+     */
+    String fileDigest(String name) throws RemoteException;
+
+    CacheStats getCacheStats() throws RemoteException;
+
+    /**
+     * Latencies and throughput of this node's own work, which together with the coordinator's
+     * view tells a slow disk from a slow network.
+     */
+    MetricsSnapshot getMetrics() throws RemoteException;
 
     boolean ping() throws RemoteException;
+
+    /**
+     * Stops this node accepting a session token the coordinator revoked at logout.
+     */
+    void revokeToken(String token) throws RemoteException;
 }
\ No newline at end of file
@@ -0,0 +1,80 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live load figures the coordinator keeps per node for placement decisions:
+ * operations and bytes currently in flight, an exponentially weighted
+ * moving average of how long operations on the node take, and how suspect
+ * the node is given its heartbeats and pings.
+ */
+public class NodeStats {
+    private static final double EWMA_WEIGHT = 0.2; // Share of the newest sample in the latency average
+    private static final int HEARTBEAT_WINDOW = 100; // Intervals the failure detector remembers
+    private static final double MIN_HEARTBEAT_STDDEV_MS = 100; // Keeps a very regular node from being suspected over jitter
+    private static final double ACCEPTABLE_HEARTBEAT_PAUSE_MS = 300; // A GC pause or a busy scheduler
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong bytesInFlight = new AtomicLong();
+    private final AtomicLong latencyEwmaBits = new AtomicLong(Double.doubleToLongBits(0));
+    private final PhiAccrualDetector heartbeats = new PhiAccrualDetector(HEARTBEAT_WINDOW,
+            NodeHeartbeat.INTERVAL_MS, MIN_HEARTBEAT_STDDEV_MS, ACCEPTABLE_HEARTBEAT_PAUSE_MS);
+    private volatile NodeHeartbeat lastHeartbeat;
+    private volatile boolean unresponsive;
+
+    public void begin(long bytes) {
+        inFlight.incrementAndGet();
+        bytesInFlight.addAndGet(bytes);
+    }
+
+    public void end(long bytes, long elapsedNanos) {
+        inFlight.decrementAndGet();
+        bytesInFlight.addAndGet(-bytes);
+        long current;
+        long next;
+        do {
+            current = latencyEwmaBits.get();
+            double previous = Double.longBitsToDouble(current);
+            double updated = previous == 0 ? elapsedNanos : previous + EWMA_WEIGHT * (elapsedNanos - previous);
+            next = Double.doubleToLongBits(updated);
+        } while (!latencyEwmaBits.compareAndSet(current, next));
+    }
+
+    public void heartbeat(NodeHeartbeat beat) {
+        heartbeats.heartbeat(System.nanoTime());
+        lastHeartbeat = beat;
+    }
+
+    /**
+     * Set when a ping missed its deadline, cleared by the next one that did not.
+     */
+    public void setUnresponsive(boolean unresponsive) {
+        this.unresponsive = unresponsive;
+    }
+
+    /**
+     * Phi of the heartbeat failure detector, infinite while the node does not answer pings.
+     */
+    public double getSuspicion() {
+        return unresponsive ? Double.POSITIVE_INFINITY : heartbeats.phi(System.nanoTime());
+    }
+
+    public long getMillisSinceHeartbeat() {
+        return heartbeats.millisSinceLastHeartbeat(System.nanoTime());
+    }
+
+    public NodeHeartbeat getLastHeartbeat() {
+        return lastHeartbeat;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getBytesInFlight() {
+        return bytesInFlight.get();
+    }
+
+    public double getLatencyEwmaNanos() {
+        return Double.longBitsToDouble(latencyEwmaBits.get());
+    }
+}
@@ -0,0 +1,47 @@
+import java.io.Serializable;
+
+/**
+ * Snapshot of a coordinator operation, returned to clients so they can tell
+ * whether their transfer finished and whether it succeeded.
+ */
+public class OperationStatus implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum State {
+        QUEUED,
+        RUNNING,
+        SUCCEEDED,
+        FAILED
+    }
+
+    private final long id;
+    private final State state;
+    private final String message;
+
+    public OperationStatus(long id, State state, String message) {
+        this.id = id;
+        this.state = state;
+        this.message = message;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public boolean isDone() {
+        return state == State.SUCCEEDED || state == State.FAILED;
+    }
+
+    @Override
+    public String toString() {
+        return "Operation " + id + " " + state + (message != null ? ": " + message : "");
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Phi accrual failure detector (Hayashibara et al.). Rather than a fixed timeout it reports how
+ * unlikely the current silence is given the heartbeat intervals seen recently:
+ * phi = -log10(P(the next heartbeat is merely late)). Phi 1 leaves a 10% chance the node is only
+ * slow, phi 8 one in a hundred million. Intervals over a sliding window are taken as normally
+ * distributed, and the CDF is the logistic approximation also used by Akka and Cassandra.
+ */
+public class PhiAccrualDetector {
+    private final double minStdDevMs;
+    private final double acceptablePauseMs;
+    private final double[] intervals;
+    private int count;
+    private int next;
+    private double sum;
+    private double sumOfSquares;
+    private long lastArrivalNanos = -1;
+
+    /**
+     * @param expectedIntervalMs seeds the window so the first heartbeats are judged sensibly
+     * @param acceptablePauseMs  added to the mean, so a GC pause alone does not raise suspicion
+     */
+    public PhiAccrualDetector(int windowSize, double expectedIntervalMs, double minStdDevMs, double acceptablePauseMs) {
+        this.intervals = new double[windowSize];
+        this.minStdDevMs = minStdDevMs;
+        this.acceptablePauseMs = acceptablePauseMs;
+        add(expectedIntervalMs - expectedIntervalMs / 4);
+        add(expectedIntervalMs + expectedIntervalMs / 4);
+    }
+
+    public synchronized void heartbeat(long nowNanos) {
+        if (lastArrivalNanos >= 0) {
+            add((nowNanos - lastArrivalNanos) / 1e6);
+        }
+        lastArrivalNanos = nowNanos;
+    }
+
+    /**
+     * Suspicion at nowNanos; 0 until the first heartbeat, infinite once the silence is far beyond
+     * anything seen.
+     */
+    public synchronized double phi(long nowNanos) {
+        if (lastArrivalNanos < 0) return 0;
+        double elapsedMs = (nowNanos - lastArrivalNanos) / 1e6;
+        double mean = sum / count;
+        double stdDev = Math.max(Math.sqrt(Math.max(sumOfSquares / count - mean * mean, 0)), minStdDevMs);
+        double y = (elapsedMs - mean - acceptablePauseMs) / stdDev;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        return y > 0 ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+    }
+
+    public synchronized long millisSinceLastHeartbeat(long nowNanos) {
+        return lastArrivalNanos < 0 ? -1 : (nowNanos - lastArrivalNanos) / 1_000_000;
+    }
+
+    private void add(double intervalMs) {
+        if (count == intervals.length) {
+            double oldest = intervals[next];
+            sum -= oldest;
+            sumOfSquares -= oldest * oldest;
+        } else {
+            count++;
+        }
+        intervals[next] = intervalMs;
+        next = (next + 1) % intervals.length;
+        sum += intervalMs;
+        sumOfSquares += intervalMs * intervalMs;
+    }
+}
@@ -0,0 +1,92 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which node an operation goes to. Implementations return the candidates best-first: the
+ * head serves the operation, and the ones after it are fallbacks and replica targets, so they have
+ * to be picked with the same care.
+ * <p>
+ * Pick one with the {@code placement.strategy} system property: {@code p2c} (default),
+ * {@code bytes} or {@code ewma}.
+ */
+public interface PlacementStrategy {
+
+    List<String> rank(List<String> candidates, Map<String, NodeStats> stats, long sizeHint);
+
+    static PlacementStrategy fromConfig() {
+        String name = System.getProperty("placement.strategy", "p2c");
+        return switch (name) {
+            case "p2c" -> new PowerOfTwoChoices();
+            case "bytes" -> new BytesInFlightPlacement();
+            case "ewma" -> new LatencyEwmaPlacement();
+            default -> throw new IllegalArgumentException("Unknown placement strategy " + name);
+        };
+    }
+}
+
+/**
+ * Samples two random candidates and keeps the cheaper one, which spreads load almost as well as
+ * scanning every node while costing O(1) comparisons per position. Every position of the ranking
+ * is drawn that way from the candidates not placed yet.
+ */
+abstract class SampledPlacement implements PlacementStrategy {
+
+    abstract double cost(NodeStats stats, long sizeHint);
+
+    @Override
+    public List<String> rank(List<String> candidates, Map<String, NodeStats> stats, long sizeHint) {
+        // Each node's cost is read once, the draws below only compare numbers
+        String[] ids = new String[candidates.size()];
+        double[] costs = new double[candidates.size()];
+        int known = 0;
+        for (String nodeId : candidates) {
+            NodeStats nodeStats = stats.get(nodeId);
+            if (nodeStats == null) continue;
+            ids[known] = nodeId;
+            costs[known] = cost(nodeStats, sizeHint);
+            known++;
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int position = 0; position < known - 1; position++) {
+            int left = known - position;
+            int first = position + random.nextInt(left);
+            int second = position + random.nextInt(left - 1);
+            if (second >= first) second++;
+
+            int chosen = costs[first] <= costs[second] ? first : second;
+            String id = ids[position];
+            ids[position] = ids[chosen];
+            ids[chosen] = id;
+            double cost = costs[position];
+            costs[position] = costs[chosen];
+            costs[chosen] = cost;
+        }
+        return Arrays.asList(ids).subList(0, known);
+    }
+}
+
+class PowerOfTwoChoices extends SampledPlacement {
+    @Override
+    double cost(NodeStats stats, long sizeHint) {
+        return stats.getInFlight();
+    }
+}
+
+class BytesInFlightPlacement extends SampledPlacement {
+    @Override
+    double cost(NodeStats stats, long sizeHint) {
+        // Count each operation as at least a small transfer so tiny files still spread out
+        return stats.getBytesInFlight() + (double) stats.getInFlight() * 64 * 1024;
+    }
+}
+
+class LatencyEwmaPlacement extends SampledPlacement {
+    @Override
+    double cost(NodeStats stats, long sizeHint) {
+        // Expected wait: how slow the node has been, times how much is already queued on it
+        return Math.max(stats.getLatencyEwmaNanos(), 1) * (stats.getInFlight() + 1);
+    }
+}
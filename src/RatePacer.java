@@ -0,0 +1,58 @@
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spaces datagrams out to a target byte rate that adapts to loss: the rate grows additively while
+ * receivers keep up and is cut multiplicatively when they report gaps (AIMD, like TCP).
+ * Used by the multicast sender instead of fixed sleeps between packets.
+ */
+public class RatePacer {
+    private static final long LOSS_BACKOFF_INTERVAL_NANOS = 100_000_000L; // Cut at most once per 100 ms of NACKs
+    private static final double DECREASE_FACTOR = 0.7;
+    private static final int INCREASE_EVERY_PACKETS = 64;
+
+    private final double minBytesPerSecond;
+    private final double maxBytesPerSecond;
+    private final double increaseBytesPerSecond;
+    private volatile double bytesPerSecond;
+    private long nextSendNanos = System.nanoTime();
+    private long lastDecreaseNanos;
+    private int packetsSinceIncrease;
+
+    public RatePacer(double initialBytesPerSecond, double minBytesPerSecond, double maxBytesPerSecond) {
+        this.bytesPerSecond = initialBytesPerSecond;
+        this.minBytesPerSecond = minBytesPerSecond;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.increaseBytesPerSecond = Math.max(minBytesPerSecond, initialBytesPerSecond / 16);
+    }
+
+    /**
+     * Blocks until a packet of the given size may go out without exceeding the current rate.
+     */
+    public void pace(int bytes) {
+        long now = System.nanoTime();
+        if (nextSendNanos > now) {
+            LockSupport.parkNanos(nextSendNanos - now);
+            now = System.nanoTime();
+        }
+        nextSendNanos = Math.max(nextSendNanos, now - 1_000_000L) + (long) (bytes * 1e9 / bytesPerSecond);
+
+        if (++packetsSinceIncrease >= INCREASE_EVERY_PACKETS) {
+            packetsSinceIncrease = 0;
+            bytesPerSecond = Math.min(maxBytesPerSecond, bytesPerSecond + increaseBytesPerSecond);
+        }
+    }
+
+    /**
+     * Called when a receiver reports missing packets.
+     */
+    public synchronized void onLoss() {
+        long now = System.nanoTime();
+        if (now - lastDecreaseNanos < LOSS_BACKOFF_INTERVAL_NANOS) return;
+        lastDecreaseNanos = now;
+        bytesPerSecond = Math.max(minBytesPerSecond, bytesPerSecond * DECREASE_FACTOR);
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+}
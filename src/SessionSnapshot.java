@@ -0,0 +1,57 @@
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything the client menu needs to start a session, fetched in a single call: who is logged
+ * in, which departments exist and may be written to, and the current listing of every department.
+ */
+public class SessionSnapshot implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String username;
+    private final boolean manager;
+    private final long expiresAt;
+    private final List<String> departments;
+    private final List<String> writableDepartments;
+    private final Map<String, DepartmentListing> listings;
+
+    public SessionSnapshot(String username, boolean manager, long expiresAt, List<String> departments,
+                           List<String> writableDepartments, Map<String, DepartmentListing> listings) {
+        this.username = username;
+        this.manager = manager;
+        this.expiresAt = expiresAt;
+        this.departments = departments;
+        this.writableDepartments = writableDepartments;
+        this.listings = listings;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public boolean isManager() {
+        return manager;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public List<String> getDepartments() {
+        return departments;
+    }
+
+    public boolean canWrite(String department) {
+        return writableDepartments.contains(department);
+    }
+
+    public Map<String, DepartmentListing> getListings() {
+        return listings;
+    }
+
+    public List<String> getFiles(String department) {
+        DepartmentListing listing = listings.get(department);
+        return listing != null ? listing.getFiles() : List.of();
+    }
+}
@@ -0,0 +1,138 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wire format of multicast sync datagrams. Every packet starts with the same fixed header
+ * <pre>
+ *   version (1) | type (1) | transfer id (8) | sequence (4)
+ * </pre>
+ * and its payload runs to the end of the datagram. The sender picks the transfer id and nothing
+ * else names the transfer: who sends, to whom, which file and how it is cut into chunks only travel
+ * as the {@link Layout} in START, and again in END in case START was lost. The sequence is the chunk index
+ * in DATA, the chunk count in START and END, and the number of chunks listed in a NACK.
+ * <p>
+ * Packets are encoded into and read out of buffers the caller keeps, so streaming a file allocates
+ * nothing per chunk.
+ */
+class SyncPacket {
+    static final int HEADER_SIZE = 14;
+    private static final byte VERSION = 2; // 1 was DataOutputStream with the sender, path and type name in every packet
+
+    enum Type {
+        START, DATA, END, NACK, COMPLETE;
+
+        private static final Type[] BY_ID = values();
+    }
+
+    private Type type;
+    private long transferId;
+    private int sequence;
+
+    /**
+     * Clears packet and writes a header into it, leaving the position where the payload goes.
+     */
+    static ByteBuffer writeHeader(ByteBuffer packet, Type type, long transferId, int sequence) {
+        return packet.clear().put(VERSION).put((byte) type.ordinal()).putLong(transferId).putInt(sequence);
+    }
+
+    /**
+     * Reads the header of a received packet, leaving its position at the payload.
+     *
+     * @return false for anything that is not a sync packet of this version
+     */
+    boolean read(ByteBuffer packet) {
+        if (packet.remaining() < HEADER_SIZE || packet.get() != VERSION) return false;
+        int typeId = packet.get();
+        if (typeId < 0 || typeId >= Type.BY_ID.length) return false;
+        type = Type.BY_ID[typeId];
+        transferId = packet.getLong();
+        sequence = packet.getInt();
+        return true;
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    long getTransferId() {
+        return transferId;
+    }
+
+    int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * What START and END carry: the sending node, the nodes meant to keep the file, the file and how
+     * it is cut into chunks. Every node in the group hears the sync, the others drop it.
+     */
+    static final class Layout {
+        final String senderId;
+        final String path;
+        final int chunkSize;
+        final long size; // of the bytes sent, which are compressed unless codec is NONE
+        final Compression.Codec codec;
+        final List<String> targets;
+
+        Layout(String senderId, String path, int chunkSize, long size, Compression.Codec codec, List<String> targets) {
+            this.senderId = senderId;
+            this.targets = List.copyOf(targets);
+            this.path = path;
+            this.chunkSize = chunkSize;
+            this.size = size;
+            this.codec = codec;
+        }
+
+        /**
+         * Encoded once per sync and put into every START and END as is.
+         */
+        byte[] encode() {
+            byte[] sender = senderId.getBytes(StandardCharsets.UTF_8);
+            byte[] name = path.getBytes(StandardCharsets.UTF_8);
+            List<byte[]> targetIds = new ArrayList<>();
+            int targetBytes = 0;
+            for (String target : targets) {
+                byte[] targetId = target.getBytes(StandardCharsets.UTF_8);
+                targetIds.add(targetId);
+                targetBytes += 2 + targetId.length;
+            }
+            ByteBuffer layout = ByteBuffer.allocate(4 + 8 + 1 + 2 + sender.length + 2 + name.length + 2 + targetBytes)
+                    .putInt(chunkSize).putLong(size).put((byte) codec.getId())
+                    .putShort((short) sender.length).put(sender)
+                    .putShort((short) name.length).put(name)
+                    .putShort((short) targetIds.size());
+            for (byte[] targetId : targetIds) layout.putShort((short) targetId.length).put(targetId);
+            return layout.array();
+        }
+
+        static Layout decode(ByteBuffer payload) throws IOException {
+            try {
+                int chunkSize = payload.getInt();
+                long size = payload.getLong();
+                Compression.Codec codec = Compression.Codec.byId(payload.get());
+                if (codec == null) throw new IOException("Sync uses an unknown codec");
+                String senderId = readString(payload);
+                String path = readString(payload);
+                int targetCount = payload.getShort() & 0xffff;
+                List<String> targets = new ArrayList<>(targetCount);
+                for (int i = 0; i < targetCount; i++) targets.add(readString(payload));
+                if (chunkSize <= 0 || size < 0) throw new IOException("Bad sync layout: " + chunkSize + " byte chunks of " + size + " bytes");
+                return new Layout(senderId, path, chunkSize, size, codec, targets);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Sync layout cut short", e);
+            }
+        }
+
+        private static String readString(ByteBuffer payload) {
+            int length = payload.getShort() & 0xffff;
+            if (length > payload.remaining()) throw new BufferUnderflowException();
+            byte[] bytes = new byte[length];
+            payload.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -1,33 +1,229 @@
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
-import java.util.Base64;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Issues and checks self-contained session tokens: base64url(payload) "." base64url(HMAC-SHA256).
+ * The payload carries username, roles, expiry and a random nonce, so checking a token needs no
+ * lookup and nothing is kept per login. The coordinator and the nodes share the signing key
+ * through a key file, which lets a node check the token a client presents on a data connection.
+ */
 public class TokenGenerator {
     private static final SecureRandom secureRandom = new SecureRandom();
     private static final Base64.Encoder base64Encoder = Base64.getUrlEncoder().withoutPadding();
-
-    // Store token -> expiryTime
-    private static final Map<String, Long> tokenStore = new HashMap<>();
+    private static final Base64.Decoder base64Decoder = Base64.getUrlDecoder();
 
     // Token valid for 30 minutes (in milliseconds)
     private static final long TOKEN_VALIDITY_DURATION = 30 * 60 * 1000;
+    private static final String KEY_FILE = System.getProperty("token.keyFile", "storage/token.key");
+    private static final int KEY_LENGTH = 32;
+    private static final int NONCE_LENGTH = 16;
+    private static final long REVOCATION_TICK_MS = 10 * 1000; // Revoked tokens are forgotten this long after they expire
+
+    private static final byte[] key = loadKey(Paths.get(KEY_FILE));
+    private static final ThreadLocal<Mac> mac = ThreadLocal.withInitial(TokenGenerator::newMac);
+    private static final RevocationWheel revoked =
+            new RevocationWheel(REVOCATION_TICK_MS, (int) (TOKEN_VALIDITY_DURATION / REVOCATION_TICK_MS) + 2);
+
+    /**
+     * What a valid token says about its holder.
+     */
+    public static final class Claims {
+        private final String username;
+        private final List<String> roles;
+        private final long expiresAt;
+
+        Claims(String username, List<String> roles, long expiresAt) {
+            this.username = username;
+            this.roles = roles;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getUsername() { return username; }
+        public List<String> getRoles() { return roles; }
+        public long getExpiresAt() { return expiresAt; }
+
+        public boolean hasRole(String role) {
+            return roles.contains(role);
+        }
+    }
 
-    public static String generateToken(String username) {
-        byte[] randomBytes = new byte[24];
-        secureRandom.nextBytes(randomBytes);
-        String randomPart = base64Encoder.encodeToString(randomBytes);
-        String token = username + "-" + System.currentTimeMillis() + "-" + randomPart;
+    public static String generateToken(String username, List<String> roles) {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        secureRandom.nextBytes(nonce);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(username);
+            out.writeInt(roles.size());
+            for (String role : roles) out.writeUTF(role);
+            out.writeLong(System.currentTimeMillis() + TOKEN_VALIDITY_DURATION);
+            out.write(nonce);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] payload = bytes.toByteArray();
+        return base64Encoder.encodeToString(payload) + "." + base64Encoder.encodeToString(mac.get().doFinal(payload));
+    }
 
-        // Store token with expiration time
-        tokenStore.put(token, System.currentTimeMillis() + TOKEN_VALIDITY_DURATION);
+    /**
+     * Claims of token, or null if it is malformed, forged, expired or revoked.
+     */
+    public static Claims verify(String token) {
+        if (token == null) return null;
+        int dot = token.indexOf('.');
+        if (dot < 0) return null;
+        byte[] payload;
+        byte[] signature;
+        try {
+            payload = base64Decoder.decode(token.substring(0, dot));
+            signature = base64Decoder.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        // Constant time, so a forger learns nothing from how long the check took
+        if (!MessageDigest.isEqual(mac.get().doFinal(payload), signature)) return null;
 
-        return token;
+        Claims claims = decode(payload);
+        if (claims.expiresAt < System.currentTimeMillis() || revoked.contains(token)) return null;
+        return claims;
     }
 
     public static boolean isValidToken(String token) {
-        Long expiryTime = tokenStore.get(token);
-        if (expiryTime == null) return false;
-        return System.currentTimeMillis() <= expiryTime;
+        return verify(token) != null;
+    }
+
+    /**
+     * Reads the claims without checking the signature, for holders of a token that cannot check it.
+     */
+    public static Claims peek(String token) {
+        int dot = token != null ? token.indexOf('.') : -1;
+        if (dot < 0) return null;
+        try {
+            return decode(base64Decoder.decode(token.substring(0, dot)));
+        } catch (IllegalArgumentException | UncheckedIOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Makes token invalid on this process ahead of its expiry.
+     */
+    public static void revoke(String token) {
+        Claims claims = verify(token);
+        if (claims != null) revoked.add(token, claims.expiresAt);
+    }
+
+    private static Claims decode(byte[] payload) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            String username = in.readUTF();
+            int count = in.readInt();
+            if (count < 0 || count > payload.length) throw new IOException("Invalid role count " + count);
+            List<String> roles = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) roles.add(in.readUTF());
+            return new Claims(username, List.copyOf(roles), in.readLong());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Mac newMac() {
+        try {
+            Mac instance = Mac.getInstance("HmacSHA256");
+            instance.init(new SecretKeySpec(key, "HmacSHA256"));
+            return instance;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads the shared signing key, creating it on first start. Whoever loses the race to create it
+     * reads the winner's key.
+     */
+    private static byte[] loadKey(Path path) {
+        try {
+            if (!Files.exists(path)) {
+                Files.createDirectories(path.toAbsolutePath().getParent());
+                byte[] fresh = new byte[KEY_LENGTH];
+                secureRandom.nextBytes(fresh);
+                Path tmp = Files.createTempFile(path.toAbsolutePath().getParent(), "token", ".key");
+                try {
+                    Files.write(tmp, fresh);
+                    try {
+                        Files.setPosixFilePermissions(tmp, EnumSet.of(
+                                java.nio.file.attribute.PosixFilePermission.OWNER_READ,
+                                java.nio.file.attribute.PosixFilePermission.OWNER_WRITE));
+                    } catch (UnsupportedOperationException e) {
+                        // Not a POSIX file system, rely on the directory's permissions
+                    }
+                    Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+                } catch (FileAlreadyExistsException e) {
+                    // Someone else created it first
+                } finally {
+                    Files.deleteIfExists(tmp);
+                }
+            }
+            byte[] stored = Files.readAllBytes(path);
+            if (stored.length < KEY_LENGTH) throw new IOException("Token key " + path + " is too short");
+            return stored;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot load token key " + path, e);
+        }
+    }
+}
+
+/**
+ * Revoked tokens, each kept only until it would have expired anyway. Entries are bucketed by
+ * expiry tick on a wheel spanning the token lifetime; moving the wheel forward drops a whole
+ * bucket at once, so nothing ever scans the set.
+ */
+class RevocationWheel {
+    private final long tickMs;
+    private final List<Set<String>> slots;
+    private final Set<String> revoked = ConcurrentHashMap.newKeySet();
+    private volatile long currentTick;
+
+    RevocationWheel(long tickMs, int slotCount) {
+        this.tickMs = tickMs;
+        this.slots = new ArrayList<>(slotCount);
+        for (int i = 0; i < slotCount; i++) slots.add(new HashSet<>());
+        this.currentTick = System.currentTimeMillis() / tickMs;
+    }
+
+    synchronized void add(String token, long expiresAt) {
+        advance();
+        // Dropped on the first tick after expiry, never later than the wheel can reach
+        long tick = Math.min(expiresAt / tickMs + 1, currentTick + slots.size() - 1);
+        slots.get((int) (tick % slots.size())).add(token);
+        revoked.add(token);
+    }
+
+    boolean contains(String token) {
+        if (revoked.isEmpty()) return false;
+        if (System.currentTimeMillis() / tickMs > currentTick) {
+            synchronized (this) {
+                advance();
+            }
+        }
+        return revoked.contains(token);
+    }
+
+    private void advance() {
+        long target = System.currentTimeMillis() / tickMs;
+        // After a long idle stretch one full turn clears everything
+        long from = Math.max(currentTick, target - slots.size());
+        for (long tick = from + 1; tick <= target; tick++) {
+            Set<String> due = slots.get((int) (tick % slots.size()));
+            revoked.removeAll(due);
+            due.clear();
+        }
+        currentTick = Math.max(currentTick, target);
     }
-}
\ No newline at end of file
+}
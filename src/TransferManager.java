@@ -0,0 +1,155 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a batch of client uploads and downloads side by side, at most client.transfers at a time,
+ * and prints how far the batch got every second. Every transfer listens on a port of its own, so
+ * they never wait for each other's data connections. A transfer is only submitted once a slot is
+ * free, so it starts right away and a node never waits on an accept that is still queued.
+ */
+class TransferManager implements AutoCloseable {
+    private static final int DEFAULT_CONCURRENCY = 8;
+    private static final long PROGRESS_INTERVAL_MS = 1000;
+
+    interface Task {
+        void run() throws Exception;
+    }
+
+    record Failure(String name, Throwable cause) {
+    }
+
+    private record Transfer(String name, Future<?> future) {
+    }
+
+    private final ExecutorService workers;
+    private final ScheduledExecutorService reporter;
+    private final Semaphore slots;
+    private final Map<Long, Transfer> submitted = new LinkedHashMap<>(); // by id, a name may come twice
+    private final List<Failure> failures = new ArrayList<>();
+    private long nextId;
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger finished = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong bytesTotal = new AtomicLong();
+    private final AtomicLong bytesDone = new AtomicLong();
+    private final long started = System.nanoTime();
+
+    static TransferManager fromConfig() {
+        return new TransferManager(Integer.getInteger("client.transfers", DEFAULT_CONCURRENCY));
+    }
+
+    TransferManager(int concurrency) {
+        if (concurrency < 1) throw new IllegalArgumentException("Concurrency must be at least 1: " + concurrency);
+        this.slots = new Semaphore(concurrency);
+        this.workers = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "transfer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "transfer-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(this::report, PROGRESS_INTERVAL_MS, PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits until at least one slot is free.
+     *
+     * @return how many slots are free, that many transfers can be submitted without waiting
+     */
+    int freeSlots() throws InterruptedException {
+        slots.acquire();
+        int free = 1 + slots.drainPermits();
+        slots.release(free);
+        return free;
+    }
+
+    /**
+     * Starts the transfer of name, about size bytes, waiting for a free slot first. The task reports
+     * its bytes through {@link #progress} as they land.
+     *
+     * @return the id of the transfer
+     */
+    long submit(String name, long size, Task task) throws InterruptedException {
+        slots.acquire();
+        bytesTotal.addAndGet(size);
+        Future<?> future;
+        try {
+            future = workers.submit(() -> {
+                running.incrementAndGet();
+                try {
+                    task.run();
+                    finished.incrementAndGet();
+                    return null;
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    throw e;
+                } finally {
+                    running.decrementAndGet();
+                    slots.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            slots.release();
+            throw e;
+        }
+        synchronized (this) {
+            long id = nextId++;
+            submitted.put(id, new Transfer(name, future));
+            return id;
+        }
+    }
+
+    void progress(long bytes) {
+        bytesDone.addAndGet(bytes);
+    }
+
+    /**
+     * Waits for everything submitted so far.
+     *
+     * @return every transfer of the batch that failed so far with its cause, in submission order
+     */
+    synchronized List<Failure> await() throws InterruptedException {
+        for (Transfer transfer : submitted.values()) {
+            try {
+                transfer.future.get();
+            } catch (ExecutionException e) {
+                failures.add(new Failure(transfer.name, e.getCause()));
+            }
+        }
+        submitted.clear();
+        return failures;
+    }
+
+    private void report() {
+        if (running.get() == 0) return;
+        System.out.println(summary());
+    }
+
+    String summary() {
+        double seconds = Math.max((System.nanoTime() - started) / 1e9, 1e-3);
+        long done = Math.min(bytesDone.get(), bytesTotal.get()); // Parts resent after a failure count twice
+        return String.format("Transfers: %d done, %d running, %d failed, %.1f of %.1f MB at %.1f MB/s",
+                finished.get(), running.get(), failed.get(),
+                done / 1e6, bytesTotal.get() / 1e6, done / 1e6 / seconds);
+    }
+
+    @Override
+    public void close() {
+        reporter.shutdownNow();
+        workers.shutdownNow();
+    }
+}
@@ -0,0 +1,156 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.net.StandardSocketOptions;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Channel-to-channel copy helpers shared by the client and the nodes. Files go to sockets through
+ * FileChannel.transferTo, which the JDK maps onto sendfile so the bytes never enter the Java heap;
+ * the receiving side uses transferFrom into the file channel.
+ */
+public final class Transfers {
+    private static final int RANGE_HEADER_SIZE = 16;
+    private static final int MAX_TOKEN_LENGTH = 4096;
+
+    private Transfers() {
+    }
+
+    /**
+     * Streams count bytes of file starting at position into out.
+     */
+    public static long send(FileChannel file, long position, long count, WritableByteChannel out) throws IOException {
+        long sent = 0;
+        while (sent < count) {
+            long n = file.transferTo(position + sent, count - sent, out);
+            if (n <= 0) {
+                // transferTo returns 0 once position reaches the end of the file
+                if (position + sent >= file.size()) break;
+                continue;
+            }
+            sent += n;
+        }
+        return sent;
+    }
+
+    /**
+     * Copies everything from in until end of stream into file starting at position.
+     */
+    public static long receive(ReadableByteChannel in, FileChannel file, long position) throws IOException {
+        long received = 0;
+        while (true) {
+            // On a blocking channel transferFrom only returns 0 once the peer closed the stream
+            long n = file.transferFrom(in, position + received, Long.MAX_VALUE - position - received);
+            if (n <= 0) break;
+            received += n;
+        }
+        return received;
+    }
+
+    /**
+     * Copies exactly count bytes from in into file starting at position.
+     */
+    public static long receive(ReadableByteChannel in, FileChannel file, long position, long count) throws IOException {
+        long received = 0;
+        while (received < count) {
+            long n = file.transferFrom(in, position + received, count - received);
+            if (n <= 0) throw new EOFException("Connection closed after " + received + " of " + count + " bytes");
+            received += n;
+        }
+        return received;
+    }
+
+    /**
+     * Sends length bytes of file from offset, preceded by a header naming the range so the receiver
+     * can write it in place whatever order ranges arrive in.
+     */
+    public static long sendRange(FileChannel file, long offset, long length, WritableByteChannel out) throws IOException {
+        writeRangeHeader(offset, length, out);
+        return send(file, offset, length, out);
+    }
+
+    /**
+     * Same as {@link #sendRange(FileChannel, long, long, WritableByteChannel)} for contents already
+     * in memory.
+     */
+    public static long sendRange(ByteBuffer content, long offset, long length, WritableByteChannel out) throws IOException {
+        writeRangeHeader(offset, length, out);
+        return send(content.slice((int) offset, (int) length), out);
+    }
+
+    /**
+     * Writes everything remaining in data to out.
+     */
+    public static long send(ByteBuffer data, WritableByteChannel out) throws IOException {
+        long sent = 0;
+        while (data.hasRemaining()) {
+            sent += out.write(data);
+        }
+        return sent;
+    }
+
+    private static void writeRangeHeader(long offset, long length, WritableByteChannel out) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RANGE_HEADER_SIZE).putLong(offset).putLong(length).flip();
+        while (header.hasRemaining()) {
+            out.write(header);
+        }
+    }
+
+    /**
+     * Reads a range header written by {@link #sendRange}: {offset, length}.
+     */
+    public static long[] readRangeHeader(ReadableByteChannel in) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RANGE_HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (in.read(header) < 0) throw new EOFException("Connection closed inside a range header");
+        }
+        header.flip();
+        return new long[]{header.getLong(), header.getLong()};
+    }
+
+    /**
+     * Opens a data connection with the caller's token: short length, then UTF-8 bytes.
+     */
+    public static void writeToken(WritableByteChannel out, String token) throws IOException {
+        byte[] bytes = token.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(2 + bytes.length).putShort((short) bytes.length).put(bytes).flip();
+        while (frame.hasRemaining()) {
+            out.write(frame);
+        }
+    }
+
+    /**
+     * Reads a token written by {@link #writeToken}, without reading past it.
+     */
+    public static String readToken(ReadableByteChannel in) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(2);
+        readFully(in, length);
+        int n = length.flip().getShort() & 0xffff;
+        if (n > MAX_TOKEN_LENGTH) throw new IOException("Token of " + n + " bytes is too long");
+        ByteBuffer token = ByteBuffer.allocate(n);
+        readFully(in, token);
+        return new String(token.array(), StandardCharsets.UTF_8);
+    }
+
+    private static void readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) throw new EOFException("Connection closed inside a token");
+        }
+    }
+
+    public static ServerSocketChannel listen(int port) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.bind(new InetSocketAddress(port));
+        return channel;
+    }
+
+    public static int localPort(ServerSocketChannel channel) throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+}
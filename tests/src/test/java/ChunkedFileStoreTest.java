@@ -0,0 +1,191 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkedFileStoreTest {
+    private static final int SIZE = 2 << 20;
+
+    @TempDir
+    Path dir;
+
+    private final byte[] content = random(SIZE, 1);
+
+    @Test
+    void identicalFilesShareTheirChunks() throws IOException {
+        ChunkedFileStore store = new ChunkedFileStore(dir);
+        write(store, "IT/a.bin", content);
+        long chunks = chunkFiles();
+        assertTrue(chunks > 1);
+
+        write(store, "HR/a.bin", content);
+        assertEquals(chunks, chunkFiles());
+        assertArrayEquals(content, read(store, "HR/a.bin"));
+    }
+
+    @Test
+    void chunksOutliveAllButTheLastReference() throws IOException {
+        ChunkedFileStore store = new ChunkedFileStore(dir);
+        write(store, "IT/a.bin", content);
+        write(store, "HR/a.bin", content);
+
+        assertTrue(store.delete("IT/a.bin"));
+        assertFalse(store.exists("IT/a.bin"));
+        assertArrayEquals(content, read(store, "HR/a.bin"));
+
+        assertTrue(store.delete("HR/a.bin"));
+        assertEquals(0, chunkFiles());
+        assertFalse(store.delete("HR/a.bin"));
+    }
+
+    @Test
+    void openReaderKeepsTheChunksOfADeletedFile() throws IOException {
+        ChunkedFileStore store = new ChunkedFileStore(dir);
+        write(store, "IT/a.bin", content);
+        try (FileChannel file = store.openRead("IT/a.bin")) {
+            assertTrue(store.delete("IT/a.bin"));
+            assertTrue(chunkFiles() > 0);
+            assertArrayEquals(content, Channels.newInputStream(file).readAllBytes());
+        }
+        assertEquals(0, chunkFiles());
+    }
+
+    @Test
+    void overwriteDropsOnlyChunksNoOtherFileUses() throws IOException {
+        ChunkedFileStore store = new ChunkedFileStore(dir);
+        byte[] edited = content.clone();
+        System.arraycopy(random(1000, 2), 0, edited, SIZE / 2, 1000);
+        write(store, "IT/a.bin", content);
+        write(store, "IT/b.bin", edited);
+
+        write(store, "IT/a.bin", random(SIZE, 3));
+        assertEquals(referencedChunks(store, "IT/a.bin", "IT/b.bin"), chunkFiles());
+        assertArrayEquals(edited, read(store, "IT/b.bin"));
+    }
+
+    @Test
+    void restartRebuildsCountsAndSweepsOrphans() throws IOException {
+        write(new ChunkedFileStore(dir), "IT/a.bin", content);
+        write(new ChunkedFileStore(dir), "HR/a.bin", content);
+        Path orphan = dir.resolve(".chunks/ab/ab" + "0".repeat(62)); // left by a crash before its manifest
+        Files.createDirectories(orphan.getParent());
+        Files.write(orphan, new byte[]{1, 2, 3});
+
+        ChunkedFileStore store = new ChunkedFileStore(dir);
+        assertFalse(Files.exists(orphan));
+        store.delete("IT/a.bin");
+        assertArrayEquals(content, read(store, "HR/a.bin"));
+        store.delete("HR/a.bin");
+        assertEquals(0, chunkFiles());
+    }
+
+    @Test
+    void pushAsksOnlyForChunksItLacks() throws Exception {
+        ChunkedFileStore store = new ChunkedFileStore(dir);
+        write(store, "IT/a.bin", content);
+        byte[] edited = content.clone();
+        System.arraycopy(random(1000, 2), 0, edited, SIZE / 2, 1000);
+
+        long received = push(store, "HR/a.bin", edited);
+        assertArrayEquals(edited, read(store, "HR/a.bin"));
+        assertTrue(received > 0 && received <= 2 * Chunker.MAX_CHUNK, "received " + received);
+        assertEquals(referencedChunks(store, "IT/a.bin", "HR/a.bin"), chunkFiles());
+    }
+
+    @Test
+    void interruptedPushKeepsItsChunksForTheRetry() throws Exception {
+        ChunkedFileStore store = new ChunkedFileStore(dir);
+        assertThrows(IOException.class, () -> push(store, "IT/a.bin", "t1", content, SIZE / 2));
+        assertTrue(chunkFiles() > 0, "chunks that arrived are kept");
+        assertFalse(store.exists("IT/a.bin"));
+
+        long received = push(store, "IT/a.bin", "t1", content, Long.MAX_VALUE);
+        assertTrue(received < SIZE * 3 / 4, "received " + received + " bytes again");
+        assertArrayEquals(content, read(store, "IT/a.bin"));
+        assertEquals(referencedChunks(store, "IT/a.bin"), chunkFiles());
+    }
+
+    @Test
+    void abandonedPushReleasesItsChunksWhenItExpires() throws Exception {
+        ChunkedFileStore store = new ChunkedFileStore(dir);
+        assertThrows(IOException.class, () -> push(store, "IT/a.bin", "t1", content, SIZE / 2));
+        try (Stream<Path> staged = Files.list(dir.resolve(FileStore.STAGING_DIR))) {
+            FileTime hourAgo = FileTime.fromMillis(System.currentTimeMillis() - 3_600_000);
+            for (Path file : (Iterable<Path>) staged::iterator) Files.setLastModifiedTime(file, hourAgo);
+        }
+
+        store.expireStaged(60_000);
+        assertEquals(0, chunkFiles());
+    }
+
+    private void write(ChunkedFileStore store, String name, byte[] bytes) throws IOException {
+        Path staged = store.stagingFile();
+        Files.write(staged, bytes);
+        store.commit(name, staged);
+    }
+
+    private static byte[] read(ChunkedFileStore store, String name) throws IOException {
+        try (FileChannel file = store.openRead(name)) {
+            return Channels.newInputStream(file).readAllBytes();
+        }
+    }
+
+    /**
+     * Offers bytes to the store the way a client or another node does, the sender running as a peer.
+     *
+     * @return bytes the store asked for
+     */
+    private long push(ChunkedFileStore store, String name, byte[] bytes) throws Exception {
+        return push(store, name, null, bytes, Long.MAX_VALUE);
+    }
+
+    private long push(ChunkedFileStore store, String name, String transferId, byte[] bytes, long cutAfter) throws Exception {
+        Path source = dir.resolve("source");
+        Files.write(source, bytes);
+        try (PipedPeer<Long> sender = PipedPeer.startCut((in, out) -> offer(source, in, out), cutAfter)) {
+            long received = store.receiveChunks(name, transferId, sender.in(), sender.out());
+            assertEquals(received, sender.result());
+            return received;
+        }
+    }
+
+    private static long offer(Path source, ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        try (FileChannel file = FileChannel.open(source, StandardOpenOption.READ)) {
+            return Chunker.send(file, null, in, out);
+        }
+    }
+
+    private static long referencedChunks(ChunkedFileStore store, String... names) throws IOException {
+        Set<String> hashes = new HashSet<>();
+        for (String name : names) {
+            store.chunks(name).forEach(chunk -> hashes.add(chunk.getHash()));
+        }
+        return hashes.size();
+    }
+
+    private long chunkFiles() throws IOException {
+        try (Stream<Path> chunks = Files.walk(dir.resolve(".chunks"))) {
+            return chunks.filter(Files::isRegularFile).count();
+        }
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,164 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompressionTest {
+    private static final int BLOCK = Compression.BLOCK_SIZE;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void lzRoundTripsText() throws IOException {
+        assertRoundTrip(new LzBlockCodec(), text(BLOCK));
+    }
+
+    @Test
+    void deflateRoundTripsText() throws IOException {
+        assertRoundTrip(new DeflateBlockCodec(), text(BLOCK));
+    }
+
+    @Test
+    void lzRoundTripsOverlappingMatchesAndLongLengths() throws IOException {
+        byte[] raw = new byte[BLOCK];
+        Arrays.fill(raw, 0, BLOCK / 2, (byte) 'a'); // one match far longer than 15 + 255
+        for (int i = BLOCK / 2; i < BLOCK; i++) raw[i] = (byte) "abc".charAt(i % 3); // offset 3, shorter than the match
+        assertRoundTrip(new LzBlockCodec(), raw);
+    }
+
+    @Test
+    void lzRoundTripsShortBlocks() throws IOException {
+        assertRoundTrip(new LzBlockCodec(), text(100));
+    }
+
+    @Test
+    void incompressibleBlocksAreLeftAlone() {
+        byte[] raw = random(BLOCK);
+        assertEquals(-1, new LzBlockCodec().compress(raw, raw.length, new byte[BLOCK]));
+        assertEquals(-1, new DeflateBlockCodec().compress(raw, raw.length, new byte[BLOCK]));
+    }
+
+    @Test
+    void truncatedLzBlockIsRejected() {
+        assertTruncatedRejected(new LzBlockCodec());
+    }
+
+    @Test
+    void truncatedDeflateBlockIsRejected() {
+        assertTruncatedRejected(new DeflateBlockCodec());
+    }
+
+    @Test
+    void lzMatchBeforeTheStartIsRejected() {
+        // One literal, then a match 2 bytes back
+        byte[] packed = {(byte) 0x10, 'x', 2, 0, (byte) 0x00, 'y'};
+        IOException e = assertThrows(IOException.class, () -> new LzBlockCodec().decompress(packed, packed.length, new byte[16], 6));
+        assertTrue(e.getMessage().contains("offset"), e.getMessage());
+    }
+
+    @Test
+    void lzLiteralsBeyondTheBlockAreRejected() {
+        // Claims 15 + 200 literals in a 4 byte block
+        byte[] packed = {(byte) 0xF0, (byte) 200, 'a', 'b'};
+        assertThrows(IOException.class, () -> new LzBlockCodec().decompress(packed, packed.length, new byte[BLOCK], BLOCK));
+    }
+
+    @Test
+    void corruptDeflateBlockIsRejected() {
+        byte[] packed = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF}; // reserved block type
+        assertThrows(IOException.class, () -> new DeflateBlockCodec().decompress(packed, packed.length, new byte[BLOCK], BLOCK));
+    }
+
+    @Test
+    void streamsRoundTripAcrossFramesForEveryCodec() throws IOException {
+        byte[] raw = new byte[3 * BLOCK + 123];
+        byte[] text = text(raw.length);
+        byte[] noise = random(raw.length);
+        for (int i = 0; i < raw.length; i++) raw[i] = i < 2 * BLOCK ? text[i] : noise[i]; // then a frame stored as is
+        for (Compression.Codec codec : Compression.Codec.values()) {
+            Path packed = compress(raw, codec);
+            Path unpacked = dir.resolve("unpacked-" + codec);
+            assertEquals(raw.length, Compression.decompress(packed, codec, unpacked));
+            assertArrayEquals(raw, Files.readAllBytes(unpacked), codec.name());
+        }
+    }
+
+    @Test
+    void truncatedStreamIsRejected() throws IOException {
+        Path packed = compress(text(2 * BLOCK), Compression.Codec.LZ);
+        try (FileChannel file = FileChannel.open(packed, StandardOpenOption.WRITE)) {
+            file.truncate(file.size() - 1);
+        }
+        assertThrows(IOException.class, () -> Compression.decompress(packed, Compression.Codec.LZ, dir.resolve("out")));
+    }
+
+    @Test
+    void corruptFrameHeaderIsRejected() throws IOException {
+        Path packed = compress(text(BLOCK), Compression.Codec.DEFLATE);
+        byte[] bytes = Files.readAllBytes(packed);
+        bytes[0] = 7; // neither stored nor compressed
+        Files.write(packed, bytes);
+        IOException e = assertThrows(IOException.class, () -> Compression.decompress(packed, Compression.Codec.DEFLATE, dir.resolve("out")));
+        assertTrue(e.getMessage().startsWith("Corrupt frame"), e.getMessage());
+    }
+
+    @Test
+    void compressedFilesAreNotOfferedAnyCodec() {
+        assertTrue(Compression.codecsFor("photo.JPG").isEmpty());
+        assertEquals(Compression.Codec.NONE, Compression.preferredCodec("archive.tar.gz"));
+        assertFalse(Compression.codecsFor("report.csv").isEmpty());
+    }
+
+    private static void assertRoundTrip(BlockCodec codec, byte[] raw) throws IOException {
+        byte[] packed = new byte[raw.length];
+        int length = codec.compress(raw, raw.length, packed);
+        assertTrue(length > 0 && length < raw.length, "compressed to " + length);
+        byte[] unpacked = new byte[raw.length];
+        codec.decompress(packed, length, unpacked, raw.length);
+        assertArrayEquals(raw, unpacked);
+    }
+
+    private static void assertTruncatedRejected(BlockCodec codec) {
+        byte[] raw = text(BLOCK);
+        byte[] packed = new byte[raw.length];
+        int length = codec.compress(raw, raw.length, packed);
+        assertTrue(length > 0);
+        assertThrows(IOException.class, () -> codec.decompress(packed, length / 2, new byte[raw.length], raw.length));
+    }
+
+    private Path compress(byte[] raw, Compression.Codec codec) throws IOException {
+        Path source = dir.resolve("raw-" + codec);
+        Files.write(source, raw);
+        Path packed = dir.resolve("packed-" + codec);
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            Compression.compress(in, codec, packed);
+        }
+        return packed;
+    }
+
+    private static byte[] text(int length) {
+        StringBuilder csv = new StringBuilder();
+        Random random = new Random(42);
+        for (int row = 0; csv.length() < length; row++) {
+            csv.append(row).append(",employee").append(random.nextInt(500)).append(",IT,")
+                    .append(random.nextInt(100_000)).append(",2024-0").append(1 + random.nextInt(9)).append('\n');
+        }
+        return Arrays.copyOf(csv.toString().getBytes(StandardCharsets.US_ASCII), length);
+    }
+
+    private static byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        new Random(7).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,144 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeltaSyncTest {
+    private static final int SIZE = 1 << 20;
+
+    @TempDir
+    Path dir;
+
+    private final byte[] base = random(SIZE, 1);
+
+    @Test
+    void editedBlockIsPatchedInPlace() throws Exception {
+        Path target = target(base);
+        byte[] edited = base.clone();
+        System.arraycopy(random(100, 2), 0, edited, 500_000, 100);
+
+        long[] sent = sync(edited, target);
+        assertArrayEquals(edited, Files.readAllBytes(target));
+        int blockSize = DeltaSync.blockSizeFor(SIZE);
+        assertTrue(sent[1] <= 2 * blockSize, "literal bytes sent: " + sent[1]);
+        assertTrue(sent[0] <= 2 * blockSize, "bytes written: " + sent[0]);
+        try (var staged = Files.list(dir.resolve("staging"))) {
+            assertEquals(0, staged.count(), "the spooled delta is removed");
+        }
+    }
+
+    @Test
+    void insertionShiftsTheRestAndIsRebuilt() throws Exception {
+        Path target = target(base);
+        byte[] shifted = new byte[SIZE + 10];
+        System.arraycopy(base, 0, shifted, 0, 300_000);
+        System.arraycopy(base, 300_000, shifted, 300_010, SIZE - 300_000);
+
+        long[] sent = sync(shifted, target);
+        assertArrayEquals(shifted, Files.readAllBytes(target));
+        assertTrue(sent[1] <= 2 * DeltaSync.blockSizeFor(SIZE), "literal bytes sent: " + sent[1]);
+        assertEquals(shifted.length, sent[0]);
+    }
+
+    @Test
+    void truncatedVersionIsApplied() throws Exception {
+        Path target = target(base);
+        byte[] truncated = Arrays.copyOf(base, SIZE / 2 + 77);
+
+        long[] sent = sync(truncated, target);
+        assertArrayEquals(truncated, Files.readAllBytes(target));
+        assertTrue(sent[1] < DeltaSync.blockSizeFor(SIZE));
+    }
+
+    @Test
+    void missingTargetGetsEverythingAsLiterals() throws Exception {
+        Path target = dir.resolve("IT/report.csv");
+
+        long[] sent = sync(base, target);
+        assertArrayEquals(base, Files.readAllBytes(target));
+        assertEquals(SIZE, sent[1]);
+    }
+
+    @Test
+    void interruptedDeltaResumesWhereItStopped() throws Exception {
+        Path target = target(base);
+        byte[] rewritten = random(SIZE, 3); // nothing in common with the base, the delta is all literal
+        Path spool = dir.resolve("staging/update-1.ops");
+
+        assertThrows(IOException.class, () -> sync(rewritten, target, spool, SIZE / 2));
+        assertTrue(Files.size(spool) > SIZE / 4, "the received part of the delta is kept");
+        assertArrayEquals(base, Files.readAllBytes(target), "the old version stays until the delta is complete");
+
+        long[] sent = sync(rewritten, target, spool, Long.MAX_VALUE);
+        assertArrayEquals(rewritten, Files.readAllBytes(target));
+        assertTrue(sent[2] < SIZE * 3 / 4, "resent " + sent[2] + " bytes");
+        assertFalse(Files.exists(spool));
+    }
+
+    @Test
+    void spoolAgainstAnOlderBaseIsDiscarded() throws Exception {
+        Path target = target(base);
+        byte[] rewritten = random(SIZE, 3);
+        Path spool = dir.resolve("staging/update-1.ops");
+        assertThrows(IOException.class, () -> sync(rewritten, target, spool, SIZE / 2));
+
+        byte[] changed = random(SIZE, 4); // someone else's update landed in between
+        Files.write(target, changed);
+        long[] sent = sync(rewritten, target, spool, Long.MAX_VALUE);
+        assertArrayEquals(rewritten, Files.readAllBytes(target));
+        assertTrue(sent[2] > SIZE, "the whole delta is sent again");
+    }
+
+    private Path target(byte[] content) throws IOException {
+        Path target = dir.resolve("IT/report.csv");
+        Files.createDirectories(target.getParent());
+        Files.write(target, content);
+        return target;
+    }
+
+    /**
+     * Brings target up to newVersion, the sender running as a peer.
+     *
+     * @return bytes the receiver wrote and literal bytes the sender sent
+     */
+    private long[] sync(byte[] newVersion, Path target) throws Exception {
+        return sync(newVersion, target, null, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #sync(byte[], Path)} with a resumable spool, over a connection that drops after
+     * cutAfter bytes from the sender.
+     *
+     * @return bytes the receiver wrote, literal bytes in the delta and bytes actually sent
+     */
+    private long[] sync(byte[] newVersion, Path target, Path spool, long cutAfter) throws Exception {
+        Path source = dir.resolve("source");
+        Files.write(source, newVersion);
+        try (PipedPeer<Long> sender = PipedPeer.startCut((in, out) -> send(source, in, out), cutAfter)) {
+            long written = DeltaSync.receive(sender.in(), sender.out(), target, dir.resolve("staging"), spool);
+            return new long[]{written, sender.result(), sender.sent()};
+        }
+    }
+
+    private static long send(Path source, ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        try (FileChannel file = FileChannel.open(source, StandardOpenOption.READ)) {
+            return DeltaSync.send(file, in, out);
+        }
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
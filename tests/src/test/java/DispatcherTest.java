@@ -0,0 +1,34 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DispatcherTest {
+    private static final long LEASE_MS = 200;
+
+    private final FileLockManager locks = new FileLockManager(LEASE_MS, new Metrics("Test"));
+    private final Dispatcher dispatcher = new Dispatcher(2, 10, locks, 10_000, new Metrics("Test"));
+
+    @Test
+    void leaseOutlivesTheWaitForAWorker() throws Exception {
+        // Both workers are busy, so the write to IT/b is granted its lease but sits in the queue
+        long first = dispatcher.submitWrite("test", "IT/a", handle -> Thread.sleep(5 * LEASE_MS));
+        long second = dispatcher.submitWrite("test", "IT/c", handle -> Thread.sleep(5 * LEASE_MS));
+        AtomicInteger writing = new AtomicInteger();
+        AtomicInteger mostAtOnce = new AtomicInteger();
+        Dispatcher.Task write = handle -> {
+            mostAtOnce.accumulateAndGet(writing.incrementAndGet(), Math::max);
+            Thread.sleep(LEASE_MS);
+            writing.decrementAndGet();
+        };
+        long queued = dispatcher.submitWrite("test", "IT/b", write);
+        Thread.sleep(3 * LEASE_MS);
+        long late = dispatcher.submitWrite("test", "IT/b", write);
+
+        for (long id : new long[]{first, second, queued, late}) {
+            assertEquals(OperationStatus.State.SUCCEEDED, dispatcher.await(id, 10_000).getState());
+        }
+        assertEquals(1, mostAtOnce.get(), "two writers held IT/b at once");
+    }
+}
@@ -0,0 +1,139 @@
+import org.junit.jupiter.api.Test;
+
+import javax.naming.ServiceUnavailableException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileLockManagerTest {
+    private static final long LONG = 60_000;
+
+    private final FileLockManager locks = new FileLockManager(LONG, new Metrics("Test"));
+
+    @Test
+    void readersShareAFile() {
+        CompletableFuture<FileLockManager.Lease> first = locks.acquire("IT/a", false, LONG);
+        CompletableFuture<FileLockManager.Lease> second = locks.acquire("IT/a", false, LONG);
+        assertTrue(first.isDone());
+        assertTrue(second.isDone());
+    }
+
+    @Test
+    void writerWaitsForReadersAndHoldsTheFileAlone() {
+        FileLockManager.Lease reader = locks.acquire("IT/a", false, LONG).join();
+        CompletableFuture<FileLockManager.Lease> writer = locks.acquire("IT/a", true, LONG);
+        assertFalse(writer.isDone());
+
+        reader.close();
+        assertTrue(writer.isDone());
+        assertTrue(writer.join().isWrite());
+        assertFalse(locks.acquire("IT/a", false, LONG).isDone());
+    }
+
+    @Test
+    void readersDoNotPassAQueuedWriter() {
+        FileLockManager.Lease reader = locks.acquire("IT/a", false, LONG).join();
+        CompletableFuture<FileLockManager.Lease> writer = locks.acquire("IT/a", true, LONG);
+        CompletableFuture<FileLockManager.Lease> lateReader = locks.acquire("IT/a", false, LONG);
+        assertFalse(lateReader.isDone());
+
+        reader.close();
+        assertTrue(writer.isDone());
+        assertFalse(lateReader.isDone());
+        writer.join().close();
+        assertTrue(lateReader.isDone());
+    }
+
+    @Test
+    void writersGoInArrivalOrder() {
+        FileLockManager.Lease first = locks.acquire("IT/a", true, LONG).join();
+        CompletableFuture<FileLockManager.Lease> second = locks.acquire("IT/a", true, LONG);
+        CompletableFuture<FileLockManager.Lease> third = locks.acquire("IT/a", true, LONG);
+
+        first.close();
+        assertTrue(second.isDone());
+        assertFalse(third.isDone());
+        second.join().close();
+        assertTrue(third.isDone());
+    }
+
+    @Test
+    void readersQueuedTogetherAreGrantedTogether() {
+        FileLockManager.Lease writer = locks.acquire("IT/a", true, LONG).join();
+        CompletableFuture<FileLockManager.Lease> first = locks.acquire("IT/a", false, LONG);
+        CompletableFuture<FileLockManager.Lease> second = locks.acquire("IT/a", false, LONG);
+        CompletableFuture<FileLockManager.Lease> nextWriter = locks.acquire("IT/a", true, LONG);
+
+        writer.close();
+        assertTrue(first.isDone());
+        assertTrue(second.isDone());
+        assertFalse(nextWriter.isDone());
+    }
+
+    @Test
+    void otherFilesAreNotBlocked() {
+        locks.acquire("IT/a", true, LONG).join();
+        assertTrue(locks.acquire("IT/b", true, LONG).isDone());
+    }
+
+    @Test
+    void waitTimesOut() {
+        locks.acquire("IT/a", true, LONG).join();
+        CompletableFuture<FileLockManager.Lease> waiter = locks.acquire("IT/a", true, 50);
+        CompletionException e = assertThrows(CompletionException.class, waiter::join);
+        assertInstanceOf(ServiceUnavailableException.class, e.getCause());
+    }
+
+    @Test
+    void writerGivingUpLetsTheReadersBehindItGo() {
+        locks.acquire("IT/a", false, LONG).join();
+        CompletableFuture<FileLockManager.Lease> writer = locks.acquire("IT/a", true, 50);
+        CompletableFuture<FileLockManager.Lease> reader = locks.acquire("IT/a", false, LONG);
+        assertThrows(CompletionException.class, writer::join);
+        assertNotNull(reader.orTimeout(5, TimeUnit.SECONDS).join());
+    }
+
+    @Test
+    void blockingReadGivesUpAtOnceOnABusyFile() throws Exception {
+        locks.acquire("IT/a", true, LONG).join();
+        assertThrows(ServiceUnavailableException.class, () -> locks.acquireRead("IT/a", 0));
+        try (FileLockManager.Lease lease = locks.acquireRead("IT/b", 0)) {
+            assertEquals("IT/b", lease.getFullName());
+        }
+    }
+
+    @Test
+    void unrenewedLeaseIsReclaimed() {
+        FileLockManager shortLeases = new FileLockManager(100, new Metrics("Test"));
+        shortLeases.acquire("IT/a", true, LONG).join(); // never closed, as if leaked
+        CompletableFuture<FileLockManager.Lease> waiter = shortLeases.acquire("IT/a", true, LONG);
+        assertNotNull(waiter.orTimeout(5, TimeUnit.SECONDS).join());
+    }
+
+    @Test
+    void renewedLeaseIsKept() throws InterruptedException {
+        FileLockManager shortLeases = new FileLockManager(300, new Metrics("Test"));
+        FileLockManager.Lease held = shortLeases.acquire("IT/a", true, LONG).join();
+        CompletableFuture<FileLockManager.Lease> waiter = shortLeases.acquire("IT/a", true, LONG);
+        for (int i = 0; i < 15; i++) {
+            Thread.sleep(100);
+            held.renew();
+        }
+        assertFalse(waiter.isDone());
+        held.close();
+        assertTrue(waiter.isDone());
+    }
+
+    @Test
+    void reclaimedLeaseCannotBeRenewed() {
+        FileLockManager shortLeases = new FileLockManager(100, new Metrics("Test"));
+        FileLockManager.Lease lost = shortLeases.acquire("IT/a", true, LONG).join();
+        FileLockManager.Lease next = shortLeases.acquire("IT/a", true, LONG).orTimeout(5, TimeUnit.SECONDS).join();
+        assertFalse(lost.renew());
+        assertTrue(next.renew());
+        next.close();
+        assertFalse(next.renew());
+    }
+}
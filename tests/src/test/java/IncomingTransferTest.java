@@ -0,0 +1,106 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IncomingTransferTest {
+    private static final int CHUNK = 1000;
+    private static final int CHUNKS = 11;
+
+    @TempDir
+    Path dir;
+
+    private final byte[] content = random(CHUNK * (CHUNKS - 1) + 123);
+
+    @Test
+    void lostChunksAreNackedUntilRetransmitted() throws IOException {
+        NodeImp.IncomingTransfer transfer = open();
+        transfer.describe(CHUNKS, layout());
+        for (int seq = CHUNKS - 1; seq >= 0; seq--) {
+            if (seq != 3 && seq != 7) transfer.write(seq, chunk(seq)); // out of order, two lost
+        }
+        assertArrayEquals(new int[]{3, 7}, transfer.missing(100));
+        assertArrayEquals(new int[]{3}, transfer.missing(1), "a NACK lists at most max chunks");
+
+        transfer.write(7, chunk(7));
+        transfer.write(3, chunk(3));
+        assertEquals(0, transfer.missing(100).length);
+
+        assertArrayEquals(content, finish(transfer));
+        assertFalse(Files.exists(dir.resolve("staging")));
+    }
+
+    @Test
+    void chunksAheadOfTheLayoutArePlacedWhenItArrives() throws IOException {
+        NodeImp.IncomingTransfer transfer = open();
+        transfer.write(0, chunk(0));
+        transfer.write(5, chunk(5));
+        assertEquals(0, transfer.missing(100).length, "nothing can be NACKed before the chunk count is known");
+
+        transfer.describe(CHUNKS, layout());
+        int[] missing = transfer.missing(100);
+        assertEquals(CHUNKS - 2, missing.length);
+        assertFalse(Arrays.stream(missing).anyMatch(seq -> seq == 0 || seq == 5));
+        for (int seq : missing) transfer.write(seq, chunk(seq));
+
+        assertArrayEquals(content, finish(transfer));
+    }
+
+    @Test
+    void retransmittedChunkDoesNotOverwriteTheFirstCopy() throws IOException {
+        NodeImp.IncomingTransfer transfer = open();
+        transfer.describe(CHUNKS, layout());
+        for (int seq = 0; seq < CHUNKS; seq++) transfer.write(seq, chunk(seq));
+        transfer.write(2, ByteBuffer.allocate(CHUNK));
+
+        assertArrayEquals(content, finish(transfer));
+    }
+
+    @Test
+    void abortedTransferLeavesNothingBehind() throws IOException {
+        NodeImp.IncomingTransfer transfer = open();
+        transfer.describe(CHUNKS, layout());
+        transfer.write(0, chunk(0));
+        transfer.abort();
+        assertFalse(Files.exists(dir.resolve("staging")));
+    }
+
+    /**
+     * Commits the transfer to a plain store and reads back what landed there.
+     */
+    private byte[] finish(NodeImp.IncomingTransfer transfer) throws IOException {
+        FileStore store = new PlainFileStore(dir.resolve("node"));
+        transfer.finish(store);
+        try (FileChannel file = store.openRead("IT/report.csv")) {
+            return Channels.newInputStream(file).readAllBytes();
+        }
+    }
+
+    private NodeImp.IncomingTransfer open() throws IOException {
+        return new NodeImp.IncomingTransfer(1, dir.resolve("staging"));
+    }
+
+    private SyncPacket.Layout layout() {
+        return new SyncPacket.Layout("node_2", "IT/report.csv", CHUNK, content.length, Compression.Codec.NONE, List.of("node_1"));
+    }
+
+    private ByteBuffer chunk(int seq) {
+        return ByteBuffer.wrap(content, seq * CHUNK, Math.min(CHUNK, content.length - seq * CHUNK));
+    }
+
+    private static byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        new Random(3).nextBytes(bytes);
+        return bytes;
+    }
+}
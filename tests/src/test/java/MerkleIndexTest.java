@@ -0,0 +1,135 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MerkleIndexTest {
+    private static final int FILES = 2000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void sameFilesGiveTheSameRootInAnyOrder() {
+        MerkleIndex forward = new MerkleIndex();
+        MerkleIndex backward = new MerkleIndex();
+        for (int i = 0; i < FILES; i++) forward.put(name(i), digest(i));
+        for (int i = FILES - 1; i >= 0; i--) backward.put(name(i), digest(i));
+
+        assertNotEquals(0, forward.root());
+        assertEquals(forward.root(), backward.root());
+    }
+
+    @Test
+    void emptyTreeHashesToZero() {
+        MerkleIndex index = new MerkleIndex();
+        assertEquals(0, index.root());
+        index.put("IT/a.txt", "d1");
+        index.remove("IT/a.txt");
+        assertEquals(0, index.root());
+        assertNull(index.digestOf("IT/a.txt"));
+    }
+
+    @Test
+    void changedContentChangesTheRootAndChangingItBackRestoresIt() {
+        MerkleIndex index = filled();
+        long root = index.root();
+        index.put(name(42), "changed");
+        assertNotEquals(root, index.root());
+        index.put(name(42), digest(42));
+        assertEquals(root, index.root());
+    }
+
+    @Test
+    void putIfAbsentKeepsAWrittenDigest() {
+        MerkleIndex index = new MerkleIndex();
+        index.put("IT/a.txt", "new");
+        index.putIfAbsent("IT/a.txt", "scanned");
+        index.putIfAbsent("IT/b.txt", "scanned");
+        assertEquals("new", index.digestOf("IT/a.txt"));
+        assertEquals("scanned", index.digestOf("IT/b.txt"));
+    }
+
+    @Test
+    void walkingDivergentSubtreesFindsExactlyTheDifferingFiles() {
+        MerkleIndex expected = filled();
+        MerkleIndex actual = filled();
+        actual.put(name(7), "stale");
+        actual.remove(name(1234));
+        actual.put("IT/stray.txt", "stray");
+
+        List<Integer> leaves = divergentLeaves(expected, actual);
+        assertTrue(leaves.size() <= 3, "only the buckets of the three files differ");
+
+        int[] buckets = leaves.stream().mapToInt(Integer::intValue).toArray();
+        Map<String, String> want = expected.entries(buckets);
+        Map<String, String> have = actual.entries(buckets);
+        List<String> differing = new ArrayList<>();
+        for (String name : want.keySet()) {
+            if (!want.get(name).equals(have.get(name))) differing.add(name);
+        }
+        for (String name : have.keySet()) {
+            if (!want.containsKey(name)) differing.add(name);
+        }
+        differing.sort(null);
+        assertEquals(List.of("IT/file-1234", "IT/file-7", "IT/stray.txt"), differing);
+    }
+
+    @Test
+    void digestOfAFileIsItsSha256() throws Exception {
+        byte[] content = new byte[600_000]; // more than one read buffer
+        new Random(5).nextBytes(content);
+        Path file = dir.resolve("a.bin");
+        Files.write(file, content);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            String expected = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+            assertEquals(expected, MerkleIndex.digestOf(channel));
+        }
+    }
+
+    /**
+     * Compares two trees level by level like anti-entropy does, descending only where they differ.
+     */
+    private static List<Integer> divergentLeaves(MerkleIndex expected, MerkleIndex actual) {
+        List<Integer> frontier = expected.root() == actual.root() ? List.of() : List.of(MerkleIndex.ROOT);
+        for (int level = 0; level < MerkleIndex.DEPTH; level++) {
+            int[] children = frontier.stream().flatMapToInt(i -> IntStream.of(2 * i, 2 * i + 1)).toArray();
+            long[] want = expected.hashes(children);
+            long[] have = actual.hashes(children);
+            List<Integer> next = new ArrayList<>();
+            for (int i = 0; i < children.length; i++) {
+                if (want[i] != have[i]) next.add(children[i]);
+            }
+            frontier = next;
+        }
+        frontier.forEach(leaf -> assertTrue(MerkleIndex.isLeaf(leaf)));
+        return frontier;
+    }
+
+    private static MerkleIndex filled() {
+        MerkleIndex index = new MerkleIndex();
+        for (int i = 0; i < FILES; i++) index.put(name(i), digest(i));
+        return index;
+    }
+
+    private static String name(int i) {
+        return "IT/file-" + i;
+    }
+
+    private static String digest(int i) {
+        return Integer.toHexString(i * 0x9E3779B1);
+    }
+}
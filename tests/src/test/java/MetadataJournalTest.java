@@ -0,0 +1,162 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetadataJournalTest {
+    @TempDir
+    Path dir;
+
+    private final Map<String, FileMeta> files = new ConcurrentHashMap<>();
+    private final Map<String, Employee> employees = new ConcurrentHashMap<>();
+
+    @Test
+    void replayRestoresFilesAndEmployees() throws IOException {
+        MetadataJournal journal = open(files, employees);
+        FileMeta fm = new FileMeta("IT/report.csv");
+        fm.addNode("node_1");
+        fm.addNode("node_2");
+        fm.setSize(1234);
+        fm.nextVersion();
+        fm.setDigest("abc123");
+        files.put(fm.getFullName(), fm);
+        employees.put("alice", new Employee("alice", "secret", List.of("IT", "manager")));
+        journal.logFile(fm.getFullName()).join();
+        journal.logEmployee("alice").join();
+
+        Map<String, FileMeta> recoveredFiles = new ConcurrentHashMap<>();
+        Map<String, Employee> recoveredEmployees = new ConcurrentHashMap<>();
+        open(recoveredFiles, recoveredEmployees);
+
+        FileMeta recovered = recoveredFiles.get("IT/report.csv");
+        assertEquals(List.of("node_1", "node_2"), recovered.getNodes());
+        assertEquals(1234, recovered.getSize());
+        assertEquals(fm.getVersion(), recovered.getVersion());
+        assertEquals("abc123", recovered.getDigest());
+        assertTrue(recoveredEmployees.get("alice").passwordAttempt("secret"));
+        assertFalse(recoveredEmployees.get("alice").passwordAttempt("guess"));
+        assertEquals(List.of("IT", "manager"), recoveredEmployees.get("alice").getRoles());
+    }
+
+    @Test
+    void passwordsAreNotJournaledInTheClear() throws IOException {
+        MetadataJournal journal = open(files, employees);
+        employees.put("alice", new Employee("alice", "correct horse", List.of("IT")));
+        journal.logEmployee("alice").join();
+        String segment = new String(Files.readAllBytes(segment(1)), StandardCharsets.ISO_8859_1);
+        assertFalse(segment.contains("correct horse"));
+    }
+
+    @Test
+    void replayRestoresReplicationFactors() throws IOException {
+        Map<String, Integer> factors = new ConcurrentHashMap<>();
+        MetadataJournal journal = open(files, employees, factors);
+        factors.put("IT", 3);
+        journal.logReplicationFactor("IT").join();
+        factors.put("HR", 1);
+        journal.logReplicationFactor("HR").join();
+        factors.put("IT", 4);
+        journal.logReplicationFactor("IT").join();
+
+        Map<String, Integer> recovered = new ConcurrentHashMap<>();
+        open(new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), recovered);
+        assertEquals(Map.of("IT", 4, "HR", 1), recovered);
+    }
+
+    @Test
+    void laterRecordsWinAndTombstonesRemove() throws IOException {
+        MetadataJournal journal = open(files, employees);
+        FileMeta fm = new FileMeta("IT/a.txt");
+        fm.addNode("node_1");
+        files.put(fm.getFullName(), fm);
+        employees.put("bob", new Employee("bob", "pw", List.of("IT")));
+        journal.logFile("IT/a.txt").join();
+        journal.logEmployee("bob").join();
+
+        fm.clearNodes();
+        fm.addNode("node_3");
+        journal.logFile("IT/a.txt").join();
+        employees.remove("bob");
+        journal.logEmployee("bob").join();
+
+        Map<String, FileMeta> recoveredFiles = new ConcurrentHashMap<>();
+        Map<String, Employee> recoveredEmployees = new ConcurrentHashMap<>();
+        open(recoveredFiles, recoveredEmployees);
+        assertEquals(List.of("node_3"), recoveredFiles.get("IT/a.txt").getNodes());
+        assertNull(recoveredFiles.get("IT/a.txt").getDigest());
+        assertFalse(recoveredEmployees.containsKey("bob"));
+    }
+
+    @Test
+    void replaySpansRestarts() throws IOException {
+        MetadataJournal first = open(files, employees);
+        employees.put("carol", new Employee("carol", "pw", List.of("HR")));
+        first.logEmployee("carol").join();
+
+        Map<String, Employee> afterFirst = new ConcurrentHashMap<>();
+        MetadataJournal second = open(new ConcurrentHashMap<>(), afterFirst);
+        afterFirst.put("dave", new Employee("dave", "pw", List.of("QA")));
+        second.logEmployee("dave").join();
+
+        Map<String, Employee> afterSecond = new ConcurrentHashMap<>();
+        open(new ConcurrentHashMap<>(), afterSecond);
+        assertEquals(List.of("HR"), afterSecond.get("carol").getRoles());
+        assertEquals(List.of("QA"), afterSecond.get("dave").getRoles());
+    }
+
+    @Test
+    void tornTailIsDropped() throws IOException {
+        MetadataJournal journal = open(files, employees);
+        employees.put("erin", new Employee("erin", "pw", List.of("IT")));
+        journal.logEmployee("erin").join();
+        // A crash mid-append: the length promises more than was written
+        Files.write(segment(1), new byte[]{0, 0, 0, 64, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        Map<String, Employee> recovered = new ConcurrentHashMap<>();
+        open(new ConcurrentHashMap<>(), recovered);
+        assertTrue(recovered.containsKey("erin"));
+    }
+
+    @Test
+    void corruptRecordEndsReplayOfItsSegment() throws IOException {
+        MetadataJournal journal = open(files, employees);
+        employees.put("frank", new Employee("frank", "pw", List.of("IT")));
+        journal.logEmployee("frank").join();
+        employees.put("grace", new Employee("grace", "pw", List.of("IT")));
+        journal.logEmployee("grace").join();
+        try (FileChannel segment = FileChannel.open(segment(1), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment.write(ByteBuffer.wrap(new byte[]{'X'}), segment.size() - 1); // last byte of grace
+        }
+
+        Map<String, Employee> recovered = new ConcurrentHashMap<>();
+        open(new ConcurrentHashMap<>(), recovered);
+        assertTrue(recovered.containsKey("frank"));
+        assertFalse(recovered.containsKey("grace"));
+    }
+
+    private MetadataJournal open(Map<String, FileMeta> files, Map<String, Employee> employees) throws IOException {
+        return open(files, employees, new ConcurrentHashMap<>());
+    }
+
+    private MetadataJournal open(Map<String, FileMeta> files, Map<String, Employee> employees,
+                                 Map<String, Integer> replicationFactors) throws IOException {
+        MetadataJournal journal = new MetadataJournal(dir, files, employees, replicationFactors, new Metrics("Test"));
+        journal.recover();
+        return journal;
+    }
+
+    private Path segment(long id) {
+        return dir.resolve("journal-" + id + ".log");
+    }
+}
@@ -0,0 +1,61 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PhiAccrualDetectorTest {
+    private static final long MS = 1_000_000;
+
+    @Test
+    void noSuspicionBeforeTheFirstHeartbeat() {
+        PhiAccrualDetector detector = new PhiAccrualDetector(100, 1000, 50, 0);
+        assertEquals(0, detector.phi(10_000 * MS));
+        assertEquals(-1, detector.millisSinceLastHeartbeat(10_000 * MS));
+    }
+
+    @Test
+    void suspicionGrowsWithSilence() {
+        PhiAccrualDetector detector = steady(1000, 0);
+        long last = 20_000 * MS;
+        double previous = -1;
+        for (long silence = 0; silence <= 5000; silence += 250) {
+            double phi = detector.phi(last + silence * MS);
+            assertTrue(phi >= previous, "phi fell to " + phi + " after " + silence + " ms");
+            previous = phi;
+        }
+        assertTrue(detector.phi(last + 500 * MS) < 1, "a heartbeat on time is not suspicious");
+        assertTrue(detector.phi(last + 3000 * MS) > 8, "three missed heartbeats are");
+        assertEquals(2500, detector.millisSinceLastHeartbeat(last + 2500 * MS));
+    }
+
+    @Test
+    void acceptablePauseDelaysSuspicion() {
+        double strict = steady(1000, 0).phi(20_000 * MS + 2000 * MS);
+        double lenient = steady(1000, 1000).phi(20_000 * MS + 2000 * MS);
+        assertTrue(lenient < 1, "a pause within the allowance is not suspicious: " + lenient);
+        assertTrue(strict > lenient);
+    }
+
+    @Test
+    void windowFollowsTheCurrentInterval() {
+        PhiAccrualDetector detector = steady(1000, 0);
+        long now = 20_000 * MS;
+        double before = detector.phi(now + 1500 * MS);
+        // The node now beats ten times a second and the old intervals slide out of the window
+        for (int i = 0; i < 30; i++) {
+            now += 100 * MS;
+            detector.heartbeat(now);
+        }
+        assertTrue(detector.phi(now + 1500 * MS) > before);
+    }
+
+    /**
+     * A detector that saw a heartbeat every intervalMs, the last one at 20 s.
+     */
+    private static PhiAccrualDetector steady(long intervalMs, double acceptablePauseMs) {
+        PhiAccrualDetector detector = new PhiAccrualDetector(20, intervalMs, 100, acceptablePauseMs);
+        for (long t = 0; t <= 20_000; t += intervalMs) {
+            detector.heartbeat(t * MS);
+        }
+        return detector;
+    }
+}
@@ -0,0 +1,114 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The far end of a two-way node connection, run on its own thread over a pair of pipes. The test
+ * plays the near end through {@link #in()} and {@link #out()}.
+ */
+final class PipedPeer<T> implements AutoCloseable {
+    interface End<T> {
+        T run(ReadableByteChannel in, WritableByteChannel out) throws Exception;
+    }
+
+    private final Pipe toPeer;
+    private final Pipe fromPeer;
+    private final CuttingChannel peerOut;
+    private final FutureTask<T> task;
+
+    private PipedPeer(End<T> end, long cutAfter) throws IOException {
+        toPeer = Pipe.open();
+        fromPeer = Pipe.open();
+        peerOut = new CuttingChannel(fromPeer.sink(), cutAfter);
+        task = new FutureTask<>(() -> {
+            try (Pipe.SourceChannel in = toPeer.source(); CuttingChannel out = peerOut) {
+                return end.run(in, out);
+            }
+        });
+        Thread thread = new Thread(task, "piped-peer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static <T> PipedPeer<T> start(End<T> end) throws IOException {
+        return new PipedPeer<>(end, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #start(End)}, but the connection drops once the peer has sent cutAfter bytes.
+     */
+    static <T> PipedPeer<T> startCut(End<T> end, long cutAfter) throws IOException {
+        return new PipedPeer<>(end, cutAfter);
+    }
+
+    ReadableByteChannel in() {
+        return fromPeer.source();
+    }
+
+    WritableByteChannel out() {
+        return toPeer.sink();
+    }
+
+    /**
+     * What the peer's end returned, once the near end is done with the connection.
+     */
+    T result() throws Exception {
+        close();
+        return task.get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Bytes the peer got through to the near end so far.
+     */
+    long sent() {
+        return peerOut.sent;
+    }
+
+    @Override
+    public void close() throws IOException {
+        toPeer.sink().close();
+        fromPeer.source().close();
+    }
+
+    private static class CuttingChannel implements WritableByteChannel {
+        private final WritableByteChannel out;
+        private long left;
+        volatile long sent;
+
+        CuttingChannel(WritableByteChannel out, long cutAfter) {
+            this.out = out;
+            this.left = cutAfter;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (left <= 0) throw new IOException("Connection cut");
+            if (src.remaining() <= left) {
+                int n = out.write(src);
+                left -= n;
+                sent += n;
+                return n;
+            }
+            ByteBuffer head = src.slice().limit((int) left);
+            int n = out.write(head);
+            src.position(src.position() + n);
+            left -= n;
+            sent += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return out.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
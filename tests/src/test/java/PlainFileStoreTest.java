@@ -0,0 +1,83 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PlainFileStoreTest {
+    private static final int SIZE = 2 << 20;
+
+    @TempDir
+    Path dir;
+
+    private final byte[] content = random(SIZE);
+
+    @Test
+    void interruptedUploadResumesFromTheStagedPart() throws Exception {
+        PlainFileStore store = new PlainFileStore(dir);
+        assertThrows(IOException.class, () -> push(store, "t1", content, SIZE / 2));
+        assertFalse(store.exists("IT/a.bin"));
+
+        long received = push(store, "t1", content, Long.MAX_VALUE);
+        assertTrue(received < SIZE * 3 / 4, "received " + received + " bytes again");
+        assertArrayEquals(content, Files.readAllBytes(dir.resolve("IT/a.bin")));
+        assertFalse(Files.exists(staged("t1")));
+    }
+
+    @Test
+    void partThatDoesNotFitTheFileIsSentAgain() throws Exception {
+        PlainFileStore store = new PlainFileStore(dir);
+        assertThrows(IOException.class, () -> push(store, "t1", content, SIZE / 2));
+        byte[] shorter = Arrays.copyOf(content, SIZE / 4); // shorter than what was staged for it
+
+        assertEquals(shorter.length, push(store, "t1", shorter, Long.MAX_VALUE));
+        assertArrayEquals(shorter, Files.readAllBytes(dir.resolve("IT/a.bin")));
+    }
+
+    @Test
+    void uploadWithoutTransferIdStartsOver() throws Exception {
+        PlainFileStore store = new PlainFileStore(dir);
+        assertThrows(IOException.class, () -> push(store, null, content, SIZE / 2));
+        assertEquals(SIZE, push(store, null, content, Long.MAX_VALUE));
+    }
+
+    private Path staged(String transferId) {
+        return dir.resolve(FileStore.STAGING_DIR).resolve("upload-" + transferId + ".part");
+    }
+
+    /**
+     * Uploads bytes as IT/a.bin over a connection that drops after cutAfter bytes.
+     *
+     * @return bytes the store asked for
+     */
+    private long push(PlainFileStore store, String transferId, byte[] bytes, long cutAfter) throws Exception {
+        Path source = dir.resolve("source");
+        Files.write(source, bytes);
+        try (PipedPeer<Long> sender = PipedPeer.startCut((in, out) -> offer(source, in, out), cutAfter)) {
+            long received = store.receiveChunks("IT/a.bin", transferId, sender.in(), sender.out());
+            assertEquals(received, sender.result());
+            return received;
+        }
+    }
+
+    private static long offer(Path source, ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        try (FileChannel file = FileChannel.open(source, StandardOpenOption.READ)) {
+            return Chunker.send(file, null, in, out);
+        }
+    }
+
+    private static byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        new Random(1).nextBytes(bytes);
+        return bytes;
+    }
+}